@@ -0,0 +1,118 @@
+package nl.arjenklaverstijn.software.korad;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs all benchmarks and writes the results as JSON. When a baseline is given the results are
+ * compared to it, and the run fails when a benchmark got slower than the tolerance allows.
+ * <p>
+ * Usage: java -jar target/benchmarks.jar [result.json] [baseline.json] [tolerance]
+ * </p>
+ * 
+ * @author arjen
+ *
+ */
+public class BenchmarkRunner {
+
+  private static final double DEFAULT_TOLERANCE = 0.25;
+
+  public static void main(String[] args) throws RunnerException, IOException {
+    String result = (args.length > 0) ? args[0] : "target/jmh-result.json";
+    String baseline = (args.length > 1) ? args[1] : null;
+    double tolerance = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+
+    Options options = new OptionsBuilder()
+        .include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark")
+        .forks(1)
+        .warmupIterations(3)
+        .warmupTime(TimeValue.seconds(1))
+        .measurementIterations(5)
+        .measurementTime(TimeValue.seconds(1))
+        .resultFormat(ResultFormatType.JSON)
+        .result(result)
+        .build();
+    new Runner(options).run();
+
+    if (baseline != null && compare(Paths.get(baseline), Paths.get(result), tolerance) > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * All benchmarks measure time per operation, so a higher score is a regression.
+   * 
+   * @return The number of regressions
+   */
+  static int compare(Path baselineFile, Path resultFile, double tolerance) throws IOException {
+    Map<String, Double> baseline = scores(baselineFile);
+    Map<String, Double> result = scores(resultFile);
+    int regressions = 0;
+    System.out.println(String.format("%-60s %12s %12s %8s", "benchmark", "baseline", "now",
+        "change"));
+    for (Map.Entry<String, Double> entry : result.entrySet()) {
+      Double before = baseline.get(entry.getKey());
+      if (before == null) {
+        System.out.println(String.format("%-60s %12s %12.1f %8s", entry.getKey(), "-",
+            entry.getValue(), "new"));
+        continue;
+      }
+      double change = (entry.getValue() - before) / before;
+      boolean regression = change > tolerance;
+      if (regression) {
+        regressions++;
+      }
+      System.out.println(String.format("%-60s %12.1f %12.1f %+7.0f%%%s", entry.getKey(), before,
+          entry.getValue(), change * 100, regression ? " SLOWER" : ""));
+    }
+    return regressions;
+  }
+
+  /**
+   * Reads JMH's JSON result, an array with an object per benchmark and per combination of params.
+   * 
+   * @return The score per benchmark, named like "ReadLoopBenchmark.sample chunk:64"
+   */
+  static Map<String, Double> scores(Path file) throws IOException {
+    JsonArray results;
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      results = JsonParser.parseReader(reader).getAsJsonArray();
+    }
+    Map<String, Double> scores = new LinkedHashMap<>();
+    for (JsonElement element : results) {
+      JsonObject result = element.getAsJsonObject();
+      String benchmark = result.get("benchmark").getAsString();
+      // Class and method, without the package
+      String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1)
+          + 1);
+      JsonObject params = result.getAsJsonObject("params");
+      if (params != null) {
+        StringJoiner values = new StringJoiner(",", " ", "");
+        for (Map.Entry<String, JsonElement> param : params.entrySet()) {
+          values.add(param.getKey() + ":" + param.getValue().getAsString());
+        }
+        name += values;
+      }
+      scores.put(name, result.getAsJsonObject("primaryMetric").get("score").getAsDouble());
+    }
+    return scores;
+  }
+
+}
@@ -0,0 +1,44 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The cost of turning a set-point into a command and writing it. The value changes every call so
+ * the set-point cache doesn't skip it.
+ * 
+ * @author arjen
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncodingBenchmark {
+
+  private LabPSU3005D device;
+  private int step;
+
+  @Setup
+  public void setUp() {
+    device = new LabPSU3005D(new LoopbackTransport(), new UnpacedPacer());
+  }
+
+  @Benchmark
+  public void setVoltage() {
+    step = (step + 1) & 1023;
+    device.setVoltage(step / 100F);
+  }
+
+  @Benchmark
+  public void setCurrent() {
+    step = (step + 1) & 1023;
+    device.setCurrent(step / 1000F);
+  }
+
+}
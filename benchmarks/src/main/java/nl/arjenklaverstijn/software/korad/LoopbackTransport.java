@@ -0,0 +1,104 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers every query with a fixed reply straight from memory, without any locking or timing. This
+ * leaves only the cost of the library itself to measure.
+ * 
+ * @author arjen
+ *
+ */
+public class LoopbackTransport implements Transport {
+
+  private static final byte[] VOLTAGE = "05.00".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] CURRENT = "1.000".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] ISET = "1.0000".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] STATUS = {0x51};
+
+  private final byte[] replies = new byte[256];
+  private int start;
+  private int end;
+  private final int chunk;
+  private boolean open;
+
+  public LoopbackTransport() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param chunk The most bytes a single read returns, to make the reader loop like it does on a
+   *        slow serial port
+   */
+  public LoopbackTransport(int chunk) {
+    this.chunk = chunk;
+  }
+
+  @Override
+  public boolean open() {
+    open = true;
+    return true;
+  }
+
+  @Override
+  public boolean close() {
+    open = false;
+    start = end = 0;
+    return true;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public String getName() {
+    return "LOOPBACK";
+  }
+
+  @Override
+  public int write(byte[] buffer, int offset, int length) {
+    // Only queries get a reply, they all end with '?' and are only ever sent together with other
+    // queries.
+    int command = offset;
+    for (int i = offset; i < offset + length; i++) {
+      if (buffer[i] == '?') {
+        reply(buffer[command], buffer[command + 1]);
+        command = i + 1;
+      }
+    }
+    return length;
+  }
+
+  private void reply(byte first, byte second) {
+    if (first == 'V') {
+      append(VOLTAGE);
+    } else if (first == 'I' && second == 'O') {
+      append(CURRENT);
+    } else if (first == 'I') {
+      append(ISET);
+    } else if (first == 'S') {
+      append(STATUS);
+    }
+  }
+
+  private void append(byte[] reply) {
+    if (start == end) {
+      start = end = 0;
+    }
+    if (end + reply.length <= replies.length) {
+      System.arraycopy(reply, 0, replies, end, reply.length);
+      end += reply.length;
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+    int count = Math.min(Math.min(length, chunk), end - start);
+    System.arraycopy(replies, start, buffer, offset, count);
+    start += count;
+    return count;
+  }
+
+}
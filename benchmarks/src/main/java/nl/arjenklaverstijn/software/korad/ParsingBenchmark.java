@@ -0,0 +1,41 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing a reply like "05.00". The String way is what the library used to do and is kept as a
+ * reference.
+ * 
+ * @author arjen
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParsingBenchmark {
+
+  private final byte[] reply = "12.34".getBytes(StandardCharsets.US_ASCII);
+
+  @Benchmark
+  public float floatValueOfString() {
+    return Float.valueOf(new String(reply, 0, reply.length, StandardCharsets.US_ASCII));
+  }
+
+  @Benchmark
+  public float parseDecimal() {
+    return LabPSU3005D.parseDecimal(reply, 0, reply.length);
+  }
+
+  @Benchmark
+  public int parseFixed() {
+    return LabPSU3005D.parseFixed(reply, 0, reply.length, 3);
+  }
+
+}
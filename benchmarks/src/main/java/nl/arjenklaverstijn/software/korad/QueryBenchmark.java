@@ -0,0 +1,63 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+
+/**
+ * End to end against the {@link SimulatedPSU} without latency. This adds the simulator's parsing
+ * and locking, like a real device adds its own turnaround.
+ * 
+ * @author arjen
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryBenchmark {
+
+  private LabPSU3005D device;
+
+  @Setup
+  public void setUp() {
+    device = new LabPSU3005D(new SimulatedPSU(10F), new UnpacedPacer());
+    device.openPort();
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true, 0);
+  }
+
+  @TearDown
+  public void tearDown() {
+    device.closePort();
+  }
+
+  @Benchmark
+  public float getOutputVoltage() {
+    return device.getOutputVoltage();
+  }
+
+  @Benchmark
+  public Status getStatus() {
+    return device.getStatus(1);
+  }
+
+  @Benchmark
+  public Snapshot getSnapshot() {
+    return device.getSnapshot();
+  }
+
+  @Benchmark
+  public boolean sample() {
+    return device.sample((nanoTime, voltage, current, status) -> {
+    });
+  }
+
+}
@@ -0,0 +1,47 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A whole query against a transport that answers from memory, so this is the library's own cost
+ * of writing, reading and parsing. A chunk of 1 byte makes the read loop go round for every byte,
+ * like it can on a slow port.
+ * 
+ * @author arjen
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReadLoopBenchmark {
+
+  @Param({"1", "64"})
+  public int chunk;
+
+  private LabPSU3005D device;
+
+  @Setup
+  public void setUp() {
+    device = new LabPSU3005D(new LoopbackTransport(chunk), new UnpacedPacer());
+  }
+
+  @Benchmark
+  public float getOutputVoltage() {
+    return device.getOutputVoltage();
+  }
+
+  @Benchmark
+  public boolean sample() {
+    return device.sample((nanoTime, voltage, current, status) -> {
+    });
+  }
+
+}
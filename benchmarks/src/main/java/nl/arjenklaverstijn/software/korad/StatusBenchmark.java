@@ -0,0 +1,38 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+
+/**
+ * Decoding the status byte, going through all 256 possible values. Decoding every time next to
+ * looking up the shared one.
+ * 
+ * @author arjen
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StatusBenchmark {
+
+  private int raw;
+
+  @Benchmark
+  public Status decode() {
+    raw = (raw + 1) & 0xFF;
+    return new Status(1, (byte) raw);
+  }
+
+  @Benchmark
+  public Status interned() {
+    raw = (raw + 1) & 0xFF;
+    return Status.of(1, (byte) raw);
+  }
+
+}
@@ -0,0 +1,17 @@
+package nl.arjenklaverstijn.software.korad;
+
+/**
+ * A pacer that never waits, the in-memory transports are always ready for the next command.
+ * Everything else, like the bookkeeping after every command, still runs.
+ * 
+ * @author arjen
+ *
+ */
+public class UnpacedPacer extends Pacer {
+
+  @Override
+  public void await(CommandType next) {
+    // ready right away
+  }
+
+}
@@ -0,0 +1,143 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+
+/**
+ * Asynchronous access to a {@link LabPSU3005D}. A single I/O thread owns the device, calls only
+ * queue the command and return a {@link CompletableFuture}. The I/O thread sends the commands in
+ * order, as fast as the {@link Pacer} allows, so a control loop can queue a setpoint and its
+ * readbacks without waiting for each of them:
+ *
+ * <pre>
+ * AsyncLabPSU3005D psu = new AsyncLabPSU3005D(new LabPSU3005D("COM4"));
+ * psu.openPort();
+ * psu.setVoltage(5F);
+ * CompletableFuture&lt;Float&gt; voltage = psu.getOutputVoltage();
+ * CompletableFuture&lt;Float&gt; current = psu.getOutputCurrent();
+ * // do something else
+ * System.out.println(voltage.join() + "V " + current.join() + "A");
+ * </pre>
+ *
+ * The commands are not pipelined: the I/O thread waits for the reply to a query before it writes
+ * the next command. The unit drops commands that arrive while it is busy and its replies have no
+ * terminator, so a reply to a command written ahead couldn't be told apart from a missing one. Only
+ * the caller is freed from waiting, the time on the wire is the same as with blocking calls. Use
+ * {@link LabPSU3005D#getSnapshot()} to get more out of one round trip.
+ * <p>
+ * The {@link LabPSU3005D} can still be used directly, a direct call just waits for the command the
+ * I/O thread is sending. Use {@link #execute} for things that have to happen in one go.
+ * </p>
+ *
+ * @author arjen
+ *
+ */
+public class AsyncLabPSU3005D implements AutoCloseable {
+
+  private final LabPSU3005D device;
+  private final ExecutorService io;
+
+  public AsyncLabPSU3005D(LabPSU3005D device) {
+    this.device = device;
+    this.io = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "LabPSU3005D-" + device.getTransport().getName());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public CompletableFuture<Boolean> openPort() {
+    return submit(device::openPort);
+  }
+
+  public CompletableFuture<Boolean> closePort() {
+    return submit(device::closePort);
+  }
+
+  public CompletableFuture<Void> setVoltage(float voltage) {
+    return run(() -> device.setVoltage(voltage));
+  }
+
+  public CompletableFuture<Void> setCurrent(float current) {
+    return run(() -> device.setCurrent(current));
+  }
+
+  public CompletableFuture<Void> setEnabled(boolean onOff) {
+    return run(() -> device.setEnabled(onOff));
+  }
+
+  public CompletableFuture<Void> setOCP(boolean onOff) {
+    return run(() -> device.setOCP(onOff));
+  }
+
+  public CompletableFuture<Void> setOVP(boolean onOff) {
+    return run(() -> device.setOVP(onOff));
+  }
+
+  public CompletableFuture<Void> recalPreset(int num) {
+    return run(() -> device.recalPreset(num));
+  }
+
+  public CompletableFuture<Float> getSetVoltage() {
+    return submit(device::getSetVoltage);
+  }
+
+  public CompletableFuture<Float> getSetCurrent() {
+    return submit(device::getSetCurrent);
+  }
+
+  public CompletableFuture<Float> getOutputVoltage() {
+    return submit(device::getOutputVoltage);
+  }
+
+  public CompletableFuture<Float> getOutputCurrent() {
+    return submit(device::getOutputCurrent);
+  }
+
+  public CompletableFuture<Status> getStatus() {
+    return submit(device::getStatus);
+  }
+
+  public CompletableFuture<Snapshot> getSnapshot() {
+    return submit(device::getSnapshot);
+  }
+
+  public CompletableFuture<String> getId() {
+    return submit(device::getId);
+  }
+
+  /**
+   * Runs any code on the I/O thread, for things that have to happen in one go.
+   *
+   * @param job The code to run, gets the device
+   * @return The result of the job
+   */
+  public <T> CompletableFuture<T> execute(Function<LabPSU3005D, T> job) {
+    return submit(() -> job.apply(device));
+  }
+
+  private <T> CompletableFuture<T> submit(Supplier<T> command) {
+    return CompletableFuture.supplyAsync(command, io);
+  }
+
+  private CompletableFuture<Void> run(Runnable command) {
+    return CompletableFuture.runAsync(command, io);
+  }
+
+  public LabPSU3005D getDevice() {
+    return device;
+  }
+
+  /**
+   * Stops the I/O thread after the queued commands are done. Doesn't close the port.
+   */
+  @Override
+  public void close() {
+    io.shutdown();
+  }
+
+}
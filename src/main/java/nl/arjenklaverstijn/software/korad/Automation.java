@@ -9,12 +9,17 @@ package nl.arjenklaverstijn.software.korad;
  */
 public abstract class Automation {
   private LabPSU3005D device;
+  private final StepScheduler scheduler = new StepScheduler();
 
+  /**
+   * Opens the port and zeroes the device. In a session of an {@link AutomationQueue} it is only
+   * called for the first automation, use {@link #beforeRun()} for what every run needs.
+   */
   public void before() {
     device.openPort();
     device.setCurrent(0);
     device.setVoltage(0);
-    device.setEnabled(false);
+    device.switchOff(100);
   }
 
   public void beforeRun() {
@@ -25,30 +30,75 @@ public abstract class Automation {
 
   public void afterRun() {};
 
+  /**
+   * Zeroes the device and closes the port. In a session of an {@link AutomationQueue} it is only
+   * called for the last automation, or the one that failed. Use {@link #afterRun()} for what every
+   * run needs.
+   */
   public void after() {
-    device.setEnabled(false);
+    device.switchOff(100);
     device.setCurrent(0);
     device.setVoltage(0);
     device.closePort();
   };
 
+  /**
+   * Stops the job: wakes it up if it waits for its next step and switches the output off. The port
+   * stays open, so the command the job is sending still gets its reply and {@link #after()} can
+   * zero the device once the job returns.
+   */
   public void cancel() {
-    device.setEnabled(false);
-    device.closePort();
+    // Wake up the job if it is waiting for its next step
+    scheduler.cancel();
+    device.switchOff(100);
   }
 
   public LabPSU3005D getDevice() {
     return device;
   }
 
-  public final long run(LabPSU3005D device) {
+  /**
+   * Use this to time the steps of your job, it stops waiting when the automation is cancelled.
+   */
+  public StepScheduler getScheduler() {
+    return scheduler;
+  }
+
+  public boolean isCancelled() {
+    return scheduler.isCancelled();
+  }
+
+  /**
+   * Only runs the job, the port is already open and the queue takes care of a safe start and
+   * finish. Used by {@link AutomationQueue} in a persistent session.
+   */
+  final long runInSession(LabPSU3005D device) {
     long start = System.currentTimeMillis();
-    this.device = device;
-    this.before();
+    attach(device);
     this.beforeRun();
     this.job(device);
     this.afterRun();
-    this.after();
+    return System.currentTimeMillis() - start;
+  }
+
+  final void attach(LabPSU3005D device) {
+    this.device = device;
+    scheduler.reset();
+  }
+
+  public final long run(LabPSU3005D device) {
+    long start = System.currentTimeMillis();
+    this.device = device;
+    scheduler.reset();
+    this.before();
+    try {
+      this.beforeRun();
+      this.job(device);
+      this.afterRun();
+    } finally {
+      // Also when the job failed, the output has to go off
+      this.after();
+    }
     return System.currentTimeMillis() - start;
   }
 
@@ -2,18 +2,133 @@ package nl.arjenklaverstijn.software.korad;
 
 import java.util.LinkedList;
 
+/**
+ * Runs automations one after the other on the same device.
+ * <p>
+ * Normally every automation opens the port, zeroes the device, runs, zeroes again and closes the
+ * port. In a persistent session ({@link #setPersistentSession(boolean)}) the port is opened and
+ * the device zeroed once at the start. Between automations the device is zeroed again, so every
+ * automation starts the same as it would on its own, but without opening the port. At the end, or
+ * when an automation fails, the device is zeroed and the port closed once.
+ * </p>
+ * <p>
+ * In a session {@link Automation#before()} and {@link Automation#after()} set up and tear down the
+ * session: only the ones of the first and of the failed or last automation are called. Put what an
+ * automation needs every time in {@link Automation#beforeRun()} and
+ * {@link Automation#afterRun()}, those are called for every automation.
+ * </p>
+ */
 public class AutomationQueue extends LinkedList<Automation> {
 
-  private LinkedList<Automation> queue;
+  private static final long serialVersionUID = 1L;
+
+  private volatile int completed;
+  private volatile int total;
+  private boolean persistentSession;
+
+  // Timing of the last persistent session, in ms
+  private long setupTime;
+  private long teardownTime;
+  private long transitionTime;
 
   public long run(LabPSU3005D device) {
+    if (persistentSession) {
+      return runSession(device);
+    }
     long start = System.currentTimeMillis();
-    while (!queue.isEmpty()) {
-      Automation automation = queue.pop();
+    completed = 0;
+    total = size();
+    while (!isEmpty()) {
+      Automation automation = pop();
       automation.run(device);
+      completed++;
     }
     return System.currentTimeMillis() - start;
 
   }
 
+  private long runSession(LabPSU3005D device) {
+    long start = System.currentTimeMillis();
+    completed = 0;
+    total = size();
+    setupTime = 0;
+    teardownTime = 0;
+    transitionTime = 0;
+    if (isEmpty()) {
+      return 0;
+    }
+    // The automation that is responsible for shutting down when something goes wrong
+    Automation current = peek();
+    try {
+      current.attach(device);
+      long time = System.currentTimeMillis();
+      current.before();
+      setupTime = System.currentTimeMillis() - time;
+      while (!isEmpty()) {
+        Automation automation = pop();
+        if (completed > 0) {
+          time = System.currentTimeMillis();
+          // Don't let the next automation start from the settings of the one before, the output
+          // doesn't have to settle, it is set up again anyway
+          device.switchOff(0);
+          device.setCurrent(0);
+          device.setVoltage(0);
+          transitionTime += System.currentTimeMillis() - time;
+        }
+        current = automation;
+        automation.runInSession(device);
+        completed++;
+      }
+    } finally {
+      long time = System.currentTimeMillis();
+      current.after();
+      teardownTime = System.currentTimeMillis() - time;
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  /**
+   * @param persistentSession true to keep the port open for the whole queue
+   */
+  public void setPersistentSession(boolean persistentSession) {
+    this.persistentSession = persistentSession;
+  }
+
+  public boolean isPersistentSession() {
+    return persistentSession;
+  }
+
+  /**
+   * @return The number of automations finished in the current run
+   */
+  public int getCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return The number of automations in the current run
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * Without a persistent session every automation pays for the setup and teardown, in a session
+   * they are paid once and the automations in between only pay for the transition.
+   *
+   * @return The time the last persistent session saved, in ms
+   */
+  public long getSavedTime() {
+    return Math.max(0, (completed - 1) * (setupTime + teardownTime) - transitionTime);
+  }
+
+  /**
+   * @return How the time of the last persistent session was spent
+   */
+  public String getTimingReport() {
+    return "Session of " + completed + " automations: setup " + setupTime + "ms, teardown "
+        + teardownTime + "ms, transitions " + transitionTime + "ms, saved about "
+        + getSavedTime() + "ms compared to opening the port for every automation";
+  }
+
 }
@@ -0,0 +1,105 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes settings straight into one reusable buffer, so sending them doesn't create any garbage.
+ * Numbers are written from whole centivolts and milliamps with a fixed number of decimals, the
+ * way the manual shows them: VSET1:20.50 and ISET1:2.225. No float formatting, so never 5.1 or
+ * 1.0E-4.
+ * 
+ * @author arjen
+ *
+ */
+final class CommandEncoder {
+
+  static final byte[] VSET = ascii("VSET1:");
+  static final byte[] ISET = ascii("ISET1:");
+  static final byte[] OUT = ascii("OUT");
+  static final byte[] OCP = ascii("OCP");
+  static final byte[] OVP = ascii("OVP");
+  static final byte[] RCL = ascii("RCL");
+  static final byte[] SAV = ascii("SAV");
+
+  // The longest command is ISET1: with 5 digits and a dot
+  private final byte[] buffer = new byte[16];
+
+  private static byte[] ascii(String prefix) {
+    return prefix.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * @return The buffer the last command was written to, only valid until the next command
+   */
+  byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @param centivolts 0 to 3100
+   * @return The length of VSET1:X.XX
+   */
+  int voltage(int centivolts) {
+    return fixed(VSET, centivolts, 2);
+  }
+
+  /**
+   * @param milliamps 0 to 5100
+   * @return The length of ISET1:X.XXX
+   */
+  int current(int milliamps) {
+    return fixed(ISET, milliamps, 3);
+  }
+
+  /**
+   * @return The length of the prefix followed by 0 or 1, like OUT1
+   */
+  int flag(byte[] prefix, boolean onOff) {
+    int length = prefix(prefix);
+    buffer[length++] = (byte) (onOff ? '1' : '0');
+    return length;
+  }
+
+  /**
+   * @param memory 1 to 5
+   * @return The length of the prefix followed by the memory number, like RCL1
+   */
+  int memory(byte[] prefix, int memory) {
+    int length = prefix(prefix);
+    buffer[length++] = (byte) ('0' + memory);
+    return length;
+  }
+
+  private int prefix(byte[] prefix) {
+    System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+    return prefix.length;
+  }
+
+  /**
+   * Writes value / 10^decimals with exactly that many decimals.
+   */
+  private int fixed(byte[] prefix, int value, int decimals) {
+    int length = prefix(prefix);
+    int divisor = 1;
+    for (int i = 0; i < decimals; i++) {
+      divisor *= 10;
+    }
+    length = digits(value / divisor, length);
+    buffer[length++] = '.';
+    int fraction = value % divisor;
+    for (int i = decimals - 1; i >= 0; i--) {
+      buffer[length + i] = (byte) ('0' + fraction % 10);
+      fraction /= 10;
+    }
+    return length + decimals;
+  }
+
+  private int digits(int value, int offset) {
+    if (value >= 10) {
+      offset = digits(value / 10, offset);
+    }
+    buffer[offset] = (byte) ('0' + value % 10);
+    return offset + 1;
+  }
+
+}
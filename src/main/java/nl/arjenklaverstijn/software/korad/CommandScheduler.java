@@ -0,0 +1,338 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+
+/**
+ * Sends the commands for a {@link LabPSU3005D} by priority, so a kill doesn't wait behind the
+ * readbacks a logger queued. A single I/O thread takes the next command from the highest class
+ * that has one:
+ * <ul>
+ * <li>{@link Priority#SAFETY} goes in the next pacing slot, after at most the one command that is
+ * on the wire.</li>
+ * <li>{@link Priority#CONTROL} commands are sent in order.</li>
+ * <li>{@link Priority#TELEMETRY} only goes when nothing else waits. The same readback asked again
+ * while it waits gets the same reply, in a future of its own, and when more wait than the limit the oldest is dropped: its
+ * future is cancelled. A logger polling faster than the unit can answer is downsampled instead of
+ * building a backlog.</li>
+ * </ul>
+ *
+ * <pre>
+ * CommandScheduler scheduler = new CommandScheduler(device);
+ * scheduler.getOutputVoltage().thenAccept(System.out::println);
+ * // something is wrong
+ * scheduler.kill();
+ * System.out.println("kill latency " + scheduler.getKillLatency());
+ * </pre>
+ *
+ * The time from {@link #kill()} to the OUT0 leaving the computer is kept, its maximum is the worst
+ * case reaction time seen so far. It includes the command that was on the wire, which is up to 3
+ * attempts of 80ms for a query the unit doesn't answer, and a reconnect if a {@link Reconnector}
+ * is set. Commands sent to the device directly, not through the scheduler, can't be overtaken.
+ *
+ * @author arjen
+ *
+ */
+public class CommandScheduler implements AutoCloseable {
+
+  public enum Priority {
+    SAFETY,
+    CONTROL,
+    TELEMETRY
+  }
+
+  /**
+   * A command waiting for the I/O thread.
+   */
+  private static final class Task<T> {
+
+    final Priority priority;
+    // Telemetry with the same key gets the same reply, null to never share
+    final Object key;
+    final Function<LabPSU3005D, T> command;
+    final CompletableFuture<T> future = new CompletableFuture<>();
+
+    Task(Priority priority, Object key, Function<LabPSU3005D, T> command) {
+      this.priority = priority;
+      this.key = key;
+      this.command = command;
+    }
+
+  }
+
+  private final LabPSU3005D device;
+  private final Thread io;
+  private volatile boolean running = true;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition work = lock.newCondition();
+  private final Map<Priority, ArrayDeque<Task<?>>> queues = new EnumMap<>(Priority.class);
+  private int telemetryLimit = 4;
+
+  private final LatencyHistogram killLatency = new LatencyHistogram();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong shared = new AtomicLong();
+
+  /**
+   * Starts the I/O thread.
+   *
+   * @param device An open device
+   */
+  public CommandScheduler(LabPSU3005D device) {
+    this.device = device;
+    for (Priority priority : Priority.values()) {
+      queues.put(priority, new ArrayDeque<>());
+    }
+    io = new Thread(this::serve, "CommandScheduler-" + device.getTransport().getName());
+    io.setDaemon(true);
+    io.start();
+  }
+
+  /**
+   * Switches the output off and the voltage to 0, before anything else that is waiting. Control
+   * commands that were still waiting are cancelled, they were meant for before the kill. The output
+   * is switched off even if the device thinks it already is.
+   */
+  public CompletableFuture<Void> kill() {
+    long requested = System.nanoTime();
+    return schedule(Priority.SAFETY, null, device -> kill(device, requested));
+  }
+
+  private Void kill(LabPSU3005D device, long requested) {
+    synchronized (device) {
+      // Don't trust the cache, the front panel could have switched it on
+      device.invalidateCache();
+      device.setEnabled(false, 0);
+      killLatency.record(device.getPacer().getLastSend() - requested);
+      device.setVoltage(0F);
+    }
+    return null;
+  }
+
+  public CompletableFuture<Void> setVoltage(float voltage) {
+    return schedule(Priority.CONTROL, null, device -> {
+      device.setVoltage(voltage);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Void> setCurrent(float current) {
+    return schedule(Priority.CONTROL, null, device -> {
+      device.setCurrent(current);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Void> setEnabled(boolean onOff) {
+    return schedule(Priority.CONTROL, null, device -> {
+      device.setEnabled(onOff);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Float> getOutputVoltage() {
+    return schedule(Priority.TELEMETRY, Query.VOUT, LabPSU3005D::getOutputVoltage);
+  }
+
+  public CompletableFuture<Float> getOutputCurrent() {
+    return schedule(Priority.TELEMETRY, Query.IOUT, LabPSU3005D::getOutputCurrent);
+  }
+
+  public CompletableFuture<Status> getStatus() {
+    return schedule(Priority.TELEMETRY, Query.STATUS, LabPSU3005D::getStatus);
+  }
+
+  public CompletableFuture<Snapshot> getSnapshot() {
+    return schedule(Priority.TELEMETRY, Query.SNAPSHOT, LabPSU3005D::getSnapshot);
+  }
+
+  /**
+   * Runs any code on the I/O thread with the given priority. Synchronize on the device inside the
+   * job for things that have to happen in one go.
+   *
+   * @param job The code to run, gets the device
+   * @return The result of the job
+   */
+  public <T> CompletableFuture<T> execute(Priority priority, Function<LabPSU3005D, T> job) {
+    return schedule(priority, null, job);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<T> schedule(Priority priority, Object key,
+      Function<LabPSU3005D, T> command) {
+    Task<T> task = new Task<>(priority, key, command);
+    Task<?> drop = null;
+    lock.lock();
+    try {
+      if (!running) {
+        task.future.cancel(false);
+        return task.future;
+      }
+      ArrayDeque<Task<?>> queue = queues.get(priority);
+      if (priority == Priority.TELEMETRY) {
+        if (key != null) {
+          for (Task<?> waiting : queue) {
+            if (key.equals(waiting.key)) {
+              shared.incrementAndGet();
+              return follow((CompletableFuture<T>) waiting.future);
+            }
+          }
+        }
+        if (queue.size() >= telemetryLimit) {
+          drop = queue.poll();
+        }
+      }
+      queue.add(task);
+      work.signal();
+    } finally {
+      lock.unlock();
+    }
+    if (drop != null) {
+      dropped.incrementAndGet();
+      drop.future.cancel(false);
+    }
+    return (key != null) ? follow(task.future) : task.future;
+  }
+
+  /**
+   * @return A future of its own for a caller of a shared readback, cancelling it leaves the others
+   */
+  private static <T> CompletableFuture<T> follow(CompletableFuture<T> reply) {
+    CompletableFuture<T> own = new CompletableFuture<>();
+    reply.whenComplete((value, e) -> {
+      if (e == null) {
+        own.complete(value);
+      } else if (e instanceof CancellationException) {
+        own.cancel(false);
+      } else {
+        own.completeExceptionally(e);
+      }
+    });
+    return own;
+  }
+
+  // I/O thread
+
+  private void serve() {
+    while (running) {
+      Task<?> task = null;
+      ArrayDeque<Task<?>> cancelled = null;
+      lock.lock();
+      try {
+        while (running && (task = next()) == null) {
+          work.awaitUninterruptibly();
+        }
+        if (task == null) {
+          return;
+        }
+        if (task.priority == Priority.SAFETY) {
+          cancelled = queues.get(Priority.CONTROL).clone();
+          queues.get(Priority.CONTROL).clear();
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (cancelled != null) {
+        for (Task<?> control : cancelled) {
+          control.future.cancel(false);
+        }
+      }
+      run(task);
+    }
+  }
+
+  /**
+   * @return The first task of the highest class, null if nothing waits
+   */
+  private Task<?> next() {
+    for (ArrayDeque<Task<?>> queue : queues.values()) {
+      if (!queue.isEmpty()) {
+        return queue.poll();
+      }
+    }
+    return null;
+  }
+
+  private <T> void run(Task<T> task) {
+    try {
+      task.future.complete(task.command.apply(device));
+    } catch (Throwable e) {
+      // Also an Error of a job, the I/O thread has to keep serving the others
+      task.future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * @param limit How many readbacks can wait, the oldest is dropped for a new one
+   */
+  public void setTelemetryLimit(int limit) {
+    lock.lock();
+    try {
+      this.telemetryLimit = Math.max(1, limit);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return From the call to {@link #kill()} to the OUT0 written, a copy
+   */
+  public LatencyHistogram getKillLatency() {
+    return killLatency.copy();
+  }
+
+  /**
+   * @return The number of readbacks dropped because too many waited
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return The number of readbacks that got the reply of the same readback that already waited
+   */
+  public long getSharedCount() {
+    return shared.get();
+  }
+
+  /**
+   * Stops the I/O thread after the command on the wire, the commands that still wait are
+   * cancelled. Doesn't close the port.
+   */
+  @Override
+  public void close() {
+    ArrayDeque<Task<?>> waiting = new ArrayDeque<>();
+    lock.lock();
+    try {
+      if (!running) {
+        return;
+      }
+      running = false;
+      for (ArrayDeque<Task<?>> queue : queues.values()) {
+        waiting.addAll(queue);
+        queue.clear();
+      }
+      work.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (Task<?> task : waiting) {
+      task.future.cancel(false);
+    }
+    try {
+      io.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,185 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import nl.arjenklaverstijn.software.korad.Pacer.CommandType;
+
+/**
+ * A {@link Profile} turned into the exact commands to send and when to send them. Only values that
+ * change after rounding to the resolution of the device are in it, and every command is encoded
+ * already, so streaming does nothing but wait and write.
+ * 
+ * @author arjen
+ *
+ */
+public final class CompiledProfile {
+
+  private final long duration;
+  private final long step;
+  private final int samples;
+  private final long[] offsets;
+  private final byte[][] commands;
+  private final boolean[] voltages;
+  private final int[] values;
+
+  private CompiledProfile(Builder builder) {
+    this.duration = builder.duration;
+    this.step = builder.step;
+    this.samples = builder.samples;
+    this.offsets = Arrays.copyOf(builder.offsets, builder.size);
+    this.commands = Arrays.copyOf(builder.commands, builder.size);
+    this.voltages = Arrays.copyOf(builder.voltages, builder.size);
+    this.values = Arrays.copyOf(builder.values, builder.size);
+  }
+
+  /**
+   * Collects the set-points while compiling and drops the ones that don't change anything.
+   */
+  static final class Builder {
+
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final long duration;
+    private final long step;
+    private int samples;
+    private int size;
+    private long[] offsets = new long[64];
+    private byte[][] commands = new byte[64][];
+    private boolean[] voltages = new boolean[64];
+    private int[] values = new int[64];
+    private int lastCentivolts = DeviceState.UNKNOWN;
+    private int lastMilliamps = DeviceState.UNKNOWN;
+
+    Builder(long duration, long step) {
+      this.duration = duration;
+      this.step = step;
+    }
+
+    void voltage(long offset, int centivolts) {
+      samples++;
+      if (centivolts != lastCentivolts) {
+        lastCentivolts = centivolts;
+        add(offset, true, centivolts, encoder.voltage(centivolts));
+      }
+    }
+
+    void current(long offset, int milliamps) {
+      samples++;
+      if (milliamps != lastMilliamps) {
+        lastMilliamps = milliamps;
+        add(offset, false, milliamps, encoder.current(milliamps));
+      }
+    }
+
+    private void add(long offset, boolean voltage, int value, int length) {
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, size * 2);
+        commands = Arrays.copyOf(commands, size * 2);
+        voltages = Arrays.copyOf(voltages, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      offsets[size] = offset;
+      commands[size] = Arrays.copyOf(encoder.getBuffer(), length);
+      voltages[size] = voltage;
+      values[size] = value;
+      size++;
+    }
+
+    CompiledProfile build() {
+      return new CompiledProfile(this);
+    }
+
+  }
+
+  /**
+   * Sends the commands on their deadlines, counted from the moment the device is ready for the
+   * first one. A late command doesn't delay the ones after it. Returns after the duration of the
+   * profile, or right away when cancelled.
+   * 
+   * @param device An open device
+   * @param scheduler Waits for the deadlines and can cancel the stream, for example the one of an
+   *        {@link Automation}
+   * @return How well the timing was kept
+   */
+  public ProfileReport stream(LabPSU3005D device, StepScheduler scheduler) {
+    long start = Math.max(System.nanoTime(), device.getPacer().getReadyTime(CommandType.SETTING));
+    long maxLateness = 0;
+    long totalLateness = 0;
+    int sent = 0;
+    int failed = 0;
+    boolean completed = true;
+    for (int i = 0; i < offsets.length; i++) {
+      long deadline = start + offsets[i];
+      if (!scheduler.waitUntil(deadline)) {
+        completed = false;
+        break;
+      }
+      if (device.sendSetting(commands[i], voltages[i], values[i])) {
+        sent++;
+      } else {
+        failed++;
+      }
+      long lateness = device.getPacer().getLastSend() - deadline;
+      maxLateness = Math.max(maxLateness, lateness);
+      totalLateness += lateness;
+    }
+    // The last value holds until the end of the profile
+    completed = completed && scheduler.waitUntil(start + duration);
+    long achieved = System.nanoTime() - start;
+    int count = sent + failed;
+    return new ProfileReport(duration, achieved, samples, offsets.length, sent, failed,
+        maxLateness, (count == 0) ? 0 : totalLateness / count, completed);
+  }
+
+  public ProfileReport stream(LabPSU3005D device) {
+    return stream(device, new StepScheduler());
+  }
+
+  /**
+   * @return The number of commands
+   */
+  public int size() {
+    return offsets.length;
+  }
+
+  /**
+   * @return When the command is due, in ns from the start
+   */
+  public long getOffset(int i) {
+    return offsets[i];
+  }
+
+  /**
+   * @return The command as it will be sent, like VSET1:5.00
+   */
+  public String getCommand(int i) {
+    return new String(commands[i], StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * @return The time between samples of the profile, in ns
+   */
+  public long getStep() {
+    return step;
+  }
+
+  /**
+   * @return The length of the profile, in ns
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  /**
+   * @return The number of set-points that were sampled, before dropping the ones that don't change
+   */
+  public int getSampleCount() {
+    return samples;
+  }
+
+  @Override
+  public String toString() {
+    return "CompiledProfile [" + size() + " commands from " + samples + " samples, step "
+        + step / 1e6 + "ms, duration " + duration / 1e6 + "ms]";
+  }
+
+}
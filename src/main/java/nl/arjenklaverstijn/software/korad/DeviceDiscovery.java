@@ -0,0 +1,401 @@
+package nl.arjenklaverstijn.software.korad;
+
+import com.fazecast.jSerialComm.SerialPort;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Finds power supplies on the serial ports, so you don't have to hard code "COM4" and USB adapters
+ * can come back in a different order after a reboot.
+ * <p>
+ * All ports are probed at the same time with *IDN?, so a host with 16 ports takes about as long as
+ * one port that doesn't answer. Ports whose id looks like a Velleman, Korad or Tenma are kept in
+ * the cache file, by where they are plugged in (the USB location) rather than by their name. The
+ * next start only checks the cached ports, and only scans everything again when a unit is gone.
+ * </p>
+ *
+ * <pre>
+ * DeviceDiscovery discovery = new DeviceDiscovery(Paths.get("korad-ports.properties"));
+ * DeviceDiscovery.Port port = discovery.find();
+ * LabPSU3005D device = port.createDevice();
+ * device.openPort();
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
+public class DeviceDiscovery {
+
+  /**
+   * The ids we're looking for, for example VELLEMANLABPS3005DV2.0 or TENMA 72-2535 V2.0
+   */
+  public static final Pattern IDENTITY =
+      Pattern.compile("VELLEMAN|KORAD|TENMA", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * A port that might have a unit on it.
+   */
+  static final class Candidate {
+
+    final String key;
+    final String name;
+    final Supplier<Transport> transport;
+
+    /**
+     * @param key Stays the same for the same socket, even if the name changes
+     * @param name The system port name
+     * @param transport Creates the connection
+     */
+    Candidate(String key, String name, Supplier<Transport> transport) {
+      this.key = key;
+      this.name = name;
+      this.transport = transport;
+    }
+
+  }
+
+  /**
+   * A port with a power supply on it.
+   */
+  public static final class Port {
+
+    private final String key;
+    private final String name;
+    private final String identity;
+    private final Supplier<Transport> transport;
+
+    Port(Candidate candidate, String identity) {
+      this.key = candidate.key;
+      this.name = candidate.name;
+      this.identity = identity;
+      this.transport = candidate.transport;
+    }
+
+    /**
+     * @return Where the port is plugged in, the key in the cache
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return The system port name, like COM4 or ttyUSB0
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return The *IDN? reply
+     */
+    public String getIdentity() {
+      return identity;
+    }
+
+    /**
+     * @return A device on this port. Opening and closing is left up to the user.
+     */
+    public LabPSU3005D createDevice() {
+      return new LabPSU3005D(transport.get());
+    }
+
+    @Override
+    public String toString() {
+      return identity + " on " + name + " (" + key + ")";
+    }
+
+  }
+
+  private final Supplier<List<Candidate>> ports;
+  private final Path cacheFile;
+  // key -> identity
+  private final Properties cache = new Properties();
+  private long probeTimeout = TimeUnit.SECONDS.toNanos(1);
+
+  private long lastDuration;
+  private int lastProbeCount;
+  private boolean lastFromCache;
+  private boolean debug = false;
+
+  /**
+   * Discovery without a cache file, only later calls on this object use the cache.
+   */
+  public DeviceDiscovery() {
+    this(null);
+  }
+
+  /**
+   * @param cacheFile Where to keep the cache between runs, it is created when needed
+   */
+  public DeviceDiscovery(Path cacheFile) {
+    this(DeviceDiscovery::serialPorts, cacheFile);
+  }
+
+  DeviceDiscovery(Supplier<List<Candidate>> ports, Path cacheFile) {
+    this.ports = ports;
+    this.cacheFile = cacheFile;
+    load();
+  }
+
+  /**
+   * @return All serial ports on this host
+   */
+  private static List<Candidate> serialPorts() {
+    List<Candidate> candidates = new ArrayList<>();
+    for (SerialPort port : SerialPort.getCommPorts()) {
+      String name = port.getSystemPortName();
+      candidates.add(new Candidate(key(port), name, () -> new SerialPortTransport(name)));
+    }
+    return candidates;
+  }
+
+  /**
+   * The location is the USB bus and port the adapter is plugged in to, which doesn't change when
+   * the system gives it another name. Not every platform knows it, then the name has to do.
+   */
+  private static String key(SerialPort port) {
+    String location = port.getPortLocation();
+    if (location == null || location.isEmpty() || location.equals("0-0")) {
+      return port.getSystemPortName();
+    }
+    return location + " " + port.getPortDescription();
+  }
+
+  /**
+   * Finds the power supplies. When all cached units answer on their cached ports nothing else is
+   * probed, otherwise all ports are probed and the cache is replaced.
+   *
+   * @return The ports with a power supply, empty if there are none
+   */
+  public synchronized List<Port> discover() {
+    long start = System.nanoTime();
+    List<Candidate> candidates = ports.get();
+    List<Port> found = null;
+    lastFromCache = false;
+    lastProbeCount = 0;
+    if (!cache.isEmpty()) {
+      found = verifyCached(candidates);
+      lastFromCache = found != null;
+    }
+    if (found == null) {
+      found = probe(candidates);
+      cache.clear();
+      for (Port port : found) {
+        cache.setProperty(port.key, port.identity);
+      }
+      save();
+    }
+    lastDuration = System.nanoTime() - start;
+    return found;
+  }
+
+  /**
+   * @return The first power supply found, or null if there is none
+   */
+  public Port find() {
+    List<Port> found = discover();
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * @return The cached ports, or null if one of them is gone or has another unit on it
+   */
+  private List<Port> verifyCached(List<Candidate> candidates) {
+    List<Candidate> cached = new ArrayList<>();
+    for (Candidate candidate : candidates) {
+      if (cache.containsKey(candidate.key)) {
+        cached.add(candidate);
+      }
+    }
+    if (cached.size() != cache.size()) {
+      return null;
+    }
+    List<Port> found = probe(cached);
+    if (found.size() != cached.size()) {
+      return null;
+    }
+    for (Port port : found) {
+      if (!port.identity.equals(cache.getProperty(port.key))) {
+        return null;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Probes all candidates at the same time, each on its own thread. A port that hangs is given up
+   * on after the probe timeout and closed, so it can be opened again.
+   *
+   * @return The candidates with a power supply, in the order of the candidates
+   */
+  private List<Port> probe(List<Candidate> candidates) {
+    lastProbeCount += candidates.size();
+    if (candidates.isEmpty()) {
+      return Collections.emptyList();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(candidates.size(), r -> {
+      Thread thread = new Thread(r, "DeviceDiscovery");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      Map<Candidate, CompletableFuture<String>> probes = new LinkedHashMap<>();
+      Map<Candidate, Transport> transports = new HashMap<>();
+      // Set once the deadline has passed, a probe that only gets a port open after that closes it
+      AtomicBoolean late = new AtomicBoolean();
+      for (Candidate candidate : candidates) {
+        Transport transport = candidate.transport.get();
+        transports.put(candidate, transport);
+        probes.put(candidate,
+            CompletableFuture.supplyAsync(() -> identify(transport, late), executor));
+      }
+      long deadline = System.nanoTime() + probeTimeout;
+      List<Port> found = new ArrayList<>();
+      for (Map.Entry<Candidate, CompletableFuture<String>> probe : probes.entrySet()) {
+        String identity = null;
+        try {
+          identity = probe.getValue().get(Math.max(0, deadline - System.nanoTime()),
+              TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          // Not one that answers in time, give the port back
+          late.set(true);
+          transports.get(probe.getKey()).close();
+        } catch (ExecutionException e) {
+          // Not a power supply
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          late.set(true);
+          giveUp(probes, transports);
+          break;
+        }
+        if (identity != null && IDENTITY.matcher(identity).find()) {
+          found.add(new Port(probe.getKey(), identity));
+        }
+      }
+      return found;
+    } finally {
+      // Threads stuck in a port are daemons, they can't hold up the exit
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Closes the ports of the probes that aren't done.
+   */
+  private static void giveUp(Map<Candidate, CompletableFuture<String>> probes,
+      Map<Candidate, Transport> transports) {
+    for (Map.Entry<Candidate, CompletableFuture<String>> probe : probes.entrySet()) {
+      if (!probe.getValue().isDone()) {
+        transports.get(probe.getKey()).close();
+      }
+    }
+  }
+
+  /**
+   * @param late Set when the caller stopped waiting
+   * @return The *IDN? reply, empty if nothing answered or null if the port couldn't be opened
+   */
+  private static String identify(Transport transport, AtomicBoolean late) {
+    if (!transport.open()) {
+      return null;
+    }
+    try {
+      if (late.get()) {
+        return null;
+      }
+      return new LabPSU3005D(transport).getId().trim();
+    } finally {
+      transport.close();
+    }
+  }
+
+  private void load() {
+    if (cacheFile == null || !Files.exists(cacheFile)) {
+      return;
+    }
+    try (Reader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+      cache.load(reader);
+    } catch (IOException e) {
+      // Only costs a full scan
+      cache.clear();
+    }
+  }
+
+  private void save() {
+    if (cacheFile == null) {
+      return;
+    }
+    try (Writer writer = Files.newBufferedWriter(cacheFile, StandardCharsets.UTF_8)) {
+      cache.store(writer, "Power supplies found by DeviceDiscovery, port location = *IDN?");
+    } catch (IOException e) {
+      // Only costs a full scan next time
+      log("ERROR could not save " + cacheFile + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Forgets the cached ports, the next discovery probes all ports.
+   */
+  public synchronized void clearCache() {
+    cache.clear();
+    save();
+  }
+
+  /**
+   * @param timeout How long to wait for the probes, ports that didn't answer by then are skipped
+   */
+  public void setProbeTimeout(long timeout, TimeUnit unit) {
+    this.probeTimeout = unit.toNanos(timeout);
+  }
+
+  /**
+   * @return How long the last discovery took, in ns
+   */
+  public long getLastDuration() {
+    return lastDuration;
+  }
+
+  /**
+   * @return The number of ports probed in the last discovery
+   */
+  public int getLastProbeCount() {
+    return lastProbeCount;
+  }
+
+  /**
+   * @return true if the last discovery only had to check the cached ports
+   */
+  public boolean isLastFromCache() {
+    return lastFromCache;
+  }
+
+  public void setDebug(boolean debug) {
+    this.debug = debug;
+  }
+
+  private void log(String string) {
+    if (debug)
+      System.out.println(string);
+  }
+
+}
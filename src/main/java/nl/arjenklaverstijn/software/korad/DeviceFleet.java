@@ -0,0 +1,230 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Controls a rack of power supplies at once. Every device gets its own I/O thread (an
+ * {@link AsyncLabPSU3005D}), so the devices run their {@link AutomationQueue}s in parallel and a
+ * slow device doesn't hold up the others.
+ *
+ * <pre>
+ * DeviceFleet fleet = new DeviceFleet();
+ * fleet.add("left", new LabPSU3005D("COM4"));
+ * fleet.add("right", new LabPSU3005D("COM5"));
+ * fleet.openAll().join();
+ * fleet.run("left", leftQueue);
+ * fleet.run("right", rightQueue);
+ * fleet.awaitAll().join();
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
+public class DeviceFleet implements AutoCloseable {
+
+  // Time given to every device to get ready for a synchronized command, longer than any pacing gap
+  private static final long SYNC_LEAD = Pacer.INITIAL_GAP * 2;
+  // A device locked later than this after the deadline is skipped, its OUT would be too late
+  private static final long SYNC_TOLERANCE = Pacer.INITIAL_GAP;
+  private static final long SKIPPED = Long.MIN_VALUE;
+
+  private final Map<String, AsyncLabPSU3005D> devices = new LinkedHashMap<>();
+  private final Map<String, AutomationQueue> queues = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<Long>> runs = new ConcurrentHashMap<>();
+  private final ExecutorService switcher = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "DeviceFleet-switch");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Adds a device, it gets its own I/O thread.
+   *
+   * @param name A name to refer to the device
+   * @param device The device
+   */
+  public synchronized void add(String name, LabPSU3005D device) {
+    if (devices.containsKey(name)) {
+      throw new IllegalArgumentException("There already is a device called " + name);
+    }
+    devices.put(name, new AsyncLabPSU3005D(device));
+  }
+
+  public synchronized AsyncLabPSU3005D get(String name) {
+    AsyncLabPSU3005D device = devices.get(name);
+    if (device == null) {
+      throw new IllegalArgumentException("No device called " + name);
+    }
+    return device;
+  }
+
+  public synchronized List<String> getNames() {
+    return new ArrayList<>(devices.keySet());
+  }
+
+  public CompletableFuture<Map<String, Boolean>> openAll() {
+    return forAll(AsyncLabPSU3005D::openPort);
+  }
+
+  public CompletableFuture<Map<String, Boolean>> closeAll() {
+    return forAll(AsyncLabPSU3005D::closePort);
+  }
+
+  /**
+   * Runs a queue on a device, on the I/O thread of that device. Commands sent to the device
+   * through the fleet wait until the queue is done, except {@link #setEnabledAll(boolean)}.
+   *
+   * @param name The device
+   * @param queue The automations to run
+   * @return The time it took in ms
+   */
+  public CompletableFuture<Long> run(String name, AutomationQueue queue) {
+    queues.put(name, queue);
+    CompletableFuture<Long> run = get(name).execute(queue::run);
+    runs.put(name, run);
+    return run;
+  }
+
+  /**
+   * @return Completes when all queues that were started are done, with the time per device in ms
+   */
+  public CompletableFuture<Map<String, Long>> awaitAll() {
+    Map<String, CompletableFuture<Long>> started = new LinkedHashMap<>(runs);
+    return CompletableFuture.allOf(started.values().toArray(new CompletableFuture<?>[0]))
+        .thenApply(ignored -> {
+          Map<String, Long> times = new LinkedHashMap<>();
+          started.forEach((name, run) -> times.put(name, run.join()));
+          return times;
+        });
+  }
+
+  /**
+   * @return The fraction of all queued automations that are done, over all devices
+   */
+  public double getProgress() {
+    int completed = 0;
+    int total = 0;
+    for (AutomationQueue queue : queues.values()) {
+      completed += queue.getCompleted();
+      total += queue.getTotal();
+    }
+    return (total == 0) ? 0 : (double) completed / total;
+  }
+
+  /**
+   * @return Per device the number of automations done and the number queued
+   */
+  public Map<String, int[]> getProgressPerDevice() {
+    Map<String, int[]> progress = new LinkedHashMap<>();
+    queues.forEach((name, queue) -> progress.put(name,
+        new int[] {queue.getCompleted(), queue.getTotal()}));
+    return Collections.unmodifiableMap(progress);
+  }
+
+  /**
+   * Takes a snapshot of every device, in parallel.
+   *
+   * @return The snapshot per device
+   */
+  public CompletableFuture<Map<String, Snapshot>> getSnapshots() {
+    return forAll(AsyncLabPSU3005D::getSnapshot);
+  }
+
+  /**
+   * Switches the output of all devices at the same moment. Every device gets a thread that waits
+   * for a shared deadline and then sends OUT, so the devices switch as close together as the serial
+   * ports allow. This doesn't wait for running queues, it only needs the device lock.
+   * <p>
+   * A device that can't be locked by the deadline, because a queue or another thread holds it, would
+   * switch late. It is skipped: no OUT is sent to it, also not once the lock is free, and the result
+   * fails with an {@link IllegalStateException} that names it. The other devices do switch.
+   * </p>
+   *
+   * @param onOff On or off
+   * @return The time between the first and the last device switching, in ns
+   */
+  public CompletableFuture<Long> setEnabledAll(boolean onOff) {
+    long deadline = System.nanoTime() + SYNC_LEAD;
+    return forAll(device -> CompletableFuture
+        .supplyAsync(() -> switchAt(device.getDevice(), onOff, deadline), switcher)
+        // Don't wait for a thread that is still waiting for the lock, it will skip anyway
+        .completeOnTimeout(SKIPPED, SYNC_LEAD + SYNC_TOLERANCE + 2 * Pacer.MAX_GAP,
+            TimeUnit.NANOSECONDS))
+        .thenApply(sent -> {
+          List<String> skipped = new ArrayList<>();
+          long first = Long.MAX_VALUE;
+          long last = Long.MIN_VALUE;
+          for (Map.Entry<String, Long> device : sent.entrySet()) {
+            long time = device.getValue();
+            if (time == SKIPPED) {
+              skipped.add(device.getKey());
+            } else {
+              first = Math.min(first, time);
+              last = Math.max(last, time);
+            }
+          }
+          if (!skipped.isEmpty()) {
+            throw new IllegalStateException(
+                "Couldn't lock " + skipped + " in time, only the other devices were switched");
+          }
+          return sent.isEmpty() ? 0 : last - first;
+        });
+  }
+
+  private static long switchAt(LabPSU3005D psu, boolean onOff, long deadline) {
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+    }
+    synchronized (psu) {
+      if (System.nanoTime() - deadline > SYNC_TOLERANCE) {
+        return SKIPPED;
+      }
+      // Always send, the skew is measured from the OUT command of every device
+      psu.invalidateOutput();
+      psu.setEnabled(onOff, 0);
+      return psu.getPacer().getLastSend();
+    }
+  }
+
+  /**
+   * Sends the same command to every device in parallel.
+   */
+  private synchronized <T> CompletableFuture<Map<String, T>> forAll(
+      Function<AsyncLabPSU3005D, CompletableFuture<T>> command) {
+    Map<String, CompletableFuture<T>> results = new LinkedHashMap<>();
+    devices.forEach((name, device) -> results.put(name, command.apply(device)));
+    return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0]))
+        .thenApply(ignored -> {
+          Map<String, T> values = new LinkedHashMap<>();
+          results.forEach((name, result) -> values.put(name, result.join()));
+          return values;
+        });
+  }
+
+  /**
+   * Stops the I/O threads once their work is done. Doesn't close the ports.
+   */
+  @Override
+  public synchronized void close() {
+    switcher.shutdown();
+    devices.values().forEach(AsyncLabPSU3005D::close);
+  }
+
+  @Override
+  public String toString() {
+    return "DeviceFleet " + getNames() + String.format(", %.0f%% done", getProgress() * 100);
+  }
+
+}
@@ -0,0 +1,557 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares one {@link LabPSU3005D} with any number of programs over TCP, so a dashboard, a logger and
+ * a test script can use the same unit without fighting over the serial port.
+ * <p>
+ * The protocol is the one of the unit itself, one command per line, and every command gets one
+ * line back, in order. Settings are answered with OK, queries with the value and anything that
+ * went wrong with ERR and the reason:
+ * </p>
+ *
+ * <pre>
+ * VSET1:5.00      OK
+ * ISET1:1.000     OK
+ * OUT1            OK
+ * VOUT1?          5.00
+ * IOUT1?          0.500
+ * STATUS?         81
+ * SNAPSHOT?       5.00 0.500 81
+ * *IDN?           VELLEMANLABPS3005DV2.0
+ * </pre>
+ *
+ * Also VSET1?, ISET1?, OCP&lt;0|1&gt;, OVP&lt;0|1&gt; and RCL&lt;1-5&gt;.
+ * <p>
+ * One selector thread serves all clients, one device thread owns the device. Settings go before
+ * queries, so clients reading telemetry can't hold up the ones in control, and the same query
+ * asked by several clients at the same time is sent to the unit once and the reply goes to all of
+ * them. Every client has its own rate limit, a command over the limit is answered with ERR rate
+ * limit right away. A client that keeps sending without reading the replies is disconnected.
+ * </p>
+ * <p>
+ * The device can still be used directly while the gateway runs, those commands take turns with the
+ * device thread.
+ * </p>
+ *
+ * <pre>
+ * DeviceGateway gateway = new DeviceGateway(device, new InetSocketAddress(5025));
+ * gateway.start();
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
+public class DeviceGateway implements AutoCloseable {
+
+  private static final int MAX_LINE = 128;
+  // A client that sends more than this without reading the replies is cut off
+  private static final int MAX_PENDING = 256;
+  private static final int MAX_OUT = 64 * 1024;
+
+  /**
+   * A command of one client, answered by the device thread.
+   */
+  private static final class Request {
+
+    final Client client;
+    final String command;
+    volatile String reply;
+
+    Request(Client client, String command) {
+      this.client = client;
+      this.command = command;
+    }
+
+  }
+
+  /**
+   * Only touched by the selector thread, except for the replies of its requests.
+   */
+  private static final class Client {
+
+    final SocketChannel channel;
+    final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+    final ArrayDeque<Request> requests = new ArrayDeque<>();
+    ByteBuffer out = ByteBuffer.allocate(0);
+    // token bucket
+    double tokens;
+    long refilled = System.nanoTime();
+
+    Client(SocketChannel channel, double tokens) {
+      this.channel = channel;
+      this.tokens = tokens;
+    }
+
+  }
+
+  private final LabPSU3005D device;
+  private final InetSocketAddress address;
+  private Selector selector;
+  private ServerSocketChannel server;
+  private Thread selectorThread;
+  private Thread deviceThread;
+  private volatile boolean running;
+
+  // Clients with replies to write, from the device thread to the selector thread
+  private final ConcurrentLinkedQueue<Client> replied = new ConcurrentLinkedQueue<>();
+
+  // Work for the device thread
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition work = lock.newCondition();
+  private final ArrayDeque<Request> settings = new ArrayDeque<>();
+  // Waiting queries by command, the same query is sent once for all of them
+  private final LinkedHashMap<String, List<Request>> queries = new LinkedHashMap<>();
+
+  private volatile double rate = 50;
+  private volatile double burst = 10;
+
+  private final AtomicInteger clients = new AtomicInteger();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong transactions = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong rateLimited = new AtomicLong();
+  private final AtomicLong overflowed = new AtomicLong();
+
+  /**
+   * @param device An open device
+   * @param address Where to listen, port 0 picks a free port
+   */
+  public DeviceGateway(LabPSU3005D device, InetSocketAddress address) {
+    this.device = device;
+    this.address = address;
+  }
+
+  /**
+   * Starts listening.
+   */
+  public synchronized void start() throws IOException {
+    if (running) {
+      throw new IllegalStateException("Already started");
+    }
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(address);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    running = true;
+    String name = device.getTransport().getName();
+    selectorThread = new Thread(this::select, "DeviceGateway-" + name);
+    selectorThread.setDaemon(true);
+    deviceThread = new Thread(this::serve, "DeviceGateway-" + name + "-device");
+    deviceThread.setDaemon(true);
+    deviceThread.start();
+    selectorThread.start();
+  }
+
+  /**
+   * @return The port the gateway listens on
+   */
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * @param commandsPerSecond How many commands a client can send per second on average
+   * @param burst How many commands a client can send at once
+   */
+  public void setRateLimit(double commandsPerSecond, int burst) {
+    this.rate = commandsPerSecond;
+    this.burst = burst;
+  }
+
+  // selector thread
+
+  private void select() {
+    try {
+      while (running) {
+        selector.select();
+        Client client;
+        while ((client = replied.poll()) != null) {
+          flush(client);
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              if (key.isReadable()) {
+                read(key);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write((Client) key.attachment());
+              }
+            }
+          } catch (IOException e) {
+            disconnect(key);
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      // closed
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    channel.register(selector, SelectionKey.OP_READ, new Client(channel, burst));
+    clients.incrementAndGet();
+  }
+
+  private void read(SelectionKey key) throws IOException {
+    Client client = (Client) key.attachment();
+    if (client.channel.read(client.in) < 0) {
+      disconnect(key);
+      return;
+    }
+    ByteBuffer in = client.in;
+    int start = 0;
+    for (int i = 0; i < in.position(); i++) {
+      if (in.get(i) == '\n') {
+        String line = new String(in.array(), start, i - start, StandardCharsets.US_ASCII).trim();
+        start = i + 1;
+        if (!line.isEmpty() && !received(client, line)) {
+          disconnect(key);
+          return;
+        }
+      }
+    }
+    if (start == 0 && !in.hasRemaining()) {
+      // No room left and no end of line, not our protocol
+      disconnect(key);
+      return;
+    }
+    // Keep the start of the next line
+    in.limit(in.position()).position(start);
+    in.compact();
+    flush(client);
+  }
+
+  /**
+   * @return false if the client has too many commands waiting, it gets disconnected
+   */
+  private boolean received(Client client, String line) {
+    if (client.requests.size() >= MAX_PENDING) {
+      overflowed.incrementAndGet();
+      return false;
+    }
+    requestCount.incrementAndGet();
+    Request request = new Request(client, line.toUpperCase());
+    client.requests.add(request);
+    if (!take(client)) {
+      rateLimited.incrementAndGet();
+      request.reply = "ERR rate limit";
+      return true;
+    }
+    lock.lock();
+    try {
+      if (request.command.endsWith("?")) {
+        List<Request> waiting = queries.computeIfAbsent(request.command, c -> new ArrayList<>());
+        if (!waiting.isEmpty()) {
+          coalesced.incrementAndGet();
+        }
+        waiting.add(request);
+      } else {
+        settings.add(request);
+      }
+      work.signal();
+    } finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  /**
+   * @return false if the client is over its rate limit
+   */
+  private boolean take(Client client) {
+    long now = System.nanoTime();
+    client.tokens = Math.min(burst, client.tokens + (now - client.refilled) * rate / 1e9);
+    client.refilled = now;
+    if (client.tokens < 1) {
+      return false;
+    }
+    client.tokens--;
+    return true;
+  }
+
+  /**
+   * Writes the replies that are ready, in the order the commands came in.
+   */
+  private void flush(Client client) {
+    SelectionKey key = client.channel.keyFor(selector);
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    StringBuilder text = new StringBuilder();
+    Request request;
+    while ((request = client.requests.peek()) != null && request.reply != null) {
+      client.requests.poll();
+      text.append(request.reply).append('\n');
+    }
+    if (text.length() > 0) {
+      if (client.out.remaining() + text.length() > MAX_OUT) {
+        // Not reading its replies
+        overflowed.incrementAndGet();
+        disconnect(key);
+        return;
+      }
+      byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+      ByteBuffer out = ByteBuffer.allocate(client.out.remaining() + bytes.length);
+      out.put(client.out).put(bytes).flip();
+      client.out = out;
+    }
+    try {
+      write(client);
+    } catch (IOException e) {
+      disconnect(key);
+    }
+  }
+
+  private void write(Client client) throws IOException {
+    client.channel.write(client.out);
+    SelectionKey key = client.channel.keyFor(selector);
+    // Only ask for writability while the socket is full
+    key.interestOps(client.out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+        : SelectionKey.OP_READ);
+  }
+
+  private void disconnect(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // gone anyway
+    }
+    if (key.attachment() instanceof Client) {
+      clients.decrementAndGet();
+    }
+  }
+
+  // device thread
+
+  private void serve() {
+    while (running) {
+      List<Request> batch;
+      String command;
+      lock.lock();
+      try {
+        while (running && settings.isEmpty() && queries.isEmpty()) {
+          work.awaitUninterruptibly();
+        }
+        if (!running) {
+          return;
+        }
+        if (!settings.isEmpty()) {
+          Request setting = settings.poll();
+          command = setting.command;
+          batch = List.of(setting);
+        } else {
+          Iterator<Map.Entry<String, List<Request>>> oldest = queries.entrySet().iterator();
+          Map.Entry<String, List<Request>> entry = oldest.next();
+          oldest.remove();
+          command = entry.getKey();
+          batch = entry.getValue();
+        }
+      } finally {
+        lock.unlock();
+      }
+      String reply;
+      try {
+        reply = execute(command);
+      } catch (Throwable e) {
+        // Whatever went wrong, the thread has to keep serving the others
+        String reason = e.getMessage();
+        reply = "ERR " + ((reason != null) ? reason : e.getClass().getSimpleName());
+      }
+      transactions.incrementAndGet();
+      for (Request request : batch) {
+        request.reply = reply;
+        replied.add(request.client);
+      }
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Runs one command on the device.
+   *
+   * @return The reply line
+   */
+  private String execute(String command) {
+    switch (command) {
+      case "VOUT1?":
+        return volts(device.getOutputMillivolts());
+      case "IOUT1?":
+        return amps(device.getOutputMilliamps());
+      case "VSET1?":
+        return volts(device.getSetMillivolts());
+      case "ISET1?":
+        return amps(device.getSetMilliamps());
+      case "STATUS?":
+        return Integer.toString(device.getStatus().getRaw() & 0xFF);
+      case "SNAPSHOT?":
+        Snapshot snapshot = device.getSnapshot();
+        // The same fixed point as the unit, not the decimal comma of the host
+        return volts(Math.round(snapshot.getVoltage() * 1000)) + " "
+            + amps(Math.round(snapshot.getCurrent() * 1000)) + " "
+            + (snapshot.getStatus().getRaw() & 0xFF);
+      case "*IDN?":
+        return device.getId().trim();
+      case "OUT0":
+      case "OUT1":
+        device.setEnabled(command.endsWith("1"));
+        return "OK";
+      case "OCP0":
+      case "OCP1":
+        device.setOCP(command.endsWith("1"));
+        return "OK";
+      case "OVP0":
+      case "OVP1":
+        device.setOVP(command.endsWith("1"));
+        return "OK";
+      default:
+        break;
+    }
+    if (command.startsWith("VSET1:") || command.startsWith("ISET1:")) {
+      byte[] bytes = command.getBytes(StandardCharsets.US_ASCII);
+      int value = LabPSU3005D.parseFixed(bytes, 6, bytes.length - 6, 3);
+      if (!LabPSU3005D.isValidReadback(value)) {
+        return "ERR bad value";
+      }
+      if (command.charAt(0) == 'V') {
+        device.setVoltageMillivolts(value);
+      } else {
+        device.setCurrentMilliamps(value);
+      }
+      return "OK";
+    }
+    if (command.matches("RCL[1-5]")) {
+      device.recalPreset(command.charAt(3) - '0');
+      return "OK";
+    }
+    return "ERR unknown command";
+  }
+
+  private static String volts(int millivolts) {
+    if (!LabPSU3005D.isValidReadback(millivolts)) {
+      return "ERR no reply";
+    }
+    return String.format(Locale.ROOT, "%d.%02d", millivolts / 1000, millivolts % 1000 / 10);
+  }
+
+  private static String amps(int milliamps) {
+    if (!LabPSU3005D.isValidReadback(milliamps)) {
+      return "ERR no reply";
+    }
+    return String.format(Locale.ROOT, "%d.%03d", milliamps / 1000, milliamps % 1000);
+  }
+
+  /**
+   * Stops listening and disconnects all clients. Commands that were waiting are dropped, the
+   * device stays open.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!running) {
+      return;
+    }
+    running = false;
+    lock.lock();
+    try {
+      work.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    selector.wakeup();
+    try {
+      selectorThread.join(TimeUnit.SECONDS.toMillis(1));
+      deviceThread.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (SelectionKey key : selector.keys()) {
+      key.channel().close();
+    }
+    selector.close();
+    server.close();
+  }
+
+  /**
+   * @return The number of connected clients
+   */
+  public int getClientCount() {
+    return clients.get();
+  }
+
+  /**
+   * @return The number of commands received from all clients
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return The number of commands sent to the device, less than the requests when queries were
+   *         shared
+   */
+  public long getTransactionCount() {
+    return transactions.get();
+  }
+
+  /**
+   * @return The number of queries that were answered with the reply to someone else's query
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return The number of commands refused because a client went over its rate limit
+   */
+  public long getRateLimitedCount() {
+    return rateLimited.get();
+  }
+
+  /**
+   * @return The number of clients cut off for having too many commands or replies waiting
+   */
+  public long getOverflowCount() {
+    return overflowed.get();
+  }
+
+}
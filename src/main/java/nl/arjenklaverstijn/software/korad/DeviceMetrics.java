@@ -0,0 +1,292 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what goes over the wire for one {@link LabPSU3005D}: round trip times per query, time
+ * spent waiting for the pacer, bytes in and out and everything that went wrong. Recording doesn't
+ * create garbage, so it is always on.
+ * <p>
+ * Read the values live, take a {@link #snapshot()}, or {@link #register(String)} them with the
+ * platform MBean server to watch all ports from a JMX client.
+ * </p>
+ * 
+ * @author arjen
+ *
+ */
+public class DeviceMetrics implements DeviceMetricsMXBean {
+
+  public static final String DOMAIN = "nl.arjenklaverstijn.korad";
+
+  private static final Query[] QUERIES = Query.values();
+
+  private static final int COMMANDS = 0;
+  private static final int BYTES_WRITTEN = 1;
+  private static final int BYTES_READ = 2;
+  private static final int TIMEOUTS = 3;
+  private static final int READ_ERRORS = 4;
+  private static final int SHORT_WRITES = 5;
+  private static final int INCOMPLETE_REPLIES = 6;
+  private static final int INVALID_REPLIES = 7;
+  private static final int SHARED_REPLIES = 8;
+  private static final int COUNTERS = 9;
+
+  // Only the thread talking to the device writes, so lazySet is enough. Except for the shared
+  // replies, those are counted by the threads that waited.
+  private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+  private final LatencyHistogram pacingWait = new LatencyHistogram();
+  private final LatencyHistogram[] roundTrips = new LatencyHistogram[QUERIES.length];
+
+  private ObjectName objectName;
+
+  DeviceMetrics() {
+    for (int i = 0; i < roundTrips.length; i++) {
+      roundTrips[i] = new LatencyHistogram();
+    }
+  }
+
+  private void add(int counter, long value) {
+    counters.lazySet(counter, counters.get(counter) + value);
+  }
+
+  void sent(int written, int length, long waitedNanos) {
+    add(COMMANDS, 1);
+    pacingWait.record(waitedNanos);
+    if (written > 0) {
+      add(BYTES_WRITTEN, written);
+    }
+    if (written != length) {
+      add(SHORT_WRITES, 1);
+    }
+  }
+
+  void received(int bytes) {
+    add(BYTES_READ, bytes);
+  }
+
+  void timeout() {
+    add(TIMEOUTS, 1);
+  }
+
+  void readError() {
+    add(READ_ERRORS, 1);
+  }
+
+  void incompleteReply() {
+    add(INCOMPLETE_REPLIES, 1);
+  }
+
+  void shared() {
+    counters.incrementAndGet(SHARED_REPLIES);
+  }
+
+  void replied(Query query, long roundTripNanos, boolean valid) {
+    roundTrips[query.ordinal()].record(roundTripNanos);
+    if (!valid) {
+      add(INVALID_REPLIES, 1);
+    }
+  }
+
+  /**
+   * Makes the metrics visible over JMX as nl.arjenklaverstijn.korad:type=LabPSU3005D,name=...
+   * 
+   * @param name Tells the devices apart, for example the port name
+   */
+  public synchronized void register(String name) {
+    unregister();
+    try {
+      ObjectName objectName =
+          new ObjectName(DOMAIN + ":type=LabPSU3005D,name=" + ObjectName.quote(name));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        // Left behind by an earlier instance for the same port
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (JMException e) {
+      throw new IllegalStateException("Could not register the metrics for " + name, e);
+    }
+  }
+
+  public synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      // already gone
+    }
+    objectName = null;
+  }
+
+  /**
+   * @return The name it is registered under, null if it isn't
+   */
+  public synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+
+  /**
+   * @return A copy of all values at this moment
+   */
+  public MetricsSnapshot snapshot() {
+    long[] values = new long[COUNTERS];
+    for (int i = 0; i < COUNTERS; i++) {
+      values[i] = counters.get(i);
+    }
+    Map<String, LatencyHistogram> copies = new LinkedHashMap<>();
+    for (Query query : QUERIES) {
+      copies.put(query.name(), roundTrips[query.ordinal()].copy());
+    }
+    return new MetricsSnapshot(System.currentTimeMillis(), values[COMMANDS], values[BYTES_WRITTEN],
+        values[BYTES_READ], values[TIMEOUTS], values[READ_ERRORS], values[SHORT_WRITES],
+        values[INCOMPLETE_REPLIES], values[INVALID_REPLIES], pacingWait.copy(), copies);
+  }
+
+  @Override
+  public long getCommandCount() {
+    return counters.get(COMMANDS);
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return counters.get(BYTES_WRITTEN);
+  }
+
+  @Override
+  public long getBytesRead() {
+    return counters.get(BYTES_READ);
+  }
+
+  /**
+   * @return Reads that got nothing at all within the read timeout
+   */
+  @Override
+  public long getTimeouts() {
+    return counters.get(TIMEOUTS);
+  }
+
+  /**
+   * @return Reads that failed, usually an adapter that was unplugged
+   */
+  @Override
+  public long getReadErrors() {
+    return counters.get(READ_ERRORS);
+  }
+
+  @Override
+  public long getShortWrites() {
+    return counters.get(SHORT_WRITES);
+  }
+
+  /**
+   * @return Replies that had fewer bytes than expected
+   */
+  @Override
+  public long getIncompleteReplies() {
+    return counters.get(INCOMPLETE_REPLIES);
+  }
+
+  /**
+   * @return Replies with the wrong length or that weren't a number, each one causes a retry
+   */
+  @Override
+  public long getInvalidReplies() {
+    return counters.get(INVALID_REPLIES);
+  }
+
+  /**
+   * @return Queries that didn't go to the device because another thread was asking the same
+   */
+  @Override
+  public long getSharedReplies() {
+    return counters.get(SHARED_REPLIES);
+  }
+
+  @Override
+  public double getPacingWaitMillis() {
+    return pacingWait.getTotal() / 1e6;
+  }
+
+  @Override
+  public double getMeanPacingWaitMillis() {
+    return pacingWait.getMean() / 1e6;
+  }
+
+  /**
+   * @return The time commands waited for the pacer
+   */
+  public LatencyHistogram getPacingWait() {
+    return pacingWait;
+  }
+
+  /**
+   * @param query The name of the query, for example VOUT or SNAPSHOT
+   * @return The time from sending the query until the reply was complete
+   */
+  public LatencyHistogram getRoundTrip(String query) {
+    return roundTrips[Query.valueOf(query).ordinal()];
+  }
+
+  @Override
+  public Map<String, Long> getRoundTripCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (Query query : QUERIES) {
+      counts.put(query.name(), roundTrips[query.ordinal()].getCount());
+    }
+    return Collections.unmodifiableMap(counts);
+  }
+
+  @Override
+  public Map<String, Double> getRoundTripMeanMillis() {
+    return perQuery(histogram -> histogram.getMean() / 1e6);
+  }
+
+  @Override
+  public Map<String, Double> getRoundTrip99thPercentileMillis() {
+    return perQuery(histogram -> histogram.getPercentile(99) / 1e6);
+  }
+
+  @Override
+  public Map<String, Double> getRoundTripMaxMillis() {
+    return perQuery(histogram -> histogram.getMax() / 1e6);
+  }
+
+  private Map<String, Double> perQuery(ToDoubleFunction<LatencyHistogram> value) {
+    Map<String, Double> values = new LinkedHashMap<>();
+    for (Query query : QUERIES) {
+      values.put(query.name(), value.applyAsDouble(roundTrips[query.ordinal()]));
+    }
+    return Collections.unmodifiableMap(values);
+  }
+
+  /**
+   * Starts counting from zero. Values recorded at the same time may survive the reset.
+   */
+  @Override
+  public void reset() {
+    for (int i = 0; i < COUNTERS; i++) {
+      counters.set(i, 0);
+    }
+    pacingWait.reset();
+    for (LatencyHistogram histogram : roundTrips) {
+      histogram.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+
+}
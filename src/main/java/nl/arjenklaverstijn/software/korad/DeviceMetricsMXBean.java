@@ -0,0 +1,46 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.Map;
+
+/**
+ * What {@link DeviceMetrics} shows in JConsole, VisualVM or any other JMX client. Round trip
+ * values are per query, keyed by the query's name.
+ * 
+ * @author arjen
+ *
+ */
+public interface DeviceMetricsMXBean {
+
+  long getCommandCount();
+
+  long getBytesWritten();
+
+  long getBytesRead();
+
+  long getTimeouts();
+
+  long getReadErrors();
+
+  long getShortWrites();
+
+  long getIncompleteReplies();
+
+  long getInvalidReplies();
+
+  long getSharedReplies();
+
+  double getPacingWaitMillis();
+
+  double getMeanPacingWaitMillis();
+
+  Map<String, Long> getRoundTripCounts();
+
+  Map<String, Double> getRoundTripMeanMillis();
+
+  Map<String, Double> getRoundTrip99thPercentileMillis();
+
+  Map<String, Double> getRoundTripMaxMillis();
+
+  void reset();
+
+}
@@ -0,0 +1,45 @@
+package nl.arjenklaverstijn.software.korad;
+
+/**
+ * What {@link LabPSU3005D} last successfully sent to the device, so settings that wouldn't change
+ * anything don't have to be sent and set values don't have to be asked. Voltage is kept in 10mV and
+ * current in mA, the resolution of the device.
+ * 
+ * @author arjen
+ *
+ */
+class DeviceState {
+
+  static final int UNKNOWN = -1;
+
+  int centivolts = UNKNOWN;
+  int milliamps = UNKNOWN;
+  int output = UNKNOWN;
+  int ocp = UNKNOWN;
+  int ovp = UNKNOWN;
+
+  void invalidate() {
+    centivolts = UNKNOWN;
+    milliamps = UNKNOWN;
+    output = UNKNOWN;
+    ocp = UNKNOWN;
+    ovp = UNKNOWN;
+  }
+
+  /**
+   * Compares a status read from the device with what we think it is. If it differs someone used
+   * the front panel, or the protection switched the output off, so nothing we know can be trusted.
+   * 
+   * @param status The raw status byte
+   * @return true if the status matched
+   */
+  boolean check(byte status) {
+    if ((output != UNKNOWN && output != ((status >> 6) & 1))
+        || (ocp != UNKNOWN && ocp != ((status >> 5) & 1))) {
+      invalidate();
+      return false;
+    }
+    return true;
+  }
+
+}
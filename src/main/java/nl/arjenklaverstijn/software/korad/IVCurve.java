@@ -0,0 +1,277 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import nl.arjenklaverstijn.software.korad.IVSweep.Target;
+
+/**
+ * The result of an {@link IVSweep}: one point per set-point, sorted by set-point, kept in arrays of
+ * primitives.
+ * 
+ * @author arjen
+ *
+ */
+public final class IVCurve {
+
+  // "IVC1", so a binary file can be recognised
+  private static final int MAGIC = 0x49564331;
+  // More points than any sweep takes, so a broken file can't take all memory
+  private static final int MAX_POINTS = 1 << 20;
+
+  private final Target target;
+  private final double[] setpoints;
+  private final int[] millivolts;
+  private final int[] milliamps;
+  private final byte[] statuses;
+  private final long[] settleTimes;
+  private final boolean[] settled;
+  private final int readings;
+  private final long duration;
+
+  private IVCurve(Target target, double[] setpoints, int[] millivolts, int[] milliamps,
+      byte[] statuses, long[] settleTimes, boolean[] settled, int readings, long duration) {
+    this.target = target;
+    this.setpoints = setpoints;
+    this.millivolts = millivolts;
+    this.milliamps = milliamps;
+    this.statuses = statuses;
+    this.settleTimes = settleTimes;
+    this.settled = settled;
+    this.readings = readings;
+    this.duration = duration;
+  }
+
+  /**
+   * Collects the points while sweeping, in any order.
+   */
+  static final class Builder {
+
+    private final Target target;
+    private int size;
+    private double[] setpoints = new double[32];
+    private int[] millivolts = new int[32];
+    private int[] milliamps = new int[32];
+    private byte[] statuses = new byte[32];
+    private long[] settleTimes = new long[32];
+    private boolean[] settled = new boolean[32];
+
+    Builder(Target target) {
+      this.target = target;
+    }
+
+    void add(double setpoint, int millivolts, int milliamps, byte status, long settleTime,
+        boolean settled) {
+      if (size == setpoints.length) {
+        int length = size * 2;
+        this.setpoints = Arrays.copyOf(this.setpoints, length);
+        this.millivolts = Arrays.copyOf(this.millivolts, length);
+        this.milliamps = Arrays.copyOf(this.milliamps, length);
+        this.statuses = Arrays.copyOf(this.statuses, length);
+        this.settleTimes = Arrays.copyOf(this.settleTimes, length);
+        this.settled = Arrays.copyOf(this.settled, length);
+      }
+      this.setpoints[size] = setpoint;
+      this.millivolts[size] = millivolts;
+      this.milliamps[size] = milliamps;
+      this.statuses[size] = status;
+      this.settleTimes[size] = settleTime;
+      this.settled[size] = settled;
+      size++;
+    }
+
+    IVCurve build(int readings, long duration) {
+      // Sort by set-point, adaptive sweeps measure out of order
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Double.compare(setpoints[a], setpoints[b]));
+      IVCurve curve = new IVCurve(target, new double[size], new int[size], new int[size],
+          new byte[size], new long[size], new boolean[size], readings, duration);
+      for (int i = 0; i < size; i++) {
+        int from = order[i];
+        curve.setpoints[i] = setpoints[from];
+        curve.millivolts[i] = millivolts[from];
+        curve.milliamps[i] = milliamps[from];
+        curve.statuses[i] = statuses[from];
+        curve.settleTimes[i] = settleTimes[from];
+        curve.settled[i] = settled[from];
+      }
+      return curve;
+    }
+
+  }
+
+  public Target getTarget() {
+    return target;
+  }
+
+  public int size() {
+    return setpoints.length;
+  }
+
+  /**
+   * @return What was set, in V or A depending on the target
+   */
+  public double getSetpoint(int i) {
+    return setpoints[i];
+  }
+
+  public int getMillivolts(int i) {
+    return millivolts[i];
+  }
+
+  public int getMilliamps(int i) {
+    return milliamps[i];
+  }
+
+  public byte getStatus(int i) {
+    return statuses[i];
+  }
+
+  public boolean isConstantCurrent(int i) {
+    return (statuses[i] & 1) == 0;
+  }
+
+  /**
+   * @return false if the readings didn't settle within the timeout
+   */
+  public boolean isSettled(int i) {
+    return settled[i];
+  }
+
+  /**
+   * @return Time from setting the value until the readings were stable, in ns
+   */
+  public long getSettleTime(int i) {
+    return settleTimes[i];
+  }
+
+  /**
+   * @return false if no reading came for the point, the readings are then
+   *         {@link LabPSU3005D#NO_REPLY}
+   */
+  public boolean isValid(int i) {
+    return millivolts[i] != LabPSU3005D.NO_REPLY;
+  }
+
+  /**
+   * @return The first point in the other mode than the valid one before it, -1 if the mode doesn't
+   *         change
+   */
+  public int getKnee() {
+    int previous = -1;
+    for (int i = 0; i < size(); i++) {
+      if (!isValid(i)) {
+        continue;
+      }
+      if (previous >= 0 && isConstantCurrent(i) != isConstantCurrent(previous)) {
+        return i;
+      }
+      previous = i;
+    }
+    return -1;
+  }
+
+  /**
+   * @return The number of readings the sweep took, settling included
+   */
+  public int getReadingCount() {
+    return readings;
+  }
+
+  /**
+   * @return How long the sweep took, in ns
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  public void writeCsv(Writer writer) throws IOException {
+    writer.write("setpoint,millivolts,milliamps,mode,settled,settle_ms\n");
+    for (int i = 0; i < size(); i++) {
+      writer.write(String.format(Locale.ROOT, "%.4f,%d,%d,%s,%b,%.3f%n", setpoints[i],
+          millivolts[i], milliamps[i], isConstantCurrent(i) ? "CC" : "CV", settled[i],
+          settleTimes[i] / 1e6));
+    }
+    writer.flush();
+  }
+
+  /**
+   * Writes the arrays one after the other, big endian, to read back with
+   * {@link #readBinary(InputStream)}.
+   */
+  public void writeBinary(OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(MAGIC);
+    out.writeInt(target.ordinal());
+    out.writeInt(size());
+    out.writeInt(readings);
+    out.writeLong(duration);
+    for (double setpoint : setpoints) {
+      out.writeDouble(setpoint);
+    }
+    for (int value : millivolts) {
+      out.writeInt(value);
+    }
+    for (int value : milliamps) {
+      out.writeInt(value);
+    }
+    out.write(statuses);
+    for (long value : settleTimes) {
+      out.writeLong(value);
+    }
+    for (boolean value : settled) {
+      out.writeBoolean(value);
+    }
+    out.flush();
+  }
+
+  public static IVCurve readBinary(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an I-V curve");
+    }
+    int ordinal = in.readInt();
+    if (ordinal < 0 || ordinal >= Target.values().length) {
+      throw new IOException("Unknown target " + ordinal);
+    }
+    Target target = Target.values()[ordinal];
+    int size = in.readInt();
+    if (size < 0 || size > MAX_POINTS) {
+      throw new IOException("Invalid number of points " + size);
+    }
+    IVCurve curve = new IVCurve(target, new double[size], new int[size], new int[size],
+        new byte[size], new long[size], new boolean[size], in.readInt(), in.readLong());
+    for (int i = 0; i < size; i++) {
+      curve.setpoints[i] = in.readDouble();
+    }
+    for (int i = 0; i < size; i++) {
+      curve.millivolts[i] = in.readInt();
+    }
+    for (int i = 0; i < size; i++) {
+      curve.milliamps[i] = in.readInt();
+    }
+    in.readFully(curve.statuses);
+    for (int i = 0; i < size; i++) {
+      curve.settleTimes[i] = in.readLong();
+    }
+    for (int i = 0; i < size; i++) {
+      curve.settled[i] = in.readBoolean();
+    }
+    return curve;
+  }
+
+  @Override
+  public String toString() {
+    return "IVCurve [" + size() + " points of " + target + ", " + readings + " readings in "
+        + duration / 1000000 + "ms, knee at " + getKnee() + "]";
+  }
+
+}
@@ -0,0 +1,247 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures I-V curves: steps the voltage or the current limit and reads the output at every step.
+ * Instead of a fixed delay every point waits until the readings are stable and the output is
+ * where it is regulated to, so fast points are fast and slow points are still right.
+ * <p>
+ * The adaptive sweep starts coarse and only adds points where the output switches between CV and
+ * CC, which is where the interesting part of most curves is.
+ * </p>
+ * Set the other value and switch the output on before sweeping, the sweep only changes the target.
+ *
+ * <pre>
+ * device.setCurrent(0.5F);
+ * device.setEnabled(true);
+ * IVCurve curve = new IVSweep(device).sweepAdaptive(Target.VOLTAGE, 0, 10, 11, 0.05);
+ * curve.writeCsv(new FileWriter("diode.csv"));
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
+public class IVSweep {
+
+  public enum Target {
+    // Steps the voltage setting, in V
+    VOLTAGE,
+    // Steps the current limit, in A
+    CURRENT
+  }
+
+  public enum Spacing {
+    LINEAR,
+    // Equal ratios between points, the first set-point can't be 0
+    LOGARITHMIC
+  }
+
+  // ms to wait after a sample failed
+  private static final long FAILED_SAMPLE_PAUSE = 10;
+
+  private final LabPSU3005D device;
+  private final StepScheduler scheduler;
+  private int voltageTolerance = 10;
+  private int currentTolerance = 2;
+  private int settleReadings = 2;
+  private long settleTimeout = TimeUnit.SECONDS.toNanos(2);
+
+  // The last reading
+  private int millivolts;
+  private int milliamps;
+  private byte status;
+  private int readings;
+  private final SampleSink sink = (nanoTime, voltage, current, status) -> {
+    this.millivolts = Math.round(voltage * 1000);
+    this.milliamps = Math.round(current * 1000);
+    this.status = status;
+  };
+
+  public IVSweep(LabPSU3005D device) {
+    this(device, new StepScheduler());
+  }
+
+  /**
+   * @param scheduler Used to wait, cancel it to stop the sweep. For example the one of an
+   *        {@link Automation}.
+   */
+  public IVSweep(LabPSU3005D device, StepScheduler scheduler) {
+    this.device = device;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * @param millivolts Readings this close are the same, and the output this close to the voltage
+   *        setting is there
+   * @param milliamps The same for the current
+   */
+  public void setSettleTolerance(int millivolts, int milliamps) {
+    this.voltageTolerance = millivolts;
+    this.currentTolerance = milliamps;
+  }
+
+  /**
+   * @param readings How many readings in a row have to be the same, at least 1
+   */
+  public void setSettleReadings(int readings) {
+    this.settleReadings = Math.max(1, readings);
+  }
+
+  /**
+   * @param timeout The longest time to wait for a point to settle, it is then marked as not settled.
+   *        A point without any reply in this time is invalid and ends the sweep.
+   */
+  public void setSettleTimeout(long timeout, TimeUnit unit) {
+    this.settleTimeout = unit.toNanos(timeout);
+  }
+
+  /**
+   * @param points The number of points, including both ends
+   */
+  public IVCurve sweep(Target target, double from, double to, int points, Spacing spacing) {
+    if (points < 2) {
+      throw new IllegalArgumentException("A sweep needs at least 2 points");
+    }
+    if (spacing == Spacing.LOGARITHMIC && (from <= 0 || to <= 0)) {
+      throw new IllegalArgumentException("A logarithmic sweep can't start or end at 0");
+    }
+    double[] setpoints = new double[points];
+    for (int i = 0; i < points; i++) {
+      double fraction = (double) i / (points - 1);
+      setpoints[i] = (spacing == Spacing.LINEAR) ? from + (to - from) * fraction
+          : from * Math.pow(to / from, fraction);
+    }
+    return measure(target, setpoints);
+  }
+
+  /**
+   * Measures every set-point in the order given.
+   */
+  public IVCurve measure(Target target, double[] setpoints) {
+    long start = System.nanoTime();
+    readings = 0;
+    IVCurve.Builder builder = new IVCurve.Builder(target);
+    for (double setpoint : setpoints) {
+      if (!measure(target, setpoint, builder)) {
+        break;
+      }
+    }
+    return builder.build(readings, System.nanoTime() - start);
+  }
+
+  /**
+   * Measures a coarse linear sweep, then keeps halving the steps where the output changes between
+   * CV and CC until they are smaller than the resolution.
+   * 
+   * @param points The number of points of the coarse sweep
+   * @param resolution The smallest step around a knee, in V or A
+   */
+  public IVCurve sweepAdaptive(Target target, double from, double to, int points,
+      double resolution) {
+    if (points < 2) {
+      throw new IllegalArgumentException("A sweep needs at least 2 points");
+    }
+    long start = System.nanoTime();
+    readings = 0;
+    IVCurve.Builder builder = new IVCurve.Builder(target);
+    double step = (to - from) / (points - 1);
+    double previous = from;
+    if (!measure(target, from, builder)) {
+      return builder.build(readings, System.nanoTime() - start);
+    }
+    boolean previousCc = (status & 1) == 0;
+    for (int i = 1; i < points; i++) {
+      double setpoint = from + step * i;
+      if (!measure(target, setpoint, builder)) {
+        break;
+      }
+      boolean cc = (status & 1) == 0;
+      if (cc != previousCc && !refine(target, previous, previousCc, setpoint, resolution,
+          builder)) {
+        break;
+      }
+      previous = setpoint;
+      previousCc = cc;
+    }
+    return builder.build(readings, System.nanoTime() - start);
+  }
+
+  /**
+   * Bisects between two set-points with a different mode.
+   */
+  private boolean refine(Target target, double low, boolean lowCc, double high, double resolution,
+      IVCurve.Builder builder) {
+    while (Math.abs(high - low) > resolution) {
+      double middle = (low + high) / 2;
+      if (!measure(target, middle, builder)) {
+        return false;
+      }
+      if (((status & 1) == 0) == lowCc) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sets the set-point and waits for the output to settle.
+   * 
+   * @param builder Gets the point, with {@link LabPSU3005D#NO_REPLY} readings if no sample came
+   *        within the settle timeout
+   * @return false if cancelled or no sample came
+   */
+  private boolean measure(Target target, double setpoint, IVCurve.Builder builder) {
+    if (scheduler.isCancelled()) {
+      return false;
+    }
+    long start = System.nanoTime();
+    if (target == Target.VOLTAGE) {
+      device.setVoltageMillivolts((int) Math.round(setpoint * 1000));
+    } else {
+      device.setCurrentMilliamps((int) Math.round(setpoint * 1000));
+    }
+    int setMillivolts = device.getSetMillivolts();
+    int setMilliamps = device.getSetMilliamps();
+    int stable = 0;
+    int lastMillivolts = Integer.MIN_VALUE;
+    int lastMilliamps = Integer.MIN_VALUE;
+    boolean settled = false;
+    boolean replied = false;
+    while (!settled && System.nanoTime() - start < settleTimeout) {
+      if (!device.sample(sink)) {
+        // A closed port fails right away, don't spin on it
+        if (!scheduler.waitFor(FAILED_SAMPLE_PAUSE, TimeUnit.MILLISECONDS)) {
+          return false;
+        }
+        continue;
+      }
+      replied = true;
+      readings++;
+      boolean same = Math.abs(millivolts - lastMillivolts) <= voltageTolerance
+          && Math.abs(milliamps - lastMilliamps) <= currentTolerance;
+      stable = same ? stable + 1 : 1;
+      lastMillivolts = millivolts;
+      lastMilliamps = milliamps;
+      // In CV the voltage has to be at the setting, in CC the current
+      boolean regulated = ((status & 1) == 0)
+          ? Math.abs(milliamps - setMilliamps) <= currentTolerance
+          : Math.abs(millivolts - setMillivolts) <= voltageTolerance;
+      settled = stable >= settleReadings && regulated;
+      if (scheduler.isCancelled()) {
+        return false;
+      }
+    }
+    if (!replied) {
+      // The readings are still those of the point before
+      builder.add(setpoint, LabPSU3005D.NO_REPLY, LabPSU3005D.NO_REPLY, (byte) 0,
+          System.nanoTime() - start, false);
+      return false;
+    }
+    builder.add(setpoint, millivolts, milliamps, status, System.nanoTime() - start, settled);
+    return true;
+  }
+
+}
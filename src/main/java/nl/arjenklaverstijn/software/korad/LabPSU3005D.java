@@ -1,16 +1,138 @@
 package nl.arjenklaverstijn.software.korad;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 import com.fazecast.jSerialComm.SerialPort;
-import com.fazecast.jSerialComm.SerialPortTimeoutException;
-
+import nl.arjenklaverstijn.software.korad.Pacer.CommandType;
+
+/**
+ * A Velleman LABPS3005D, or one of its Korad and Tenma twins, on a serial port.
+ * <p>
+ * The device can be shared between threads. Only one command is on the wire at a time, a thread
+ * that asks the same as a query that is already out waits for that reply instead of sending its
+ * own. To send a few commands without another thread coming in between, synchronize on the device:
+ * </p>
+ *
+ * <pre>
+ * synchronized (device) {
+ *   device.setEnabled(false);
+ *   device.setVoltage(3.3F);
+ *   device.setEnabled(true);
+ * }
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
 public class LabPSU3005D {
 
-  private SerialPort serialPort;
+  private static final int READ_TIMEOUT = 80; // ms
+  private static final int ATTEMPTS = 3;
+
+  // Returned by the millivolt and milliamp readbacks instead of a value, values are never negative
+  public static final int NO_REPLY = -1;
+  public static final int MALFORMED_REPLY = -2;
+
+  private final Transport transport;
   private boolean debug = false;
-  private long lastSend;
+  private final Pacer pacer;
+  private final DeviceState state = new DeviceState();
+  // What was asked for, even if it didn't get through. Sent again after a reconnect.
+  private final DeviceState wanted = new DeviceState();
+  private final DeviceMetrics metrics = new DeviceMetrics();
+  private final CommandEncoder encoder = new CommandEncoder();
+  private volatile StatusMonitor monitor;
+  private volatile Reconnector reconnector;
+  private String identity;
+  private volatile boolean closedByUser = true;
+  private boolean recovering;
+  // When the last valid reply came in, read without holding the device
+  private volatile long lastReply;
+  // A reconnect leaves the output off, while a SafetySupervisor watches
+  private volatile boolean outputHeldOff;
+  // Signs of a dead port since the last valid reply
+  private boolean broken;
+  private int timeouts;
+  private long failingSince;
+  // waiting for the output to settle after switching it
+  private int settleToleranceMillivolts = 20;
+  private int settleToleranceMilliamps = 5;
+  private volatile long lastSettleTime;
+  private volatile boolean lastSettled;
+  private long skippedCommands;
+  // A reply is complete when nothing came in for this long, 20ms leaves room for the latency
+  // timer of USB serial adapters.
+  private long idleGap = TimeUnit.MILLISECONDS.toNanos(20);
+  // Replies are read into this buffer, the longest reply is the *IDN? string
+  private final byte[] response = new byte[64];
+  // One for every query, reused
+  private final Flight[] flights = new Flight[Query.values().length];
+
+  {
+    for (int i = 0; i < flights.length; i++) {
+      flights[i] = new Flight(response.length);
+    }
+  }
+
+  /**
+   * A query that is on its way, with the latest reply to it. Guarded by its own monitor.
+   */
+  private static final class Flight {
+
+    final byte[] reply;
+    int length;
+    // When the query went out, in nanoTime
+    long sent;
+    // Someone is sending it
+    boolean flying;
+    // The number of replies so far
+    long landed;
+
+    Flight(int size) {
+      reply = new byte[size];
+    }
+
+  }
+
+  /**
+   * Parses replies like 05.00 or 0.200 straight from the bytes into a whole number of thousandths
+   * (or whatever the decimals are), without exceptions.
+   * 
+   * @param bytes The reply
+   * @param offset Where the number starts
+   * @param length The length of the number
+   * @param decimals The number of decimals of the result, 3 for mV or mA
+   * @return The value times 10^decimals, rounded, or {@link #MALFORMED_REPLY}
+   */
+  static int parseFixed(byte[] bytes, int offset, int length, int decimals) {
+    long value = 0;
+    int digits = 0;
+    int fraction = -1;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = bytes[i];
+      if (b >= '0' && b <= '9') {
+        value = value * 10 + (b - '0');
+        digits++;
+        if (fraction >= 0)
+          fraction++;
+      } else if (b == '.' && fraction < 0) {
+        fraction = 0;
+      } else {
+        return MALFORMED_REPLY;
+      }
+    }
+    if (digits == 0 || digits > 9)
+      return MALFORMED_REPLY;
+    fraction = Math.max(fraction, 0);
+    for (; fraction < decimals; fraction++) {
+      value *= 10;
+    }
+    for (; fraction > decimals; fraction--) {
+      // round half up on the last digit that goes
+      value = (fraction == decimals + 1) ? (value + 5) / 10 : value / 10;
+    }
+    return (value > Integer.MAX_VALUE) ? MALFORMED_REPLY : (int) value;
+  }
 
   /**
    * This constructor sets up the {@link SerialPort} object for you with the right settings. Opening
@@ -19,14 +141,31 @@ public class LabPSU3005D {
    * @param port The system port name to connect to.
    */
   public LabPSU3005D(String port) {
-    serialPort = SerialPort.getCommPort(port);
-    // Options
-    serialPort.setFlowControl(SerialPort.FLOW_CONTROL_DISABLED);
-    serialPort.setParity(SerialPort.NO_PARITY);
-    serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, 80, 0);
+    this(new SerialPortTransport(port));
+  }
+
+  /**
+   * Use any {@link Transport} to talk to the device, for example a {@link SimulatedPSU}. Opening
+   * and closing is left up to the user.
+   * 
+   * @param transport The connection to the device.
+   */
+  public LabPSU3005D(Transport transport) {
+    this(transport, new Pacer());
   }
 
-  public void setCurrent(float current) {
+  /**
+   * Use your own pacing, for example one that doesn't wait for a transport that is always ready.
+   * 
+   * @param transport The connection to the device.
+   * @param pacer Times the commands.
+   */
+  public LabPSU3005D(Transport transport, Pacer pacer) {
+    this.transport = transport;
+    this.pacer = pacer;
+  }
+
+  public synchronized void setCurrent(float current) {
     // ISET<X>:<NR2>
     // Description: Sets the output current.
     // Example:ISET1:2.225
@@ -35,19 +174,40 @@ public class LabPSU3005D {
       current = 5.1F;
     else if (current < 0)
       current = 0;
-    String command = "ISET1:" + current;
-    send(command);
+    // The device has 1mA resolution
+    setCurrentMilliamps(Math.round(current * 1000));
+  }
+
+  /**
+   * The same as {@link #setCurrent(float)}, without floats.
+   * 
+   * @param milliamps The current limit in mA, 0 to 5100
+   */
+  public synchronized void setCurrentMilliamps(int milliamps) {
+    milliamps = Math.max(0, Math.min(5100, milliamps));
+    wanted.milliamps = milliamps;
+    if (milliamps == state.milliamps) {
+      skip("ISET1");
+      return;
+    }
+    int length = encoder.current(milliamps);
+    state.milliamps = sendSetting(encoder.getBuffer(), length) ? milliamps : DeviceState.UNKNOWN;
   }
 
-  public float getSetCurrent() {
+  public synchronized float getSetCurrent() {
 
-    String command = "ISET1?";
+    // Answered from what was last sent, as long as nothing could have changed it
+    if (state.milliamps != DeviceState.UNKNOWN)
+      return state.milliamps / 1000F;
     // ISET<X>?
     // Description: Returns the output current setting.
     // Example ISET1?
     // Returns the CH1 voltage setting
-    String result = sendRead(command, 6);
-    return Float.valueOf(result.substring(0, 5));
+    // The reply has an extra byte at the end, only the first 5 are the value.
+    int length = sendRead(Query.ISET);
+    float current = parseDecimal(response, 0, Math.min(length, Query.NUMBER_LENGTH));
+    state.milliamps = Math.round(current * 1000);
+    return current;
 
   }
 
@@ -60,24 +220,46 @@ public class LabPSU3005D {
    * 
    * @param voltage The Voltage to set
    */
-  public void setVoltage(float voltage) {
+  public synchronized void setVoltage(float voltage) {
     if (voltage > 31)
       voltage = 31F;
     else if (voltage < 0)
       voltage = 0;
-    double roundOff = (double) Math.round(voltage * 100) / 100;
-    String command = "VSET1:" + roundOff;
-    send(command);
+    setCentivolts(Math.round(voltage * 100));
   }
 
-  public float getSetVoltage() {
-    String command = "VSET1?";
+  /**
+   * The same as {@link #setVoltage(float)}, without floats. The device has a resolution of 10mV,
+   * so the value is rounded to that.
+   * 
+   * @param millivolts The voltage in mV, 0 to 31000
+   */
+  public synchronized void setVoltageMillivolts(int millivolts) {
+    setCentivolts((Math.max(0, Math.min(31000, millivolts)) + 5) / 10);
+  }
+
+  private void setCentivolts(int centivolts) {
+    wanted.centivolts = centivolts;
+    if (centivolts == state.centivolts) {
+      skip("VSET1");
+      return;
+    }
+    int length = encoder.voltage(centivolts);
+    state.centivolts = sendSetting(encoder.getBuffer(), length) ? centivolts : DeviceState.UNKNOWN;
+  }
+
+  public synchronized float getSetVoltage() {
+    // Answered from what was last sent, as long as nothing could have changed it
+    if (state.centivolts != DeviceState.UNKNOWN)
+      return state.centivolts / 100F;
     // VSET<X>?
     // Description: Returns the output voltage setting.
     // Example VSET1?
     // Returns the CH1 voltage setting
-    String result = sendRead(command, 5);
-    return Float.valueOf(result);
+    int length = sendRead(Query.VSET);
+    float voltage = parseDecimal(response, 0, length);
+    state.centivolts = Math.round(voltage * 100);
+    return voltage;
 
   }
 
@@ -86,9 +268,10 @@ public class LabPSU3005D {
     // Description:Returns the actual output current.
     // Example IOUT1?
     // Returns the CH1 output current
-    String command = "IOUT1?";
-    String result = sendRead(command, 5);
-    return Float.valueOf(new String(result));
+    Flight flight = shared(Query.IOUT);
+    synchronized (flight) {
+      return parseDecimal(flight.reply, 0, flight.length);
+    }
 
   }
 
@@ -97,12 +280,82 @@ public class LabPSU3005D {
     // Description:Returns the actual output voltage.
     // Example VOUT1?
     // Returns the CH1 output voltage
-    String command = "VOUT1?";
-    String result = sendRead(command, 5);
-    return Float.valueOf(new String(result));
+    Flight flight = shared(Query.VOUT);
+    synchronized (flight) {
+      return parseDecimal(flight.reply, 0, flight.length);
+    }
+
+  }
+  /**
+   * The same as {@link #getOutputVoltage()} in whole millivolts. Doesn't throw or allocate on a bad
+   * reply, check the result instead.
+   * 
+   * @return The output voltage in mV, {@link #NO_REPLY} or {@link #MALFORMED_REPLY}
+   */
+  public int getOutputMillivolts() {
+    return readFixed(Query.VOUT);
+  }
+
+  /**
+   * The same as {@link #getOutputCurrent()} in whole milliamps.
+   * 
+   * @return The output current in mA, {@link #NO_REPLY} or {@link #MALFORMED_REPLY}
+   */
+  public int getOutputMilliamps() {
+    return readFixed(Query.IOUT);
+  }
+
+  /**
+   * The same as {@link #getSetVoltage()} in whole millivolts.
+   * 
+   * @return The voltage setting in mV, {@link #NO_REPLY} or {@link #MALFORMED_REPLY}
+   */
+  public synchronized int getSetMillivolts() {
+    if (state.centivolts != DeviceState.UNKNOWN)
+      return state.centivolts * 10;
+    int millivolts = readFixed(Query.VSET);
+    if (millivolts >= 0)
+      state.centivolts = (millivolts + 5) / 10;
+    return millivolts;
+  }
 
+  /**
+   * The same as {@link #getSetCurrent()} in whole milliamps.
+   * 
+   * @return The current setting in mA, {@link #NO_REPLY} or {@link #MALFORMED_REPLY}
+   */
+  public synchronized int getSetMilliamps() {
+    if (state.milliamps != DeviceState.UNKNOWN)
+      return state.milliamps;
+    int milliamps = readFixed(Query.ISET);
+    if (milliamps >= 0)
+      state.milliamps = milliamps;
+    return milliamps;
+  }
+
+  /**
+   * @param value What one of the millivolt or milliamp readbacks returned
+   * @return false for {@link #NO_REPLY} and {@link #MALFORMED_REPLY}
+   */
+  public static boolean isValidReadback(int value) {
+    return value >= 0;
+  }
+
+  private int readFixed(Query query) {
+    Flight flight = shared(query);
+    synchronized (flight) {
+      if (flight.length == 0) {
+        return NO_REPLY;
+      }
+      if (!query.isValid(flight.reply, flight.length)) {
+        return MALFORMED_REPLY;
+      }
+      // The ISET reply has an extra byte, the number is always the first 5
+      return parseFixed(flight.reply, 0, Query.NUMBER_LENGTH, 3);
+    }
   }
 
+
   // public void setBeep(boolean onOff) {
 
   // BEEP doesn't work (yet?)
@@ -114,24 +367,145 @@ public class LabPSU3005D {
   // }
 
 
+  /**
+   * Switches the output and waits up to 100ms for it to settle.
+   */
   public void setEnabled(boolean onOff) {
     setEnabled(onOff, 100);
   }
 
+  /**
+   * Switches the output and waits until it has settled: on and at the voltage setting (or at the
+   * current limit in CC), or confirmed off. Most loads settle well within the old fixed 100ms. How
+   * long it took is in {@link #getLastSettleTime()}.
+   * <p>
+   * The device is only held to send OUT and for each poll while waiting, so other threads can use
+   * it in between, unless the caller holds it. An interrupt stops the wait right away: the method
+   * returns with the interrupt flag still set and {@link #isLastSettled()} false.
+   * </p>
+   * 
+   * @param settleTime The longest time to wait in ms, 0 to not wait at all
+   */
   public void setEnabled(boolean onOff, int settleTime) {
+    enable(onOff, settleTime, false);
+  }
+
+  /**
+   * Switches the output off, also when the cache says it already is: someone could have pressed ON
+   * on the front panel since the last status. Use this on every safety path.
+   *
+   * @param settleTime The longest time to wait for the output to be confirmed off in ms, 0 to not
+   *        wait at all
+   */
+  public void switchOff(int settleTime) {
+    enable(false, settleTime, true);
+  }
+
+  private void enable(boolean onOff, int settleTime, boolean always) {
     // OUT<Boolean>
     // Description:Turns on or off the output.
     // Boolean:0 OFF,1 ON
     // Example: OUT1 Turns on the output
+    long start;
+    synchronized (this) {
+      if (always) {
+        invalidateOutput();
+      }
+      wanted.output = booleanToInt(onOff);
+      if (state.output == booleanToInt(onOff)) {
+        skip("OUT");
+        return;
+      }
+      int length = encoder.flag(CommandEncoder.OUT, onOff);
+      state.output =
+          sendSetting(encoder.getBuffer(), length) ? booleanToInt(onOff) : DeviceState.UNKNOWN;
+      start = pacer.getLastSend();
+      lastSettled = false;
+      lastSettleTime = 0;
+      // Nothing to wait for if the command didn't go out
+      if (settleTime <= 0 || state.output == DeviceState.UNKNOWN) {
+        return;
+      }
+    }
+    lastSettled = settle(onOff, start + TimeUnit.MILLISECONDS.toNanos(settleTime));
+    lastSettleTime = System.nanoTime() - start;
+  }
 
-    send("OUT" + booleanToInt(onOff));
-    try {
-      Thread.sleep(settleTime);
-    } catch (InterruptedException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+  /**
+   * Polls until the output is where it should be. Every poll takes the device on its own, or
+   * shares a snapshot another thread is already asking for.
+   * 
+   * @param deadline Give up at this {@link System#nanoTime()}
+   * @return false if it didn't settle before the deadline, or the thread was interrupted
+   */
+  private boolean settle(boolean onOff, long deadline) {
+    int millivolts = onOff ? getSetMillivolts() : 0;
+    int milliamps = onOff ? getSetMilliamps() : 0;
+    SettleSample sample = new SettleSample();
+    while (System.nanoTime() < deadline) {
+      // Leave the interrupt for the caller to handle
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+      if (!sample(sample)) {
+        continue;
+      }
+      boolean output = (sample.status & 0x40) != 0;
+      if (!onOff && !output) {
+        return true;
+      }
+      if (onOff && output) {
+        // In CV the voltage has to be at the setting, in CC the current at the limit
+        boolean cc = (sample.status & 1) == 0;
+        if (cc ? Math.abs(sample.milliamps - milliamps) <= settleToleranceMilliamps
+            : Math.abs(sample.millivolts - millivolts) <= settleToleranceMillivolts) {
+          return true;
+        }
+      }
     }
+    return false;
+  }
+
+  /**
+   * The last poll of one {@link #settle(boolean, long)}, every wait has its own.
+   */
+  private static final class SettleSample implements SampleSink {
+
+    private int millivolts;
+    private int milliamps;
+    private byte status;
+
+    @Override
+    public void accept(long nanoTime, float voltage, float current, byte status) {
+      this.millivolts = Math.round(voltage * 1000);
+      this.milliamps = Math.round(current * 1000);
+      this.status = status;
+    }
+
+  }
+
+  /**
+   * @param millivolts How close the output voltage has to be to the setting to be settled
+   * @param milliamps The same for the current in CC
+   */
+  public void setSettleTolerance(int millivolts, int milliamps) {
+    this.settleToleranceMillivolts = millivolts;
+    this.settleToleranceMilliamps = milliamps;
+  }
+
+  /**
+   * @return The time the last {@link #setEnabled(boolean, int)} took to settle, from sending OUT,
+   *         in ns. 0 if it didn't wait.
+   */
+  public long getLastSettleTime() {
+    return lastSettleTime;
+  }
 
+  /**
+   * @return false if the last {@link #setEnabled(boolean, int)} gave up waiting, or didn't wait
+   */
+  public boolean isLastSettled() {
+    return lastSettled;
   }
 
   public Status getStatus() {
@@ -139,35 +513,175 @@ public class LabPSU3005D {
   }
 
   public Status getStatus(int channel) {
-    if (channel != 1 || channel != 2)
+    if (channel != 1 && channel != 2)
       channel = 1;
     // status byte
-    String statusByte = sendRead("STATUS?", 1);
-    return new Status(channel, ((byte) statusByte.charAt(0)));
+    Flight flight = shared(Query.STATUS);
+    synchronized (flight) {
+      if (flight.length < 1) {
+        throw new IllegalStateException("No status received");
+      }
+      return Status.of(channel, flight.reply[0]);
+    }
+  }
+
+  /**
+   * Sends VOUT1?, IOUT1? and STATUS? in one go and reads the three replies at once. One round trip
+   * instead of three, and the values belong together.
+   * 
+   * @return The output voltage, current and status
+   */
+  public Snapshot getSnapshot() {
+    Flight flight = shared(Query.SNAPSHOT);
+    long nanoTime;
+    float voltage;
+    float current;
+    byte status;
+    synchronized (flight) {
+      if (!Query.SNAPSHOT.isValid(flight.reply, flight.length)) {
+        throw new IllegalStateException("No snapshot received");
+      }
+      // The moment the query went out is the moment that was measured
+      nanoTime = flight.sent;
+      voltage = parseDecimal(flight.reply, 0, Query.NUMBER_LENGTH);
+      current = parseDecimal(flight.reply, Query.NUMBER_LENGTH, Query.NUMBER_LENGTH);
+      status = flight.reply[2 * Query.NUMBER_LENGTH];
+    }
+    long timestamp =
+        System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    return new Snapshot(timestamp, nanoTime, voltage, current, Status.of(1, status));
+  }
+
+  /**
+   * The same as {@link #getSnapshot()}, but hands the values to the sink as primitives. Doesn't
+   * create any objects, for high rate polling.
+   * 
+   * @param sink Receives the sample
+   * @return false if no valid reply was received
+   */
+  public boolean sample(SampleSink sink) {
+    Flight flight = shared(Query.SNAPSHOT);
+    long nanoTime;
+    float voltage;
+    float current;
+    byte status;
+    synchronized (flight) {
+      if (!Query.SNAPSHOT.isValid(flight.reply, flight.length)) {
+        return false;
+      }
+      nanoTime = flight.sent;
+      voltage = parseDecimal(flight.reply, 0, Query.NUMBER_LENGTH);
+      current = parseDecimal(flight.reply, Query.NUMBER_LENGTH, Query.NUMBER_LENGTH);
+      status = flight.reply[2 * Query.NUMBER_LENGTH];
+    }
+    sink.accept(nanoTime, voltage, current, status);
+    return true;
+  }
+
+  /**
+   * Sends a query for all threads that want to know the same thing. A thread that asks while the
+   * query is already waiting to go out or on its way doesn't send its own, it waits for the reply
+   * to that one. They all get the same reply and the same time it was sent. Queries can always be
+   * shared like this, they don't change anything.
+   * <p>
+   * A thread that already has the device (while switching the output or reconnecting) sends its
+   * own. Waiting for a query that waits for us would never end.
+   * </p>
+   * 
+   * @return The flight of the query, read the reply while holding its monitor
+   */
+  private Flight shared(Query query) {
+    Flight flight = flights[query.ordinal()];
+    boolean owner = false;
+    if (!Thread.holdsLock(this)) {
+      synchronized (flight) {
+        if (flight.flying) {
+          long landing = flight.landed + 1;
+          boolean interrupted = false;
+          while (flight.landed < landing) {
+            try {
+              flight.wait();
+            } catch (InterruptedException e) {
+              // The reply is on its way, leave the interrupt for later
+              interrupted = true;
+            }
+          }
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+          metrics.shared();
+          return flight;
+        }
+        flight.flying = true;
+        owner = true;
+      }
+    }
+    byte status = 0;
+    boolean hasStatus = false;
+    synchronized (this) {
+      int length = 0;
+      try {
+        length = sendRead(query);
+        if (query.isValid(response, length) && query.getStatusOffset() >= 0) {
+          status = response[query.getStatusOffset()];
+          hasStatus = true;
+        }
+      } finally {
+        synchronized (flight) {
+          System.arraycopy(response, 0, flight.reply, 0, length);
+          flight.length = length;
+          flight.sent = pacer.getLastSend();
+          if (owner) {
+            flight.flying = false;
+          }
+          flight.landed++;
+          flight.notifyAll();
+        }
+      }
+      if (hasStatus) {
+        received(status);
+      }
+    }
+    // After letting go, listeners may use the device and can't hold up others
+    StatusMonitor monitor = this.monitor;
+    if (hasStatus && monitor != null) {
+      if (Thread.holdsLock(this)) {
+        // Still held, for example while settling, the monitor's own thread passes them on
+        monitor.dispatchLater();
+      } else {
+        monitor.dispatch();
+      }
+    }
+    return flight;
   }
 
-  public String getId() {
+  public synchronized String getId() {
 
     // *IDN?
     // Description:Returns the KA3005P identification.
     // Example *IDN?
     // Contents TENMA 72-2535 V2.0 (Manufacturer, model name,).
-    String result = sendRead("*IDN?");
-    return new String(result);
+    int length = sendRead(Query.IDN);
+    return new String(response, 0, length, StandardCharsets.US_ASCII);
 
   }
 
-  public void recalPreset(int num) {
+  public synchronized void recalPreset(int num) {
     // RCL<NR1>
     // Description:Recalls a panel setting.
     // NR1 1 to 5: Memory number 1 to 5
     // Example RCL1 Recalls the panel setting stored in memory number 1
     if (num > 0 && num <= 5) {
-      send("RCL" + num);
+      send(encoder.getBuffer(), encoder.memory(CommandEncoder.RCL, num));
+      // The preset brings its own voltage and current
+      state.centivolts = DeviceState.UNKNOWN;
+      state.milliamps = DeviceState.UNKNOWN;
+      wanted.centivolts = DeviceState.UNKNOWN;
+      wanted.milliamps = DeviceState.UNKNOWN;
     }
   }
 
-  public void savePreset(int num, float voltage, float current) {
+  public synchronized void savePreset(int num, float voltage, float current) {
     // SAV<NR1>
     // Description:Stores the panel setting.
     // NR1 1-5: Memory number 1 to 5
@@ -177,103 +691,412 @@ public class LabPSU3005D {
       recalPreset(num);
       setVoltage(voltage);
       setCurrent(current);
-      send("SAV" + num);
+      send(encoder.getBuffer(), encoder.memory(CommandEncoder.SAV, num));
     }
 
   }
 
-  public void setOCP(boolean onOff) {
+  public synchronized void setOCP(boolean onOff) {
     // OCP< Boolean >
     // Description:Stores the panel setting.
     // Boolean:0 OFF,1 ON
     // Example: OCP1 Turns on the OCP
-    send("OCP" + booleanToInt(onOff));
+    wanted.ocp = booleanToInt(onOff);
+    if (state.ocp == booleanToInt(onOff)) {
+      skip("OCP");
+      return;
+    }
+    int length = encoder.flag(CommandEncoder.OCP, onOff);
+    state.ocp =
+        sendSetting(encoder.getBuffer(), length) ? booleanToInt(onOff) : DeviceState.UNKNOWN;
   }
 
-  public void setOVP(boolean onOff) {
+  public synchronized void setOVP(boolean onOff) {
     // OVP< Boolean >
     // Description:Turns on the OVP.
     // Boolean:0 OFF,1 ON
     // Example: OVP1 Turns on the OVP
-    send("OVP" + booleanToInt(onOff));
+    wanted.ovp = booleanToInt(onOff);
+    if (state.ovp == booleanToInt(onOff)) {
+      skip("OVP");
+      return;
+    }
+    int length = encoder.flag(CommandEncoder.OVP, onOff);
+    state.ovp =
+        sendSetting(encoder.getBuffer(), length) ? booleanToInt(onOff) : DeviceState.UNKNOWN;
 
   }
 
-  private String sendRead(String command) {
-    return sendRead(command, -1);
+  /**
+   * Sends the query and reads the reply into the response buffer. If the port died on the way and
+   * the {@link Reconnector} gets it back, the query is sent again.
+   * 
+   * @return The number of bytes read
+   */
+  private int sendRead(Query query) {
+    int length = attempt(query);
+    if (!query.isValid(response, length) && recover()) {
+      length = attempt(query);
+    }
+    return length;
   }
 
-  private String sendRead(String command, int numBytes) {
-    send(command);
-    return read(numBytes);
+  private int attempt(Query query) {
+    int length = 0;
+    for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+      send(query.getCommand());
+      length = read(query.getLength(), query.getTerminator());
+      boolean valid = query.isValid(response, length);
+      // One clock read for the metrics, the pacer and the last reply
+      long now = System.nanoTime();
+      metrics.replied(query, now - pacer.getLastSend(), valid);
+      // A dead port says nothing about how fast the device can go
+      if (length == 0 && !broken) {
+        pacer.noReply();
+      } else if (valid || !broken) {
+        pacer.replied(valid, now);
+      }
+      if (valid) {
+        lastReply = now;
+        broken = false;
+        timeouts = 0;
+        failingSince = 0;
+        break;
+      }
+      // No use trying again on a port that is gone
+      if (broken || !transport.isOpen()) {
+        break;
+      }
+      // Probably sent too fast, the pacer backs off. Queries can safely be repeated.
+      log("ERROR invalid reply to " + query + " (attempt " + attempt + ")");
+      drain();
+    }
+    return length;
   }
 
-  public String read() {
-    return read(-1);
+  /**
+   * Keeps track of when things started to go wrong, for the downtime.
+   */
+  private void failed() {
+    if (failingSince == 0) {
+      failingSince = System.nanoTime();
+    }
   }
 
+  /**
+   * Lets the {@link Reconnector} reconnect if the port looks dead: a write or read failed, the port
+   * closed or too many queries in a row got no reply.
+   * 
+   * @return true if the port is back, with the settings restored
+   */
+  private boolean recover() {
+    Reconnector reconnector = this.reconnector;
+    if (reconnector == null || recovering || closedByUser
+        || !(broken || !transport.isOpen() || timeouts >= reconnector.getDeadAfter())) {
+      return false;
+    }
+    recovering = true;
+    try {
+      return reconnector.recover(failingSince);
+    } finally {
+      recovering = false;
+    }
+  }
 
-  private int send(String command) {
+  /**
+   * Closes and opens the port, checks it is still the same device and sends everything that was
+   * set before. For {@link Reconnector}.
+   * 
+   * @param restoreOutput Switch the output back on if it was on, otherwise it is switched off. The
+   *        output also stays off while it is held off.
+   * @return false if the port didn't open, there is another device on it or it died again
+   */
+  boolean reconnect(boolean restoreOutput) {
+    transport.close();
+    state.invalidate();
+    broken = false;
+    timeouts = 0;
+    if (!transport.open()) {
+      return false;
+    }
+    drain();
+    String id = getId();
+    if (id.isEmpty() || (identity != null && !identity.equals(id))) {
+      log("ERROR expected " + identity + " on port: " + transport.getName() + ", found: " + id);
+      transport.close();
+      return false;
+    }
+    // Output last, when the voltage and current are right again
+    if (wanted.centivolts != DeviceState.UNKNOWN)
+      setCentivolts(wanted.centivolts);
+    if (wanted.milliamps != DeviceState.UNKNOWN)
+      setCurrentMilliamps(wanted.milliamps);
+    if (wanted.ocp != DeviceState.UNKNOWN)
+      setOCP(wanted.ocp == 1);
+    if (wanted.ovp != DeviceState.UNKNOWN)
+      setOVP(wanted.ovp == 1);
+    if (wanted.output != DeviceState.UNKNOWN)
+      setEnabled(restoreOutput && !outputHeldOff && wanted.output == 1, 0);
+    log("Reconnected to " + id + " on port: " + transport.getName());
+    return !broken;
+  }
 
-    long now = System.currentTimeMillis();
-    long timePassed = now - lastSend;
-    long minTime = 50; // ms
-    // Optimized sleep between sends.
-    // So we don't always have to sleep the Thread.
-    if (timePassed <= minTime) {
-      try {
-        Thread.sleep(minTime - timePassed);
-      } catch (InterruptedException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
+  /**
+   * Only one reconnector at a time, a new one replaces the old one.
+   */
+  void setReconnector(Reconnector reconnector) {
+    this.reconnector = reconnector;
+  }
+
+  void removeReconnector(Reconnector reconnector) {
+    if (this.reconnector == reconnector) {
+      this.reconnector = null;
     }
-    byte[] buffer;
-    int bytes = -1;
-    try {
-      buffer = command.getBytes("UTF-8");
-      long bytesToWrite = Long.valueOf(buffer.length);
-      bytes = serialPort.writeBytes(buffer, bytesToWrite);
-      lastSend = System.currentTimeMillis();
-      if (bytes == buffer.length) {
-        log("SEND " + command + " (" + bytes + " bytes)");
-      } else {
-        log("ERROR only send: " + buffer.length + " bytes");
-      }
-    } catch (UnsupportedEncodingException e) {
-      e.printStackTrace();
+  }
+
+  /**
+   * Throws away anything that is left of a bad reply.
+   */
+  private void drain() {
+    while (transport.read(response, 0, response.length, 1) > 0);
+  }
+
+  public synchronized String read() {
+    int length = read(Query.UNKNOWN_LENGTH, Query.NO_TERMINATOR);
+    return new String(response, 0, length, StandardCharsets.US_ASCII);
+  }
+
+
+  private int send(byte[] command) {
+    return send(command, command.length);
+  }
+
+  /**
+   * Sends the first length bytes of the buffer as one command.
+   */
+  private int send(byte[] buffer, int length) {
+    CommandType type = CommandType.of(buffer, length);
+    pacer.await(type);
+    int bytes = transport.write(buffer, 0, length);
+    pacer.sent(type);
+    metrics.sent(bytes, length, pacer.getLastWait());
+    if (bytes == length) {
+      // Only build the log line when someone is going to read it.
+      if (debug)
+        log("SEND " + new String(buffer, 0, length, StandardCharsets.US_ASCII) + " (" + bytes
+            + " bytes)");
+    } else {
+      broken = true;
+      failed();
+      log("ERROR only send: " + bytes + " of " + length + " bytes");
     }
     return bytes;
   }
 
   /**
-   * @param numBytes
-   * @return
+   * Reads the reply into the response buffer with as few reads as possible. The buffer is reused
+   * for every reply, so polling doesn't create any garbage. The reply is complete when numBytes are
+   * in, when the terminator comes in or when the device has been quiet for the idle gap, whichever
+   * comes first. Only the first byte gets the full read timeout.
+   * 
+   * @param numBytes The expected length of the reply or {@link Query#UNKNOWN_LENGTH}
+   * @param terminator The byte that ends the reply or {@link Query#NO_TERMINATOR}, it is not
+   *        included in the result
+   * @return The number of bytes read
    */
-  private String read(int numBytes) {
-    String value = "";
-    InputStream in = serialPort.getInputStream();
-    try {
-      while (true) {
-        int currentByte = in.read();
-        value += (char) currentByte;
-        if (numBytes >= 0 && value.length() == numBytes) {
+  private int read(int numBytes, int terminator) {
+    int wanted = (numBytes >= 0) ? Math.min(numBytes, response.length) : response.length;
+    int length = 0;
+    long lastByte = 0;
+    while (length < wanted) {
+      int timeout = READ_TIMEOUT;
+      if (length > 0) {
+        long idle = idleGap - (System.nanoTime() - lastByte);
+        if (idle <= 0) {
           break;
         }
+        timeout = (int) ((idle + 999_999) / 1_000_000);
+      }
+      int read = transport.read(response, length, wanted - length, timeout);
+      if (read < 0 || (read == 0 && length == 0)) {
+        if (read < 0) {
+          metrics.readError();
+          broken = true;
+        } else {
+          metrics.timeout();
+          timeouts++;
+        }
+        failed();
+        log("ERROR during read... No more data comming in");
+        return length;
+      }
+      if (read > 0) {
+        metrics.received(read);
+        lastByte = System.nanoTime();
+        if (terminator >= 0) {
+          for (int i = length; i < length + read; i++) {
+            if (response[i] == terminator) {
+              length = i;
+              wanted = i;
+              read = 0;
+              break;
+            }
+          }
+        }
+        length += read;
+      }
+    }
+    if (numBytes >= 0 && length < numBytes) {
+      metrics.incompleteReply();
+      log("ERROR only read: " + length + " of " + numBytes + " bytes");
+    }
+    if (debug)
+      log("READ " + new String(response, 0, length, StandardCharsets.US_ASCII) + " (" + length
+          + " bytes)");
+    return length;
+  }
+
+  /**
+   * @param idleGap How long the device has to be quiet before a reply of unknown length is
+   *        considered complete
+   */
+  public void setIdleGap(long idleGap, TimeUnit unit) {
+    this.idleGap = unit.toNanos(idleGap);
+  }
+
+  /**
+   * Parses replies like 05.00 or 0.200 straight from the bytes.
+   * 
+   * @param bytes The reply
+   * @param offset Where the number starts
+   * @param length The length of the number
+   * @return The value
+   * @throws NumberFormatException If the reply is not a number
+   */
+  static float parseDecimal(byte[] bytes, int offset, int length) {
+    int value = 0;
+    int scale = 1;
+    int digits = 0;
+    boolean dot = false;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = bytes[i];
+      if (b >= '0' && b <= '9') {
+        value = value * 10 + (b - '0');
+        digits++;
+        if (dot)
+          scale *= 10;
+      } else if (b == '.' && !dot) {
+        dot = true;
+      } else {
+        throw new NumberFormatException(
+            "Not a number: " + new String(bytes, offset, length, StandardCharsets.US_ASCII));
       }
-      in.close();
-      log("READ " + value + " (" + value.length() + " bytes)");
-    } catch (SerialPortTimeoutException e) {
-      log("ERROR during read... No more data comming in");
-    } catch (IOException e) {
+    }
+    if (digits == 0 || digits > 7)
+      throw new NumberFormatException(
+          "Not a number: " + new String(bytes, offset, length, StandardCharsets.US_ASCII));
+    // Both are exact floats, so the division rounds just like Float.valueOf would.
+    return (float) value / scale;
+  }
+
+  /**
+   * Sends a voltage or current setting that was encoded before, keeping track of it like the
+   * setters do. For {@link CompiledProfile}.
+   * 
+   * @return true if the command was written completely
+   */
+  synchronized boolean sendSetting(byte[] command, boolean voltage, int value) {
+    if (voltage) {
+      wanted.centivolts = value;
+    } else {
+      wanted.milliamps = value;
+    }
+    boolean sent = sendSetting(command, command.length);
+    if (voltage) {
+      state.centivolts = sent ? value : DeviceState.UNKNOWN;
+    } else {
+      state.milliamps = sent ? value : DeviceState.UNKNOWN;
+    }
+    return sent;
+  }
+
+  /**
+   * Sends a setting. If the port turns out to be dead and the {@link Reconnector} gets it back, all
+   * settings are sent again, this one included.
+   * 
+   * @return true if the setting got to the device
+   */
+  private boolean sendSetting(byte[] buffer, int length) {
+    return send(buffer, length) == length || recover();
+  }
+
+  /**
+   * Every status byte read, by any query, goes through here. The monitor's listeners are called
+   * after the device is let go.
+   */
+  private void received(byte status) {
+    // The output was switched on by us and nobody switched it off as far as we know
+    boolean expectOutput = state.output == 1;
+    state.check(status);
+    StatusMonitor monitor = this.monitor;
+    if (monitor != null) {
+      monitor.received(status, pacer.getLastSend(), expectOutput);
+    }
+  }
 
+  /**
+   * Only one monitor at a time, a new one replaces the old one.
+   */
+  void setStatusMonitor(StatusMonitor monitor) {
+    this.monitor = monitor;
+  }
+
+  void removeStatusMonitor(StatusMonitor monitor) {
+    if (this.monitor == monitor) {
+      this.monitor = null;
     }
+  }
 
-    return value;
+  private void skip(String command) {
+    skippedCommands++;
+    if (debug)
+      log("SKIP " + command + ", the device already has this setting");
+  }
+
+  /**
+   * Forget what was sent to the device, the next settings are always sent and set values are read
+   * from the device. Use this if someone could have used the front panel.
+   */
+  public synchronized void invalidateCache() {
+    state.invalidate();
   }
 
+  /**
+   * Forget only whether the output is on, the next OUT command is always sent. The other cached
+   * settings stay valid.
+   */
+  public synchronized void invalidateOutput() {
+    state.output = DeviceState.UNKNOWN;
+  }
+
+  /**
+   * @return What went over the wire, register it to see it over JMX
+   */
+  public DeviceMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return The number of settings that weren't sent because the device already had them
+   */
+  public long getSkippedCommandCount() {
+    return skippedCommands;
+  }
 
-  private void log(String string) {
+  /**
+   * Prints the line when debugging is on, also for the helpers that work with this device.
+   */
+  void log(String string) {
     if (debug)
       System.out.println(string);
   }
@@ -289,16 +1112,31 @@ public class LabPSU3005D {
     NONE
   }
 
-  public class Status {
+  /**
+   * The decoded status byte. Doesn't change, and all 256 values per channel are made once and
+   * shared, so reading the status doesn't create garbage. Get one with {@link #of(int, byte)}.
+   */
+  public static final class Status {
+
+    // Every possible status for channel 1 and 2
+    private static final Status[][] STATUSES = new Status[2][256];
 
-    private byte raw;
-    private int modeCh1;
-    private int modeCh2;
-    private boolean beep;
-    private boolean ocp;
-    private boolean output;
-    private boolean ovp;
-    private int channel;
+    static {
+      for (int channel = 1; channel <= 2; channel++) {
+        for (int raw = 0; raw < 256; raw++) {
+          STATUSES[channel - 1][raw] = new Status(channel, (byte) raw);
+        }
+      }
+    }
+
+    private final byte raw;
+    private final int modeCh1;
+    private final int modeCh2;
+    private final boolean beep;
+    private final boolean ocp;
+    private final boolean output;
+    private final boolean ovp;
+    private final int channel;
 
     public Status(int channel, byte statusByte) {
       this.channel = channel;
@@ -308,10 +1146,20 @@ public class LabPSU3005D {
       this.beep = intToBool((statusByte >> 4) & 1);
       this.ocp = intToBool((statusByte >> 5) & 1);
       this.output = intToBool((statusByte >> 6) & 1);
+      this.ovp = intToBool((statusByte >> 7) & 1);
 
     }
 
-    private boolean intToBool(int i) {
+    /**
+     * @param channel 1 or 2, anything else is taken as 1
+     * @param statusByte The reply to STATUS?
+     * @return The shared status for this byte
+     */
+    public static Status of(int channel, byte statusByte) {
+      return STATUSES[(channel == 2) ? 1 : 0][statusByte & 0xFF];
+    }
+
+    private static boolean intToBool(int i) {
       if (i == 1)
         return true;
       return false;
@@ -324,6 +1172,9 @@ public class LabPSU3005D {
      * mode 1 nothing for 1ch device 2 nothing for 1ch device 4 Beeper enabled? 5 OCP enabled? 6
      * Output is enabled? 7 N/A N/A (this one is sketchy it shows true when output is enabed and OCP
      * and/or OVP is enabled... weird
+     * 
+     * Bit 7 is taken as OVP enabled, the same as bit 5 for OCP. That is what the units on my desk
+     * do, it follows OVP1/ OVP0.
      */
     public boolean beep() {
       return beep;
@@ -341,10 +1192,18 @@ public class LabPSU3005D {
       return MODE.NONE;
     }
 
+    public int getChannel() {
+      return channel;
+    }
+
     public boolean getOCP() {
       return ocp;
     }
 
+    public boolean getOVP() {
+      return ovp;
+    }
+
     public boolean getOutput() {
       return output;
     }
@@ -363,22 +1222,69 @@ public class LabPSU3005D {
 
   }
 
-  public boolean openPort() {
-
-    boolean success = serialPort.openPort();
-    log(success
-        ? "Device with id: " + getId() + " connected on port: " + serialPort.getSystemPortName()
-        : "No device on port detected");
+  public synchronized boolean openPort() {
+
+    state.invalidate();
+    boolean success = transport.open();
+    closedByUser = !success;
+    broken = false;
+    timeouts = 0;
+    failingSince = 0;
+    if (success) {
+      String id = getId();
+      identity = id;
+      // Continue pacing with what has been learned about this firmware
+      pacer.setFirmware(id);
+      log("Device with id: " + id + " connected on port: " + transport.getName());
+    } else {
+      log("No device on port detected");
+    }
     return success;
   }
 
   public boolean isOpen() {
     ;
-    return serialPort.isOpen();
+    return transport.isOpen();
+  }
+
+  /**
+   * @return true if the port was closed on purpose, or never opened
+   */
+  boolean isClosedByUser() {
+    return closedByUser;
+  }
+
+  /**
+   * @return When the last valid reply came in, in {@link System#nanoTime()}, 0 if none yet. Doesn't
+   *         wait for the device.
+   */
+  long getLastReplyNanoTime() {
+    return lastReply;
+  }
+
+  /**
+   * @param heldOff true to leave the output off after a reconnect, even if it was on
+   */
+  void setOutputHeldOff(boolean heldOff) {
+    this.outputHeldOff = heldOff;
+  }
+
+  public synchronized boolean closePort() {
+    // The reconnector leaves a port alone that was closed on purpose
+    closedByUser = true;
+    state.invalidate();
+    return transport.close();
+  }
+
+  /**
+   * @return The pacer, with the learned gaps between commands and the achieved command rate
+   */
+  public Pacer getPacer() {
+    return pacer;
   }
 
-  public boolean closePort() {
-    return serialPort.closePort();
+  public Transport getTransport() {
+    return transport;
   }
 
   public void setDebug(boolean debug) {
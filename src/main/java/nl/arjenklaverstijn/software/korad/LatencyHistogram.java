@@ -0,0 +1,124 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets that double in size, starting at 1 microsecond. Recording is a few
+ * plain stores, so it can run for every command. There is one writer, the thread talking to the
+ * device, and anyone can read it.
+ * <p>
+ * Percentiles are the upper bound of the bucket they fall in, so they are at most a factor two
+ * off, which is plenty to tell a 2ms reply from a 40ms one.
+ * </p>
+ * 
+ * @author arjen
+ *
+ */
+public final class LatencyHistogram {
+
+  // Bucket 0 is below 1us, bucket 31 is everything from about 18 minutes
+  private static final int BUCKETS = 32;
+
+  private static final int COUNT = BUCKETS;
+  private static final int SUM = BUCKETS + 1;
+  private static final int MAX = BUCKETS + 2;
+
+  private final AtomicLongArray values = new AtomicLongArray(BUCKETS + 3);
+
+  LatencyHistogram() {}
+
+  /**
+   * Only called by the one thread talking to the device.
+   * 
+   * @param nanos The latency in ns
+   */
+  void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000));
+    values.lazySet(bucket, values.get(bucket) + 1);
+    values.lazySet(SUM, values.get(SUM) + nanos);
+    if (nanos > values.get(MAX)) {
+      values.lazySet(MAX, nanos);
+    }
+    // The count goes last, readers that see it also see the bucket. lazySet keeps that order
+    // without a fence.
+    values.lazySet(COUNT, values.get(COUNT) + 1);
+  }
+
+  void reset() {
+    for (int i = 0; i < values.length(); i++) {
+      values.set(i, 0);
+    }
+  }
+
+  /**
+   * @return A copy that doesn't change anymore
+   */
+  public LatencyHistogram copy() {
+    LatencyHistogram copy = new LatencyHistogram();
+    // Count first, so the buckets are at least as far as the count
+    copy.values.set(COUNT, values.get(COUNT));
+    for (int i = 0; i < values.length(); i++) {
+      if (i != COUNT) {
+        copy.values.set(i, values.get(i));
+      }
+    }
+    return copy;
+  }
+
+  public long getCount() {
+    return values.get(COUNT);
+  }
+
+  /**
+   * @return The total of all latencies, in ns
+   */
+  public long getTotal() {
+    return values.get(SUM);
+  }
+
+  /**
+   * @return The mean latency, in ns
+   */
+  public double getMean() {
+    long count = getCount();
+    return (count == 0) ? 0 : (double) getTotal() / count;
+  }
+
+  /**
+   * @return The longest latency, in ns
+   */
+  public long getMax() {
+    return values.get(MAX);
+  }
+
+  /**
+   * @param percentile For example 99 for the 99th percentile
+   * @return The latency that this percentage of the samples stayed under, in ns
+   */
+  public long getPercentile(double percentile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += values.get(bucket);
+      if (seen >= rank) {
+        return Math.min(getMax(), TimeUnit.MICROSECONDS.toNanos(1L << bucket));
+      }
+    }
+    return getMax();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", getCount(),
+        getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(99) / 1e6, getMax() / 1e6);
+  }
+
+}
@@ -0,0 +1,110 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The {@link DeviceMetrics} of a device at one moment. Doesn't change anymore, so it can be kept
+ * or compared with a later one.
+ * 
+ * @author arjen
+ *
+ */
+public final class MetricsSnapshot {
+
+  private final long timestamp;
+  private final long commands;
+  private final long bytesWritten;
+  private final long bytesRead;
+  private final long timeouts;
+  private final long readErrors;
+  private final long shortWrites;
+  private final long incompleteReplies;
+  private final long invalidReplies;
+  private final LatencyHistogram pacingWait;
+  private final Map<String, LatencyHistogram> roundTrips;
+
+  MetricsSnapshot(long timestamp, long commands, long bytesWritten, long bytesRead, long timeouts,
+      long readErrors, long shortWrites, long incompleteReplies, long invalidReplies,
+      LatencyHistogram pacingWait, Map<String, LatencyHistogram> roundTrips) {
+    this.timestamp = timestamp;
+    this.commands = commands;
+    this.bytesWritten = bytesWritten;
+    this.bytesRead = bytesRead;
+    this.timeouts = timeouts;
+    this.readErrors = readErrors;
+    this.shortWrites = shortWrites;
+    this.incompleteReplies = incompleteReplies;
+    this.invalidReplies = invalidReplies;
+    this.pacingWait = pacingWait;
+    this.roundTrips = Collections.unmodifiableMap(roundTrips);
+  }
+
+  /**
+   * @return When the snapshot was taken, in ms since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public long getCommandCount() {
+    return commands;
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  public long getTimeouts() {
+    return timeouts;
+  }
+
+  public long getReadErrors() {
+    return readErrors;
+  }
+
+  public long getShortWrites() {
+    return shortWrites;
+  }
+
+  public long getIncompleteReplies() {
+    return incompleteReplies;
+  }
+
+  public long getInvalidReplies() {
+    return invalidReplies;
+  }
+
+  public LatencyHistogram getPacingWait() {
+    return pacingWait;
+  }
+
+  /**
+   * @return The round trip times keyed by the name of the query, for example VOUT or SNAPSHOT
+   */
+  public Map<String, LatencyHistogram> getRoundTrips() {
+    return roundTrips;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(commands + " commands, " + bytesWritten + " bytes out, " + bytesRead
+        + " bytes in\n");
+    builder.append(timeouts + " timeouts, " + readErrors + " read errors, " + shortWrites
+        + " short writes, " + incompleteReplies + " incomplete and " + invalidReplies
+        + " invalid replies\n");
+    builder.append(String.format("%-9s %s%n", "pacing", pacingWait));
+    for (Map.Entry<String, LatencyHistogram> entry : roundTrips.entrySet()) {
+      if (entry.getValue().getCount() > 0) {
+        builder.append(String.format("%-9s %s%n", entry.getKey(), entry.getValue()));
+      }
+    }
+    return builder.toString();
+  }
+
+}
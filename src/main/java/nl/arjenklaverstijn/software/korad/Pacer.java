@@ -0,0 +1,316 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the time between commands as short as the device allows. The device ignores commands that
+ * arrive while it is still busy with the previous one, and how long that takes depends on what the
+ * previous command was. So the pacer keeps a gap per type of the previous command and learns it:
+ * <ul>
+ * <li>Every valid reply to a query proves the gap before it was long enough, the gap is then
+ * shortened a little to probe for the minimum.</li>
+ * <li>A short or garbled reply means the query was (partly) ignored, the gap is doubled and the gap
+ * that failed becomes the floor.</li>
+ * <li>No reply at all only counts when the query sent again gets a valid one, the first one was
+ * ignored then. A unit that stays silent is unplugged or off, that says nothing about its pace.</li>
+ * <li>After a long run of valid replies the floor comes down a little, so one bad moment isn't kept
+ * forever.</li>
+ * </ul>
+ * The floor and the gaps never go over {@link #MAX_GAP}.
+ * Because only queries can tell whether they were heard, only queries are sent at the probing gap.
+ * Settings and OUT commands wait for the shortest gap a query has actually confirmed.
+ * <p>
+ * What has been learned is shared by all devices with the same firmware, as identified by the
+ * *IDN? string.
+ * </p>
+ *
+ * @author arjen
+ *
+ */
+public class Pacer {
+
+  public enum CommandType {
+    QUERY,
+    SETTING,
+    OUTPUT;
+
+    /**
+     * @param command The command as sent to the device
+     * @return The type of the command
+     */
+    public static CommandType of(byte[] command) {
+      return of(command, command.length);
+    }
+
+    /**
+     * @param buffer Holds the command
+     * @param length The length of the command in the buffer
+     * @return The type of the command
+     */
+    public static CommandType of(byte[] buffer, int length) {
+      if (length >= 3 && buffer[0] == 'O' && buffer[1] == 'U' && buffer[2] == 'T') {
+        return OUTPUT;
+      }
+      if (length > 0 && buffer[length - 1] == '?') {
+        return QUERY;
+      }
+      return SETTING;
+    }
+  }
+
+  // The gap the library always used, known to be safe.
+  public static final long INITIAL_GAP = TimeUnit.MILLISECONDS.toNanos(50);
+  // Failures after waiting longer than this are not caused by pacing.
+  public static final long MAX_GAP = TimeUnit.MILLISECONDS.toNanos(200);
+
+  private static final int GAP = 0;
+  private static final int SAFE = 1;
+  private static final int FLOOR = 2;
+  // Valid replies in a row
+  private static final int STREAK = 3;
+  private static final int FIELDS = 4;
+  // Valid replies in a row before the floor comes down
+  static final int DECAY_AFTER = 256;
+  private static final int TYPES = CommandType.values().length;
+
+  private static final Map<String, AtomicLongArray> LEARNED = new ConcurrentHashMap<>();
+
+  private static final CommandType[] TYPE_VALUES = CommandType.values();
+
+  private AtomicLongArray table = newTable();
+  private String firmware;
+
+  // Read by other threads for the time of the last command
+  private volatile long lastSend = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+  private CommandType lastType = CommandType.QUERY;
+  // The gap before the last command and the type of the command before that
+  private long lastGap;
+  private CommandType gapType = CommandType.QUERY;
+  // A query without a reply that may have been too fast, -1 if none
+  private long missedGap = -1;
+  private CommandType missedType = CommandType.QUERY;
+
+  private final long[] turnaround = new long[TYPES];
+  private long commands;
+  private long averageInterval;
+  private long lastWait;
+
+  private static AtomicLongArray newTable() {
+    AtomicLongArray table = new AtomicLongArray(TYPES * FIELDS);
+    for (int type = 0; type < TYPES; type++) {
+      table.set(type * FIELDS + GAP, INITIAL_GAP);
+      table.set(type * FIELDS + SAFE, INITIAL_GAP);
+    }
+    return table;
+  }
+
+  /**
+   * Switches to what has been learned for this firmware.
+   *
+   * @param firmware The *IDN? string of the device
+   */
+  public void setFirmware(String firmware) {
+    if (firmware == null || firmware.isEmpty()) {
+      return;
+    }
+    this.firmware = firmware;
+    this.table = LEARNED.computeIfAbsent(firmware, id -> newTable());
+  }
+
+  public String getFirmware() {
+    return firmware;
+  }
+
+  /**
+   * Parks the calling thread until the device is ready for the next command.
+   *
+   * @param next The type of command that is about to be sent
+   */
+  public void await(CommandType next) {
+    long deadline = getReadyTime(next);
+    // parkNanos returns immediately while interrupted, so keep the flag for after the wait.
+    boolean interrupted = Thread.interrupted();
+    long remaining = deadline - System.nanoTime();
+    lastWait = Math.max(0, remaining);
+    while (remaining > 0) {
+      LockSupport.parkNanos(remaining);
+      interrupted |= Thread.interrupted();
+      remaining = deadline - System.nanoTime();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @param next The type of command that is about to be sent
+   * @return When the device is ready for it, in {@link System#nanoTime()}
+   */
+  public long getReadyTime(CommandType next) {
+    return lastSend
+        + table.get(lastType.ordinal() * FIELDS + (next == CommandType.QUERY ? GAP : SAFE));
+  }
+
+  /**
+   * Call right after a command has been written.
+   *
+   * @param type The type of the command
+   */
+  public void sent(CommandType type) {
+    long now = System.nanoTime();
+    lastGap = now - lastSend;
+    gapType = lastType;
+    lastSend = now;
+    lastType = type;
+    if (lastGap < MAX_GAP) {
+      averageInterval = (averageInterval == 0) ? lastGap
+          : averageInterval + (lastGap - averageInterval) / 8;
+    }
+    commands++;
+  }
+
+  /**
+   * Call when the reply to a query has been read.
+   *
+   * @param valid If the reply had the right length and format, false for a short or garbled one
+   */
+  public void replied(boolean valid) {
+    replied(valid, System.nanoTime());
+  }
+
+  /**
+   * @param now When the reply was read, in {@link System#nanoTime()}
+   */
+  void replied(boolean valid, long now) {
+    int base = gapType.ordinal() * FIELDS;
+    if (valid) {
+      int type = lastType.ordinal();
+      long took = now - lastSend;
+      turnaround[type] = (turnaround[type] == 0) ? took
+          : turnaround[type] + (took - turnaround[type]) / 8;
+      // The unit is there, so the query before this one was ignored
+      if (missedGap >= 0) {
+        tooFast(missedType.ordinal() * FIELDS, missedGap);
+      }
+      // The gap before this query was long enough.
+      if (lastGap < table.get(base + SAFE)) {
+        table.set(base + SAFE, Math.max(lastGap, table.get(base + FLOOR)));
+      }
+      long gap = table.get(base + GAP);
+      table.set(base + GAP, Math.max(table.get(base + FLOOR), gap - gap / 32));
+      if (table.incrementAndGet(base + STREAK) >= DECAY_AFTER) {
+        long floor = table.get(base + FLOOR);
+        table.set(base + FLOOR, floor - floor / 8);
+        table.set(base + STREAK, 0);
+      }
+    } else {
+      tooFast(base, lastGap);
+    }
+    missedGap = -1;
+  }
+
+  /**
+   * Call when a query got no reply at all. Only learned from when the next query is answered.
+   */
+  public void noReply() {
+    // Two in a row, the unit is silent
+    if (missedGap >= 0 || lastGap >= MAX_GAP) {
+      missedGap = -1;
+    } else {
+      missedGap = lastGap;
+      missedType = gapType;
+    }
+  }
+
+  private void tooFast(int base, long gap) {
+    table.set(base + STREAK, 0);
+    if (gap >= MAX_GAP) {
+      return;
+    }
+    // Back off and don't go this low again.
+    long floor = Math.min(MAX_GAP, Math.max(table.get(base + FLOOR), gap + gap / 4));
+    table.set(base + FLOOR, floor);
+    table.set(base + GAP, Math.min(MAX_GAP, Math.max(floor, table.get(base + GAP) * 2)));
+    table.set(base + SAFE, Math.min(MAX_GAP, Math.max(floor, table.get(base + SAFE))));
+  }
+
+  /**
+   * @param previous The type of the previous command
+   * @return The gap queries wait for after this type of command, in ns
+   */
+  public long getGap(CommandType previous) {
+    return table.get(previous.ordinal() * FIELDS + GAP);
+  }
+
+  /**
+   * @param previous The type of the previous command
+   * @return The gap settings and OUT commands wait for after this type of command, in ns
+   */
+  public long getSafeGap(CommandType previous) {
+    return table.get(previous.ordinal() * FIELDS + SAFE);
+  }
+
+  /**
+   * @param previous The type of the previous command
+   * @return The shortest gap that is allowed after this type of command, in ns
+   */
+  public long getFloor(CommandType previous) {
+    return table.get(previous.ordinal() * FIELDS + FLOOR);
+  }
+
+  /**
+   * @param type The type of command
+   * @return Average time between sending and the complete reply, in ns. Only queries have a reply.
+   */
+  public long getTurnaround(CommandType type) {
+    return turnaround[type.ordinal()];
+  }
+
+  /**
+   * @return How long the last {@link #await(CommandType)} held the command back, in ns
+   */
+  public long getLastWait() {
+    return lastWait;
+  }
+
+  /**
+   * @return When the last command was sent, in {@link System#nanoTime()}
+   */
+  public long getLastSend() {
+    return lastSend;
+  }
+
+  /**
+   * @return The number of commands sent
+   */
+  public long getCommandCount() {
+    return commands;
+  }
+
+  /**
+   * @return The recent rate of commands, only counting commands sent in a row
+   */
+  public double getCommandsPerSecond() {
+    return (averageInterval == 0) ? 0 : 1e9 / averageInterval;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("Pacing for " + (firmware == null ? "unknown firmware" : firmware) + "\n");
+    // The gaps are the wait after a command of that type, the reply time is for the type itself
+    builder.append(String.format("%-8s %10s %10s %10s %12s%n", "type", "gap ms", "safe ms",
+        "floor ms", "reply ms"));
+    for (CommandType type : TYPE_VALUES) {
+      builder.append(String.format("%-8s %10.2f %10.2f %10.2f %12.2f%n", type, getGap(type) / 1e6,
+          getSafeGap(type) / 1e6, getFloor(type) / 1e6, getTurnaround(type) / 1e6));
+    }
+    builder.append(String.format("%.1f commands/s", getCommandsPerSecond()));
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,294 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleUnaryOperator;
+import nl.arjenklaverstijn.software.korad.Pacer.CommandType;
+
+/**
+ * Voltage, and optionally current, as a function of time. Make one with the static methods, then
+ * {@link #compile(long, TimeUnit)} it into a {@link CompiledProfile} that can be streamed to the
+ * device.
+ *
+ * <pre>
+ * Profile profile = Profile.sine(5, 2, 10, 60).withCurrentLimit(1);
+ * ProfileReport report = profile.compile(device).stream(device, getScheduler());
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
+public final class Profile {
+
+  private final double duration;
+  private final DoubleUnaryOperator voltage;
+  // null leaves the current as it is
+  private final DoubleUnaryOperator current;
+
+  private Profile(double duration, DoubleUnaryOperator voltage, DoubleUnaryOperator current) {
+    if (!(duration >= 0)) {
+      throw new IllegalArgumentException("The duration can't be negative");
+    }
+    this.duration = duration;
+    this.voltage = voltage;
+    this.current = current;
+  }
+
+  /**
+   * Straight lines between the points.
+   * 
+   * @param seconds The time of every point, from the start, in order
+   * @param volts The voltage at every point
+   */
+  public static Profile piecewiseLinear(double[] seconds, double[] volts) {
+    checkPoints(seconds, volts);
+    return new Profile(seconds[seconds.length - 1], interpolate(seconds, volts), null);
+  }
+
+  /**
+   * Every value holds until the time of the next one.
+   * 
+   * @param seconds The time every step starts, from the start, in order
+   * @param volts The voltage of every step
+   * @param duration The time the last step ends, in s
+   */
+  public static Profile steps(double[] seconds, double[] volts, double duration) {
+    checkPoints(seconds, volts);
+    double[] times = seconds.clone();
+    double[] values = volts.clone();
+    return new Profile(duration, t -> values[Math.max(0, floor(times, t))], null);
+  }
+
+  /**
+   * @param offset The voltage in the middle
+   * @param amplitude How far the voltage goes up and down from the middle
+   * @param period The time of one wave, in s
+   * @param duration The time of the whole profile, in s
+   */
+  public static Profile sine(double offset, double amplitude, double period, double duration) {
+    return new Profile(duration, t -> offset + amplitude * Math.sin(2 * Math.PI * t / period),
+        null);
+  }
+
+  /**
+   * Reads points from lines of seconds,volts or seconds,volts,amps and draws straight lines between
+   * them. Empty lines and lines starting with # are skipped, and so is the first other line when it
+   * doesn't start with a number, that is the header. When the lines have a current, the profile
+   * sets both.
+   * 
+   * @param csv The points, in order
+   * @throws IOException If reading fails
+   * @throws IllegalArgumentException If a line isn't a point
+   */
+  public static Profile fromCsv(Reader csv) throws IOException {
+    List<double[]> points = new ArrayList<>();
+    BufferedReader reader = new BufferedReader(csv);
+    String line;
+    int number = 0;
+    boolean first = true;
+    boolean withCurrent = false;
+    while ((line = reader.readLine()) != null) {
+      number++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("[,;]");
+      boolean header = first && !isNumber(fields[0]);
+      first = false;
+      if (header) {
+        continue;
+      }
+      if (fields.length < 2 || fields.length > 3
+          || (!points.isEmpty() && (fields.length == 3) != withCurrent)) {
+        throw new IllegalArgumentException("Line " + number + " is not a point: " + line);
+      }
+      withCurrent = fields.length == 3;
+      double[] point = new double[fields.length];
+      try {
+        for (int i = 0; i < fields.length; i++) {
+          point[i] = Double.parseDouble(fields[i].trim());
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Line " + number + " is not a point: " + line, e);
+      }
+      points.add(point);
+    }
+    double[] seconds = new double[points.size()];
+    double[] volts = new double[points.size()];
+    double[] amps = new double[points.size()];
+    for (int i = 0; i < seconds.length; i++) {
+      seconds[i] = points.get(i)[0];
+      volts[i] = points.get(i)[1];
+      amps[i] = withCurrent ? points.get(i)[2] : 0;
+    }
+    checkPoints(seconds, volts);
+    return new Profile(seconds[seconds.length - 1], interpolate(seconds, volts),
+        withCurrent ? interpolate(seconds, amps) : null);
+  }
+
+  /**
+   * @param amps The current limit for the whole profile
+   * @return The same voltages with a current limit
+   */
+  public Profile withCurrentLimit(double amps) {
+    return new Profile(duration, voltage, t -> amps);
+  }
+
+  /**
+   * @param amps Takes the voltage of this profile as the current, in A
+   * @return The same voltages with the current following the other profile
+   */
+  public Profile withCurrent(Profile amps) {
+    return new Profile(duration, voltage, amps.voltage);
+  }
+
+  private static boolean isNumber(String field) {
+    try {
+      Double.parseDouble(field.trim());
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private static void checkPoints(double[] seconds, double[] values) {
+    if (seconds.length == 0 || seconds.length != values.length) {
+      throw new IllegalArgumentException("Needs the same number of times and values");
+    }
+    for (int i = 1; i < seconds.length; i++) {
+      if (seconds[i] < seconds[i - 1]) {
+        throw new IllegalArgumentException("The times have to be in order");
+      }
+    }
+  }
+
+  /**
+   * @return The index of the last point at or before t, -1 if before the first
+   */
+  private static int floor(double[] seconds, double t) {
+    int low = 0;
+    int high = seconds.length - 1;
+    int found = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (seconds[middle] <= t) {
+        found = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return found;
+  }
+
+  private static DoubleUnaryOperator interpolate(double[] seconds, double[] values) {
+    double[] times = seconds.clone();
+    double[] points = values.clone();
+    return t -> {
+      int i = floor(times, t);
+      if (i < 0) {
+        return points[0];
+      }
+      if (i == times.length - 1) {
+        return points[i];
+      }
+      double span = times[i + 1] - times[i];
+      // Two points at the same time make a step
+      if (span == 0) {
+        return points[i + 1];
+      }
+      return points[i] + (points[i + 1] - points[i]) * (t - times[i]) / span;
+    };
+  }
+
+  /**
+   * @return The length of the profile in s
+   */
+  public double getDuration() {
+    return duration;
+  }
+
+  /**
+   * @param seconds Time from the start
+   * @return The voltage at that time
+   */
+  public double getVoltage(double seconds) {
+    return voltage.applyAsDouble(seconds);
+  }
+
+  /**
+   * @param seconds Time from the start
+   * @return The current at that time, NaN if the profile doesn't set the current
+   */
+  public double getCurrent(double seconds) {
+    return (current == null) ? Double.NaN : current.applyAsDouble(seconds);
+  }
+
+  public boolean hasCurrent() {
+    return current != null;
+  }
+
+  /**
+   * Compiles with the shortest step the device has shown it can take: the confirmed gap between
+   * settings, times two when the current changes too.
+   * 
+   * @param device A device that has been used for a while, so its pacer has learned
+   */
+  public CompiledProfile compile(LabPSU3005D device) {
+    long gap = device.getPacer().getSafeGap(CommandType.SETTING);
+    return compile((current == null) ? gap : 2 * gap, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Samples the profile every step, rounds to the resolution of the device (10mV and 1mA) and
+   * keeps only the values that change. The commands are encoded right away.
+   * 
+   * @param step The time between samples
+   * @throws IllegalArgumentException If the step isn't positive or gives too many samples
+   */
+  public CompiledProfile compile(long step, TimeUnit unit) {
+    if (step <= 0) {
+      throw new IllegalArgumentException("The step has to be positive: " + step + " " + unit);
+    }
+    long stepNanos = unit.toNanos(step);
+    long durationNanos = Math.round(duration * 1e9);
+    long samples = durationNanos / stepNanos + 1;
+    if (samples > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "A step of " + step + " " + unit + " gives too many samples: " + samples);
+    }
+    CompiledProfile.Builder builder = new CompiledProfile.Builder(durationNanos, stepNanos);
+    for (long i = 0; i < samples; i++) {
+      long offset = i * stepNanos;
+      double t = offset / 1e9;
+      builder.voltage(offset, centivolts(getVoltage(t)));
+      if (current != null) {
+        builder.current(offset, milliamps(getCurrent(t)));
+      }
+    }
+    // Make sure the end point is hit, also when the duration isn't a whole number of steps
+    if ((samples - 1) * stepNanos < durationNanos) {
+      builder.voltage(durationNanos, centivolts(getVoltage(duration)));
+      if (current != null) {
+        builder.current(durationNanos, milliamps(getCurrent(duration)));
+      }
+    }
+    return builder.build();
+  }
+
+  // Rounded to the resolution and within the limits of the device, like the setters do
+
+  private static int centivolts(double volts) {
+    return (int) Math.max(0, Math.min(3100, Math.round(volts * 100)));
+  }
+
+  private static int milliamps(double amps) {
+    return (int) Math.max(0, Math.min(5100, Math.round(amps * 1000)));
+  }
+
+}
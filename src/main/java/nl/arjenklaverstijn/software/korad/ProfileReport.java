@@ -0,0 +1,94 @@
+package nl.arjenklaverstijn.software.korad;
+
+/**
+ * How a {@link CompiledProfile} was streamed compared to what was asked. Times are in ns.
+ * 
+ * @author arjen
+ *
+ */
+public final class ProfileReport {
+
+  private final long requestedDuration;
+  private final long achievedDuration;
+  private final int samples;
+  private final int commands;
+  private final int sent;
+  private final int failed;
+  private final long maxLateness;
+  private final long meanLateness;
+  private final boolean completed;
+
+  ProfileReport(long requestedDuration, long achievedDuration, int samples, int commands, int sent,
+      int failed, long maxLateness, long meanLateness, boolean completed) {
+    this.requestedDuration = requestedDuration;
+    this.achievedDuration = achievedDuration;
+    this.samples = samples;
+    this.commands = commands;
+    this.sent = sent;
+    this.failed = failed;
+    this.maxLateness = maxLateness;
+    this.meanLateness = meanLateness;
+    this.completed = completed;
+  }
+
+  public long getRequestedDuration() {
+    return requestedDuration;
+  }
+
+  public long getAchievedDuration() {
+    return achievedDuration;
+  }
+
+  /**
+   * @return The number of set-points sampled from the profile
+   */
+  public int getSampleCount() {
+    return samples;
+  }
+
+  /**
+   * @return The number of commands in the compiled profile
+   */
+  public int getCommandCount() {
+    return commands;
+  }
+
+  public int getSentCount() {
+    return sent;
+  }
+
+  /**
+   * @return Commands that couldn't be written completely
+   */
+  public int getFailedCount() {
+    return failed;
+  }
+
+  /**
+   * @return How late the latest command went out
+   */
+  public long getMaxLateness() {
+    return maxLateness;
+  }
+
+  public long getMeanLateness() {
+    return meanLateness;
+  }
+
+  /**
+   * @return false if the stream was cancelled
+   */
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "Profile: %d of %d commands sent (%d samples, %d failed)%s, %.1fms of %.1fms, "
+            + "lateness mean %.2fms max %.2fms",
+        sent, commands, samples, failed, completed ? "" : " CANCELLED", achievedDuration / 1e6,
+        requestedDuration / 1e6, meanLateness / 1e6, maxLateness / 1e6);
+  }
+
+}
@@ -0,0 +1,105 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The queries the device understands and how to tell their reply is complete. The protocol has no
+ * line endings, so a reply is complete when the expected number of bytes is in, when the optional
+ * terminator shows up, or when the device stops sending for longer than the idle gap.
+ * 
+ * @author arjen
+ *
+ */
+enum Query {
+
+  // The V2.0 firmware sends an extra byte after the current setting
+  ISET("ISET1?", 6, 1),
+  VSET("VSET1?", 5, 1),
+  IOUT("IOUT1?", 5, 1),
+  VOUT("VOUT1?", 5, 1),
+  STATUS("STATUS?", 1, 0),
+  // Length differs per brand/ firmware, some end it with a newline
+  IDN("*IDN?", Query.UNKNOWN_LENGTH, 0, '\n'),
+  // VOUT1?, IOUT1? and STATUS? in one go, the replies come back to back
+  SNAPSHOT("VOUT1?IOUT1?STATUS?", 11, 2);
+
+  static final int UNKNOWN_LENGTH = -1;
+  static final int NO_TERMINATOR = -1;
+  // Numbers are always 5 characters: 05.00 or 0.200
+  static final int NUMBER_LENGTH = 5;
+
+  private final byte[] command;
+  private final int length;
+  private final int numbers;
+  private final int terminator;
+
+  private Query(String command, int length, int numbers) {
+    this(command, length, numbers, NO_TERMINATOR);
+  }
+
+  private Query(String command, int length, int numbers, int terminator) {
+    this.command = command.getBytes(StandardCharsets.US_ASCII);
+    this.length = length;
+    this.numbers = numbers;
+    this.terminator = terminator;
+  }
+
+  /**
+   * Checks the length of the reply and, for numbers, that it only has digits and a dot.
+   * 
+   * @param reply The reply
+   * @param replyLength The number of bytes in the reply
+   * @return If the reply looks right
+   */
+  boolean isValid(byte[] reply, int replyLength) {
+    if (replyLength == 0 || (length != UNKNOWN_LENGTH && replyLength != length)) {
+      return false;
+    }
+    for (int i = 0; i < numbers * NUMBER_LENGTH; i++) {
+      if ((reply[i] < '0' || reply[i] > '9') && reply[i] != '.') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return Where the status byte is in the reply, -1 if there is none
+   */
+  int getStatusOffset() {
+    switch (this) {
+      case STATUS:
+        return 0;
+      case SNAPSHOT:
+        return 2 * NUMBER_LENGTH;
+      default:
+        return -1;
+    }
+  }
+
+  byte[] getCommand() {
+    return command;
+  }
+
+  /**
+   * @return The length of the reply or {@link #UNKNOWN_LENGTH}
+   */
+  int getLength() {
+    return length;
+  }
+
+  /**
+   * @return The number of values at the start of the reply, each {@link #NUMBER_LENGTH} bytes
+   */
+  int getNumbers() {
+    return numbers;
+  }
+
+  /**
+   * @return The byte that ends the reply or {@link #NO_TERMINATOR}
+   */
+  int getTerminator() {
+    return terminator;
+  }
+
+}
@@ -0,0 +1,183 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gets a {@link LabPSU3005D} going again when the USB serial adapter drops out, instead of letting
+ * a run of hours die on an empty reply.
+ * <p>
+ * The port counts as dead when a write or read fails, the port is closed underneath us or a number
+ * of replies in a row don't come. It is then closed and opened again, first right away and then
+ * with a growing wait in between, until the give up time is over. Once open the *IDN? has to be the
+ * same as before, then the voltage, current, OCP, OVP and output are sent again as they were asked
+ * for and the query that was going on is repeated. The caller just sees a slow reply.
+ * </p>
+ * <p>
+ * Recovery happens on the thread whose command failed, holding the device, so other threads just
+ * wait for it.
+ * How long the device was out of control is kept, from the first failure to the restored settings.
+ * </p>
+ *
+ * <pre>
+ * Reconnector reconnector = new Reconnector(device);
+ * // ... hours later
+ * System.out.println(reconnector);
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
+public class Reconnector implements AutoCloseable {
+
+  private final LabPSU3005D device;
+  private long initialDelay = TimeUnit.MILLISECONDS.toNanos(100);
+  private long maxDelay = TimeUnit.SECONDS.toNanos(5);
+  private long giveUpAfter = TimeUnit.MINUTES.toNanos(1);
+  private int deadAfter = 3;
+  private boolean restoreOutput = true;
+
+  private volatile long recoveries;
+  private volatile long failedRecoveries;
+  private volatile long lastRecoveryTime;
+  private volatile long maxRecoveryTime;
+  private volatile long totalDowntime;
+  private volatile int lastAttempts;
+
+  /**
+   * Starts watching the device, a reconnector that was already there is replaced.
+   */
+  public Reconnector(LabPSU3005D device) {
+    this.device = device;
+    device.setReconnector(this);
+  }
+
+  /**
+   * Called by the device when the port looks dead.
+   *
+   * @param failingSince When the first failure happened in {@link System#nanoTime()}, 0 for now
+   * @return false if the device didn't come back before the give up time, or the thread was
+   *         interrupted
+   */
+  boolean recover(long failingSince) {
+    long start = System.nanoTime();
+    long since = (failingSince == 0) ? start : failingSince;
+    long delay = initialDelay;
+    int attempts = 0;
+    while (true) {
+      attempts++;
+      if (device.reconnect(restoreOutput)) {
+        long downtime = System.nanoTime() - since;
+        lastRecoveryTime = downtime;
+        maxRecoveryTime = Math.max(maxRecoveryTime, downtime);
+        totalDowntime += downtime;
+        lastAttempts = attempts;
+        recoveries++;
+        return true;
+      }
+      long remaining = start + giveUpAfter - System.nanoTime();
+      // Leave the interrupt for the caller to handle
+      if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+        lastAttempts = attempts;
+        failedRecoveries++;
+        return false;
+      }
+      LockSupport.parkNanos(Math.min(delay, remaining));
+      delay = Math.min(maxDelay, delay * 2);
+    }
+  }
+
+  /**
+   * @param initialDelay The wait after the first failed reconnect, it doubles every time
+   * @param maxDelay The wait doesn't grow beyond this
+   */
+  public void setBackoff(long initialDelay, long maxDelay, TimeUnit unit) {
+    this.initialDelay = unit.toNanos(initialDelay);
+    this.maxDelay = unit.toNanos(maxDelay);
+  }
+
+  /**
+   * @param giveUpAfter How long to keep trying, after that the command fails like it would without
+   *        a reconnector. The next command tries again.
+   */
+  public void setGiveUpAfter(long giveUpAfter, TimeUnit unit) {
+    this.giveUpAfter = unit.toNanos(giveUpAfter);
+  }
+
+  /**
+   * @param timeouts The number of replies in a row that don't come before the port counts as dead,
+   *        3 is one query with all its attempts
+   */
+  public void setDeadAfter(int timeouts) {
+    this.deadAfter = timeouts;
+  }
+
+  int getDeadAfter() {
+    return deadAfter;
+  }
+
+  /**
+   * @param restoreOutput false to leave the output off after a reconnect, even if it was on
+   */
+  public void setRestoreOutput(boolean restoreOutput) {
+    this.restoreOutput = restoreOutput;
+  }
+
+  /**
+   * Stops watching the device.
+   */
+  @Override
+  public void close() {
+    device.removeReconnector(this);
+  }
+
+  /**
+   * @return The number of times the device came back
+   */
+  public long getRecoveryCount() {
+    return recoveries;
+  }
+
+  /**
+   * @return The number of times the device didn't come back before the give up time
+   */
+  public long getFailedRecoveryCount() {
+    return failedRecoveries;
+  }
+
+  /**
+   * @return How long the device was out of control the last time it came back, in ns
+   */
+  public long getLastRecoveryTime() {
+    return lastRecoveryTime;
+  }
+
+  /**
+   * @return The longest time the device was out of control, in ns
+   */
+  public long getMaxRecoveryTime() {
+    return maxRecoveryTime;
+  }
+
+  /**
+   * @return The time the device was out of control in all recoveries together, in ns
+   */
+  public long getTotalDowntime() {
+    return totalDowntime;
+  }
+
+  /**
+   * @return The number of reconnects tried the last time
+   */
+  public int getLastAttempts() {
+    return lastAttempts;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d recoveries, %d failed, last %.0fms (%d attempts), max %.0fms, "
+        + "total downtime %.0fms", recoveries, failedRecoveries, lastRecoveryTime / 1e6,
+        lastAttempts, maxRecoveryTime / 1e6, totalDowntime / 1e6);
+  }
+
+}
@@ -0,0 +1,404 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Watches a {@link LabPSU3005D} on threads of its own and pulls the plug when a limit is crossed,
+ * so a bug or a stuck {@link Automation#job} can't cook a battery. It polls the output voltage,
+ * current and status in one snapshot every period and checks:
+ * <ul>
+ * <li>the power, V * I</li>
+ * <li>the charge and energy delivered since the start</li>
+ * <li>how long the output has been in CC without a break, CC for a long time means something is
+ * drawing all it can and is warming up</li>
+ * <li>how long it has been running</li>
+ * <li>how long ago the last valid reply came, a port closed on purpose doesn't count</li>
+ * </ul>
+ * On the first limit crossed the output is switched off right away, then the automation is
+ * cancelled and the supervisor stops. The automation doesn't have to know about it, its job sees
+ * {@link Automation#isCancelled()} and the output going off. The port stays open, so its
+ * {@link Automation#after()} still zeroes the device and closes it.
+ *
+ * <pre>
+ * SafetySupervisor supervisor = new SafetySupervisor(device, automation);
+ * supervisor.setMaxPower(10F);
+ * supervisor.setMaxCharge(2500);
+ * supervisor.setMaxCcTime(2, TimeUnit.HOURS);
+ * supervisor.start(100, TimeUnit.MILLISECONDS);
+ * try {
+ *   automation.run(device);
+ * } finally {
+ *   supervisor.close();
+ * }
+ * System.out.println(supervisor.getTrip());
+ * </pre>
+ *
+ * A limit crossed right after a poll is seen by the next one, so the reaction time is one period
+ * plus the time to send OUT0. The reaction time of a trip is measured from the poll that saw it to
+ * OUT0 leaving the computer. Limits are 0 when not set, except for the stall, which is 1s.
+ * <p>
+ * The stall and the run time are checked by a watchdog thread of its own that doesn't wait for the
+ * device, so they are also seen while a reconnect holds the device. While the supervisor runs, a
+ * reconnect doesn't switch the output back on, the job has to do that itself. That is allowed
+ * again after {@link #close()}.
+ * </p>
+ *
+ * @author arjen
+ *
+ */
+public class SafetySupervisor implements AutoCloseable {
+
+  public enum Limit {
+    POWER,
+    CHARGE,
+    ENERGY,
+    CC_TIME,
+    DEADLINE,
+    STALL
+  }
+
+  /**
+   * Why and how fast the supervisor stepped in.
+   */
+  public static final class Trip {
+
+    private final Limit limit;
+    private final String reason;
+    private final long nanoTime;
+    private final long reactionTime;
+
+    Trip(Limit limit, String reason, long nanoTime, long reactionTime) {
+      this.limit = limit;
+      this.reason = reason;
+      this.nanoTime = nanoTime;
+      this.reactionTime = reactionTime;
+    }
+
+    public Limit getLimit() {
+      return limit;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+    /**
+     * @return When the limit was seen crossed, in {@link System#nanoTime()}
+     */
+    public long getNanoTime() {
+      return nanoTime;
+    }
+
+    /**
+     * @return From the limit seen crossed to OUT0 written, in ns
+     */
+    public long getReactionTime() {
+      return reactionTime;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %s, output off after %.1fms", limit, reason, reactionTime / 1e6);
+    }
+
+  }
+
+  private final LabPSU3005D device;
+  private final Automation automation;
+
+  private volatile float maxPower;
+  private volatile double maxCharge;
+  private volatile double maxEnergy;
+  private volatile long maxCcTime;
+  private volatile long maxRunTime;
+  private volatile long maxStall = TimeUnit.SECONDS.toNanos(1);
+
+  private volatile long started;
+  // Since when a closed port is fine, only the watchdog writes it
+  private long quietSince;
+  // Only the poller writes these
+  private long previousSample;
+  private float previousCurrent;
+  private float previousPower;
+  private long ccSince;
+  private volatile double charge;
+  private volatile double energy;
+  private volatile float power;
+  // A limit crossed in the last sample
+  private Limit crossed;
+  private String reason;
+  private long crossedAt;
+
+  private final SampleSink sink = this::check;
+
+  private volatile Trip trip;
+  private final AtomicBoolean tripped = new AtomicBoolean();
+  private volatile boolean running;
+  private Thread poller;
+  private Thread watchdog;
+
+  /**
+   * @param device The device to watch
+   * @param automation Cancelled on a trip, null to only switch the output off
+   */
+  public SafetySupervisor(LabPSU3005D device, Automation automation) {
+    this.device = device;
+    this.automation = automation;
+  }
+
+  /**
+   * @param watts The most power the output may deliver
+   */
+  public void setMaxPower(float watts) {
+    this.maxPower = watts;
+  }
+
+  /**
+   * @param milliampHours The most charge the output may deliver since the start
+   */
+  public void setMaxCharge(double milliampHours) {
+    this.maxCharge = milliampHours;
+  }
+
+  /**
+   * @param wattHours The most energy the output may deliver since the start
+   */
+  public void setMaxEnergy(double wattHours) {
+    this.maxEnergy = wattHours;
+  }
+
+  /**
+   * @param time The longest time the output may stay in CC without a break
+   */
+  public void setMaxCcTime(long time, TimeUnit unit) {
+    this.maxCcTime = unit.toNanos(time);
+  }
+
+  /**
+   * @param time The longest time the supervisor lets things run, from the start
+   */
+  public void setDeadline(long time, TimeUnit unit) {
+    this.maxRunTime = unit.toNanos(time);
+  }
+
+  /**
+   * @param time The longest time without a valid reply from an open port, a few periods at least
+   */
+  public void setMaxStall(long time, TimeUnit unit) {
+    this.maxStall = unit.toNanos(time);
+  }
+
+  /**
+   * Starts watching on a background thread. The charge, energy and run time start at 0.
+   *
+   * @param period Time between polls, the reaction time
+   */
+  public synchronized void start(long period, TimeUnit unit) {
+    if (running) {
+      throw new IllegalStateException("Already started");
+    }
+    long periodNanos = unit.toNanos(period);
+    started = System.nanoTime();
+    quietSince = started;
+    previousSample = 0;
+    ccSince = 0;
+    charge = 0;
+    energy = 0;
+    power = 0;
+    trip = null;
+    tripped.set(false);
+    device.setOutputHeldOff(true);
+    running = true;
+    String name = device.getTransport().getName();
+    poller = every(periodNanos, this::poll, "SafetySupervisor-" + name);
+    watchdog = every(periodNanos, this::watch, "SafetySupervisor-watchdog-" + name);
+  }
+
+  private Thread every(long periodNanos, Runnable check, String name) {
+    Thread thread = new Thread(() -> {
+      long deadline = System.nanoTime();
+      while (running && !tripped.get()) {
+        check.run();
+        deadline += periodNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && running) {
+          LockSupport.parkNanos(remaining);
+        }
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Samples the output and checks the limits on it. Waits for the device.
+   */
+  private void poll() {
+    crossed = null;
+    boolean valid;
+    try {
+      valid = device.sample(sink);
+    } catch (RuntimeException e) {
+      valid = false;
+    }
+    if (!valid && device.isClosedByUser()) {
+      // Not started yet or done, nothing to add up
+      previousSample = 0;
+      ccSince = 0;
+    }
+    if (crossed != null) {
+      trip(crossed, reason, crossedAt);
+    }
+  }
+
+  /**
+   * Checks the stall and the run time. Doesn't wait for the device, a reconnect can hold it for a
+   * long time, and a reconnect that works in the end is a stall too.
+   */
+  private void watch() {
+    long now = System.nanoTime();
+    if (device.isClosedByUser()) {
+      // Not started yet or done, nothing to watch
+      quietSince = now;
+    }
+    long lastValid = Math.max(device.getLastReplyNanoTime(), quietSince);
+    if (maxStall > 0 && now - lastValid > maxStall) {
+      trip(Limit.STALL, String.format("no reply for %.0fms", (now - lastValid) / 1e6),
+          lastValid + maxStall);
+    } else if (maxRunTime > 0 && now - started > maxRunTime) {
+      trip(Limit.DEADLINE, String.format("running for %.1fs", (now - started) / 1e9),
+          started + maxRunTime);
+    }
+  }
+
+  /**
+   * Gets the sample of the poll.
+   */
+  private void check(long nanoTime, float voltage, float current, byte status) {
+    boolean output = (status & 0x40) != 0;
+    float power = output ? voltage * current : 0;
+    if (!output) {
+      current = 0;
+    }
+    if (previousSample != 0) {
+      // The average of two samples over the time between them
+      double hours = (nanoTime - previousSample) / 3.6e12;
+      charge += (previousCurrent + current) / 2 * hours * 1000;
+      energy += (previousPower + power) / 2 * hours;
+    }
+    previousSample = nanoTime;
+    previousCurrent = current;
+    previousPower = power;
+    this.power = power;
+
+    boolean cc = output && (status & 1) == 0;
+    if (!cc) {
+      ccSince = 0;
+    } else if (ccSince == 0) {
+      ccSince = nanoTime;
+    }
+
+    if (maxPower > 0 && power > maxPower) {
+      cross(Limit.POWER, String.format("%.2fW, the limit is %.2fW", power, maxPower), nanoTime);
+    } else if (maxCharge > 0 && charge > maxCharge) {
+      cross(Limit.CHARGE, String.format("%.1fmAh, the limit is %.1fmAh", charge, maxCharge),
+          nanoTime);
+    } else if (maxEnergy > 0 && energy > maxEnergy) {
+      cross(Limit.ENERGY, String.format("%.3fWh, the limit is %.3fWh", energy, maxEnergy),
+          nanoTime);
+    } else if (maxCcTime > 0 && ccSince != 0 && nanoTime - ccSince > maxCcTime) {
+      cross(Limit.CC_TIME, String.format("in CC for %.1fs", (nanoTime - ccSince) / 1e9),
+          nanoTime);
+    }
+  }
+
+  private void cross(Limit limit, String reason, long nanoTime) {
+    crossed = limit;
+    this.reason = reason;
+    crossedAt = nanoTime;
+  }
+
+  /**
+   * Output off first, the automation's cancel() switches it off too but could wait for a command
+   * of the job. Only the first limit crossed trips, by the poller or the watchdog.
+   */
+  private void trip(Limit limit, String reason, long crossedAt) {
+    if (!tripped.compareAndSet(false, true)) {
+      return;
+    }
+    long off;
+    // Waits for a reconnect that holds the device, that leaves the output off anyway
+    synchronized (device) {
+      device.switchOff(0);
+      // Before another thread can send something
+      off = device.getPacer().getLastSend();
+    }
+    trip = new Trip(limit, reason, crossedAt, off - crossedAt);
+    if (automation != null) {
+      automation.cancel();
+    }
+  }
+
+  /**
+   * @return Why the supervisor stepped in, null if it didn't
+   */
+  public Trip getTrip() {
+    return trip;
+  }
+
+  public boolean isTripped() {
+    return trip != null;
+  }
+
+  /**
+   * @return The charge delivered since the start, in mAh
+   */
+  public double getCharge() {
+    return charge;
+  }
+
+  /**
+   * @return The energy delivered since the start, in Wh
+   */
+  public double getEnergy() {
+    return energy;
+  }
+
+  /**
+   * @return The power at the last poll, in W
+   */
+  public float getPower() {
+    return power;
+  }
+
+  /**
+   * Stops watching and waits for the poll that is going on. A reconnect may switch the output back
+   * on again after this.
+   */
+  @Override
+  public void close() {
+    Thread[] threads;
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+      running = false;
+      threads = new Thread[] {poller, watchdog};
+      poller = null;
+      watchdog = null;
+    }
+    try {
+      for (Thread thread : threads) {
+        LockSupport.unpark(thread);
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    device.setOutputHeldOff(false);
+  }
+
+}
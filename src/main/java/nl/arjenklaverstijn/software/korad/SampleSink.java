@@ -0,0 +1,21 @@
+package nl.arjenklaverstijn.software.korad;
+
+/**
+ * Receives samples from {@link LabPSU3005D#sample(SampleSink)} as primitives, so taking a sample
+ * doesn't create any objects.
+ * 
+ * @author arjen
+ *
+ */
+@FunctionalInterface
+public interface SampleSink {
+
+  /**
+   * @param nanoTime When the sample was taken, in {@link System#nanoTime()}
+   * @param voltage The output voltage
+   * @param current The output current
+   * @param status The raw status byte
+   */
+  void accept(long nanoTime, float voltage, float current, byte status);
+
+}
@@ -0,0 +1,72 @@
+package nl.arjenklaverstijn.software.korad;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+/**
+ * {@link Transport} for a real power supply connected to a serial (USB) port.
+ * 
+ * @author arjen
+ *
+ */
+public class SerialPortTransport implements Transport {
+
+  private SerialPort serialPort;
+  private int readTimeout = 80;
+
+  /**
+   * This constructor sets up the {@link SerialPort} object for you with the right settings.
+   * 
+   * @param port The system port name to connect to.
+   */
+  public SerialPortTransport(String port) {
+    this(SerialPort.getCommPort(port));
+  }
+
+  public SerialPortTransport(SerialPort serialPort) {
+    this.serialPort = serialPort;
+    // Options
+    serialPort.setFlowControl(SerialPort.FLOW_CONTROL_DISABLED);
+    serialPort.setParity(SerialPort.NO_PARITY);
+    serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, readTimeout, 0);
+  }
+
+  @Override
+  public boolean open() {
+    return serialPort.openPort();
+  }
+
+  @Override
+  public boolean close() {
+    return serialPort.closePort();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return serialPort.isOpen();
+  }
+
+  @Override
+  public String getName() {
+    return serialPort.getSystemPortName();
+  }
+
+  @Override
+  public int write(byte[] buffer, int offset, int length) {
+    return serialPort.writeBytes(buffer, length, offset);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+    // Changing the timeout is a syscall, only do it when it actually changes.
+    if (timeoutMillis != readTimeout) {
+      readTimeout = timeoutMillis;
+      serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, readTimeout, 0);
+    }
+    return serialPort.readBytes(buffer, length, offset);
+  }
+
+  public SerialPort getSerialPort() {
+    return serialPort;
+  }
+
+}
@@ -0,0 +1,630 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process LABPS3005D. It speaks the same protocol as the real unit (VSET, ISET, VOUT, IOUT,
+ * STATUS?, *IDN?, OUT, OCP, OVP, BEEP, RCL and SAV) so a {@link LabPSU3005D} can be tested and
+ * benchmarked without a power supply on the desk:
+ *
+ * <pre>
+ * LabPSU3005D device = new LabPSU3005D(new SimulatedPSU(6.8F));
+ * </pre>
+ *
+ * The output is connected to a resistor, so the unit goes into CC mode when the set voltage would
+ * push more current through the load than the current limit allows, just like the real thing.
+ * Replies become readable after the configured response latency and commands that arrive within
+ * the dead time after the previous command are ignored, which is how the real unit behaves when
+ * you talk to it too fast.
+ *
+ * Like the real unit, commands are not terminated. Several commands written in one go are
+ * executed in order.
+ *
+ * @author arjen
+ *
+ */
+public class SimulatedPSU implements Transport {
+
+  public static final String DEFAULT_ID = "VELLEMANLABPS3005DV2.0";
+
+  // Limits of the unit, in mV and mA
+  private static final int MAX_MILLIVOLTS = 31000;
+  private static final int MAX_MILLIAMPS = 5100;
+
+  private static final byte[] VSET = ascii("VSET1");
+  private static final byte[] ISET = ascii("ISET1");
+  private static final byte[] VOUT = ascii("VOUT1?");
+  private static final byte[] IOUT = ascii("IOUT1?");
+  private static final byte[] STATUS = ascii("STATUS?");
+  private static final byte[] IDN = ascii("*IDN?");
+  private static final byte[] OUT = ascii("OUT");
+  private static final byte[] OCP = ascii("OCP");
+  private static final byte[] OVP = ascii("OVP");
+  private static final byte[] BEEP = ascii("BEEP");
+  private static final byte[] RCL = ascii("RCL");
+  private static final byte[] SAV = ascii("SAV");
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition dataReady = lock.newCondition();
+
+  private boolean open;
+  private byte[] id = ascii(DEFAULT_ID);
+  private float loadResistance;
+
+  // device state
+  private int setMillivolts;
+  private int setMilliamps;
+  private boolean output;
+  private boolean ocp;
+  private boolean ovp;
+  private boolean beep = true;
+  private final int[] presetMillivolts = new int[5];
+  private final int[] presetMilliamps = new int[5];
+
+  // how fast the output voltage follows the setting in mV/s, 0 is right away
+  private float slewRate;
+  private int slewFromMillivolts;
+  private long slewStart;
+
+  // timing
+  private long responseLatency;
+  private long deadTime;
+  private long lastCommand = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+
+  // reply buffer, every byte carries the time it becomes readable
+  private final byte[] rx = new byte[1024];
+  private final long[] rxReady = new long[rx.length];
+  private int rxHead;
+  private int rxCount;
+
+  // result of the last parseNumber call, in thousandths
+  private int parsed;
+
+  private long commands;
+  private long droppedCommands;
+  private long malformedCommands;
+
+  /**
+   * A simulated unit with nothing connected to its output.
+   */
+  public SimulatedPSU() {
+    this(Float.POSITIVE_INFINITY);
+  }
+
+  /**
+   * @param loadResistance The resistance in ohm connected to the output
+   */
+  public SimulatedPSU(float loadResistance) {
+    this.loadResistance = loadResistance;
+  }
+
+  @Override
+  public boolean open() {
+    lock.lock();
+    try {
+      open = true;
+      rxCount = 0;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean close() {
+    lock.lock();
+    try {
+      open = false;
+      rxCount = 0;
+      dataReady.signalAll();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    lock.lock();
+    try {
+      return open;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String getName() {
+    return "SIMULATED";
+  }
+
+  @Override
+  public int write(byte[] buffer, int offset, int length) {
+    lock.lock();
+    try {
+      if (!open) {
+        return -1;
+      }
+      long now = System.nanoTime();
+      if (now - lastCommand < deadTime) {
+        // Still busy with the previous command, the bytes go over the wire but are lost.
+        droppedCommands++;
+        return length;
+      }
+      lastCommand = now;
+      long readyAt = now + responseLatency;
+      int i = offset;
+      int end = offset + length;
+      while (i < end) {
+        int next = execute(buffer, i, end, readyAt);
+        if (next < 0) {
+          malformedCommands++;
+          break;
+        }
+        commands++;
+        i = next;
+      }
+      dataReady.signalAll();
+      return length;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+    lock.lock();
+    try {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (true) {
+        if (!open) {
+          return -1;
+        }
+        long now = System.nanoTime();
+        int n = 0;
+        while (n < length && rxCount > 0 && rxReady[rxHead] - now <= 0) {
+          buffer[offset + n++] = rx[rxHead];
+          rxHead = (rxHead + 1) % rx.length;
+          rxCount--;
+        }
+        if (n > 0) {
+          return n;
+        }
+        long wait = deadline - now;
+        if (wait <= 0) {
+          return 0;
+        }
+        if (rxCount > 0) {
+          wait = Math.min(wait, rxReady[rxHead] - now);
+        }
+        try {
+          dataReady.awaitNanos(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return 0;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Executes the command starting at position i.
+   *
+   * @return The position after the command or -1 if the command is not understood
+   */
+  private int execute(byte[] b, int i, int end, long readyAt) {
+    if (matches(b, i, end, VSET)) {
+      i += VSET.length;
+      if (i < end && b[i] == '?') {
+        respondCentivolts(setMillivolts / 10, readyAt);
+        return i + 1;
+      }
+      if (i < end && b[i] == ':') {
+        i = parseNumber(b, i + 1, end);
+        if (i >= 0) {
+          // 10mV resolution
+          changeMillivolts(clamp((parsed + 5) / 10 * 10, MAX_MILLIVOLTS));
+          updateProtection();
+        }
+        return i;
+      }
+      return -1;
+    }
+    if (matches(b, i, end, ISET)) {
+      i += ISET.length;
+      if (i < end && b[i] == '?') {
+        respondMilliamps(setMilliamps, readyAt);
+        // The V2.0 firmware sends an extra byte after the current setting.
+        respond((byte) 0, readyAt);
+        return i + 1;
+      }
+      if (i < end && b[i] == ':') {
+        i = parseNumber(b, i + 1, end);
+        if (i >= 0) {
+          setMilliamps = clamp(parsed, MAX_MILLIAMPS);
+          updateProtection();
+        }
+        return i;
+      }
+      return -1;
+    }
+    if (matches(b, i, end, VOUT)) {
+      respondCentivolts((getOutputMillivolts() + 5) / 10, readyAt);
+      return i + VOUT.length;
+    }
+    if (matches(b, i, end, IOUT)) {
+      respondMilliamps(getOutputMilliamps(), readyAt);
+      return i + IOUT.length;
+    }
+    if (matches(b, i, end, STATUS)) {
+      respond(getStatusByte(), readyAt);
+      return i + STATUS.length;
+    }
+    if (matches(b, i, end, IDN)) {
+      for (byte c : id) {
+        respond(c, readyAt);
+      }
+      return i + IDN.length;
+    }
+    if (matches(b, i, end, OUT)) {
+      i += OUT.length;
+      if (i < end && (b[i] == '0' || b[i] == '1')) {
+        boolean on = b[i] == '1';
+        if (on && !output) {
+          // The output ramps up from 0 when switched on
+          slewFromMillivolts = 0;
+          slewStart = System.nanoTime();
+        }
+        output = on;
+        updateProtection();
+        return i + 1;
+      }
+      return -1;
+    }
+    if (matches(b, i, end, OCP)) {
+      i += OCP.length;
+      if (i < end && (b[i] == '0' || b[i] == '1')) {
+        ocp = b[i] == '1';
+        updateProtection();
+        return i + 1;
+      }
+      return -1;
+    }
+    if (matches(b, i, end, OVP)) {
+      i += OVP.length;
+      if (i < end && (b[i] == '0' || b[i] == '1')) {
+        ovp = b[i] == '1';
+        return i + 1;
+      }
+      return -1;
+    }
+    if (matches(b, i, end, BEEP)) {
+      i += BEEP.length;
+      if (i < end && (b[i] == '0' || b[i] == '1')) {
+        beep = b[i] == '1';
+        return i + 1;
+      }
+      return -1;
+    }
+    if (matches(b, i, end, RCL)) {
+      i += RCL.length;
+      if (i < end && b[i] >= '1' && b[i] <= '5') {
+        changeMillivolts(presetMillivolts[b[i] - '1']);
+        setMilliamps = presetMilliamps[b[i] - '1'];
+        updateProtection();
+        return i + 1;
+      }
+      return -1;
+    }
+    if (matches(b, i, end, SAV)) {
+      i += SAV.length;
+      if (i < end && b[i] >= '1' && b[i] <= '5') {
+        presetMillivolts[b[i] - '1'] = setMillivolts;
+        presetMilliamps[b[i] - '1'] = setMilliamps;
+        return i + 1;
+      }
+      return -1;
+    }
+    return -1;
+  }
+
+  /**
+   * Parses an NR2 number like 12.34 into thousandths, the result is stored in {@link #parsed}.
+   *
+   * @return The position after the number or -1 if it is not a valid number
+   */
+  private int parseNumber(byte[] b, int i, int end) {
+    int whole = 0;
+    int fraction = 0;
+    int fractionDigits = 0;
+    int digits = 0;
+    boolean dot = false;
+    for (; i < end; i++) {
+      byte c = b[i];
+      if (c >= '0' && c <= '9') {
+        if (dot) {
+          if (fractionDigits < 3) {
+            fraction = fraction * 10 + (c - '0');
+            fractionDigits++;
+          }
+        } else if (whole < 1000) {
+          whole = whole * 10 + (c - '0');
+        }
+        digits++;
+      } else if (c == '.' && !dot) {
+        dot = true;
+      } else {
+        break;
+      }
+    }
+    // exponents (1.0E-4) are not part of NR2
+    if (digits == 0 || (i < end && (b[i] == 'E' || b[i] == 'e'))) {
+      return -1;
+    }
+    for (; fractionDigits < 3; fractionDigits++) {
+      fraction *= 10;
+    }
+    parsed = whole * 1000 + fraction;
+    return i;
+  }
+
+  private static boolean matches(byte[] b, int i, int end, byte[] token) {
+    if (end - i < token.length) {
+      return false;
+    }
+    for (int j = 0; j < token.length; j++) {
+      if (b[i + j] != token[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Replies in the format of the VOUT1? and VSET1? commands: 05.00
+   */
+  private void respondCentivolts(int centivolts, long readyAt) {
+    respond((byte) ('0' + centivolts / 1000 % 10), readyAt);
+    respond((byte) ('0' + centivolts / 100 % 10), readyAt);
+    respond((byte) '.', readyAt);
+    respond((byte) ('0' + centivolts / 10 % 10), readyAt);
+    respond((byte) ('0' + centivolts % 10), readyAt);
+  }
+
+  /**
+   * Replies in the format of the IOUT1? and ISET1? commands: 0.200
+   */
+  private void respondMilliamps(int milliamps, long readyAt) {
+    respond((byte) ('0' + milliamps / 1000 % 10), readyAt);
+    respond((byte) '.', readyAt);
+    respond((byte) ('0' + milliamps / 100 % 10), readyAt);
+    respond((byte) ('0' + milliamps / 10 % 10), readyAt);
+    respond((byte) ('0' + milliamps % 10), readyAt);
+  }
+
+  private void respond(byte b, long readyAt) {
+    if (rxCount == rx.length) {
+      // overrun, just like a real UART
+      return;
+    }
+    int tail = (rxHead + rxCount) % rx.length;
+    rx[tail] = b;
+    rxReady[tail] = readyAt;
+    rxCount++;
+  }
+
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(value, max));
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private void changeMillivolts(int millivolts) {
+    slewFromMillivolts = getSourceMillivolts();
+    slewStart = System.nanoTime();
+    setMillivolts = millivolts;
+  }
+
+  /**
+   * @return The voltage the regulator is at, on its way to the setting
+   */
+  private int getSourceMillivolts() {
+    if (slewRate <= 0) {
+      return setMillivolts;
+    }
+    double change = slewRate * (System.nanoTime() - slewStart) / 1e9;
+    int difference = setMillivolts - slewFromMillivolts;
+    if (Math.abs(difference) <= change) {
+      return setMillivolts;
+    }
+    return slewFromMillivolts + (int) Math.copySign(change, difference);
+  }
+
+  private boolean isConstantCurrent() {
+    return output && !Float.isInfinite(loadResistance)
+        && getSourceMillivolts() / loadResistance > setMilliamps;
+  }
+
+  private void updateProtection() {
+    // OCP switches the output off as soon as the current limit is reached
+    if (ocp && isConstantCurrent()) {
+      output = false;
+    }
+  }
+
+  private int getOutputMillivolts() {
+    if (!output) {
+      return 0;
+    }
+    if (isConstantCurrent()) {
+      return Math.round(setMilliamps * loadResistance);
+    }
+    return getSourceMillivolts();
+  }
+
+  private int getOutputMilliamps() {
+    if (!output || Float.isInfinite(loadResistance)) {
+      return 0;
+    }
+    if (isConstantCurrent()) {
+      return setMilliamps;
+    }
+    return Math.round(getSourceMillivolts() / loadResistance);
+  }
+
+  private byte getStatusByte() {
+    int status = isConstantCurrent() ? 0 : 1; // CH1 CC/CV
+    status |= 1 << 1; // CH2 doesn't exist, reports CV
+    status |= (beep ? 1 : 0) << 4;
+    status |= (ocp ? 1 : 0) << 5;
+    status |= (output ? 1 : 0) << 6;
+    status |= (ovp ? 1 : 0) << 7;
+    return (byte) status;
+  }
+
+  /**
+   * @param loadResistance The resistance in ohm connected to the output,
+   *        {@link Float#POSITIVE_INFINITY} for nothing connected.
+   */
+  public void setLoadResistance(float loadResistance) {
+    lock.lock();
+    try {
+      this.loadResistance = loadResistance;
+      updateProtection();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Someone pressed the output button on the front panel.
+   */
+  public void setOutputFromFrontPanel(boolean output) {
+    lock.lock();
+    try {
+      this.output = output;
+      updateProtection();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Someone turned the voltage knob on the front panel.
+   */
+  public void setVoltageFromFrontPanel(float voltage) {
+    lock.lock();
+    try {
+      changeMillivolts(clamp(Math.round(voltage * 100) * 10, MAX_MILLIVOLTS));
+      updateProtection();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Real units take a while to get to a new voltage, more so with a capacitor on the output. The
+   * output also ramps up from 0 when it is switched on.
+   * 
+   * @param voltsPerSecond How fast the output follows a new voltage setting, 0 for right away
+   */
+  public void setSlewRate(float voltsPerSecond) {
+    lock.lock();
+    try {
+      this.slewFromMillivolts = getSourceMillivolts();
+      this.slewStart = System.nanoTime();
+      this.slewRate = voltsPerSecond * 1000;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param latency Time between receiving a query and the reply becoming readable
+   */
+  public void setResponseLatency(long latency, TimeUnit unit) {
+    lock.lock();
+    try {
+      this.responseLatency = unit.toNanos(latency);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param deadTime Time after a command in which new commands are ignored
+   */
+  public void setDeadTime(long deadTime, TimeUnit unit) {
+    lock.lock();
+    try {
+      this.deadTime = unit.toNanos(deadTime);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param id The string the unit replies to *IDN?
+   */
+  public void setId(String id) {
+    lock.lock();
+    try {
+      this.id = ascii(id);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isOutputEnabled() {
+    lock.lock();
+    try {
+      return output;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of commands executed
+   */
+  public long getCommandCount() {
+    lock.lock();
+    try {
+      return commands;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of writes that were ignored because they arrived within the dead time
+   */
+  public long getDroppedCommandCount() {
+    lock.lock();
+    try {
+      return droppedCommands;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of commands that were not understood
+   */
+  public long getMalformedCommandCount() {
+    lock.lock();
+    try {
+      return malformedCommands;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,60 @@
+package nl.arjenklaverstijn.software.korad;
+
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+
+/**
+ * Output voltage, current and status measured in one round trip, see
+ * {@link LabPSU3005D#getSnapshot()}.
+ * 
+ * @author arjen
+ *
+ */
+public final class Snapshot {
+
+  private final long timestamp;
+  private final long nanoTime;
+  private final float voltage;
+  private final float current;
+  private final Status status;
+
+  public Snapshot(long timestamp, long nanoTime, float voltage, float current, Status status) {
+    this.timestamp = timestamp;
+    this.nanoTime = nanoTime;
+    this.voltage = voltage;
+    this.current = current;
+    this.status = status;
+  }
+
+  /**
+   * @return When the values were captured, in ms since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return When the values were captured, in {@link System#nanoTime()} for measuring intervals
+   */
+  public long getNanoTime() {
+    return nanoTime;
+  }
+
+  public float getVoltage() {
+    return voltage;
+  }
+
+  public float getCurrent() {
+    return current;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  @Override
+  public String toString() {
+    return "Snapshot [timestamp=" + timestamp + ", voltage=" + voltage + ", current=" + current
+        + ", status=" + status + "]";
+  }
+
+}
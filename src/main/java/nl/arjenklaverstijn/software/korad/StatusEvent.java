@@ -0,0 +1,62 @@
+package nl.arjenklaverstijn.software.korad;
+
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+
+/**
+ * A change in the status of the device, one status change can give more than one event.
+ * 
+ * @author arjen
+ *
+ */
+public final class StatusEvent {
+
+  public enum Type {
+    // The output switched from CV to CC, the load wants more than the current limit
+    CONSTANT_CURRENT,
+    // The output switched from CC to CV
+    CONSTANT_VOLTAGE,
+    OUTPUT_ON,
+    OUTPUT_OFF,
+    // The output went off by itself with OCP enabled
+    OCP_TRIPPED,
+    // The output went off by itself with OVP enabled
+    OVP_TRIPPED
+  }
+
+  private final Type type;
+  private final Status previous;
+  private final Status status;
+  private final long nanoTime;
+
+  StatusEvent(Type type, Status previous, Status status, long nanoTime) {
+    this.type = type;
+    this.previous = previous;
+    this.status = status;
+    this.nanoTime = nanoTime;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public Status getPrevious() {
+    return previous;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * @return When the status was asked for, in {@link System#nanoTime()}
+   */
+  public long getNanoTime() {
+    return nanoTime;
+  }
+
+  @Override
+  public String toString() {
+    return "StatusEvent [" + type + ", " + status + "]";
+  }
+
+}
@@ -0,0 +1,19 @@
+package nl.arjenklaverstijn.software.korad;
+
+/**
+ * Gets the changes a {@link StatusMonitor} sees.
+ * 
+ * @author arjen
+ *
+ */
+@FunctionalInterface
+public interface StatusListener {
+
+  /**
+   * Called on the thread that read the status, keep it short. It is fine to use the device.
+   * 
+   * @param event What changed
+   */
+  void statusChanged(StatusEvent event);
+
+}
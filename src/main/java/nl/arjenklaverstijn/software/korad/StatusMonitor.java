@@ -0,0 +1,313 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.MODE;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+import nl.arjenklaverstijn.software.korad.StatusEvent.Type;
+
+/**
+ * Watches the status of a {@link LabPSU3005D} and tells listeners what changed: CC/CV, output on
+ * or off and protection trips. Every status the device reads counts, also the ones from
+ * {@link LabPSU3005D#getSnapshot()} and {@link LabPSU3005D#sample(SampleSink)}. So when a
+ * {@link TelemetryRecorder} is already sampling, the monitor doesn't have to ask for it itself.
+ * <p>
+ * The device can't tell an OCP or OVP trip apart from the output going off, so a trip is when the
+ * output goes off while we switched it on, with the protection enabled. A trip is usually faster
+ * than the poll period, so with both enabled it is only taken as OCP when the output was seen in
+ * CC.
+ * </p>
+ *
+ * <pre>
+ * StatusMonitor monitor = new StatusMonitor(device);
+ * monitor.addListener(event -&gt; System.out.println(event));
+ * monitor.start(50, TimeUnit.MILLISECONDS);
+ * </pre>
+ * 
+ * While started, the monitor's thread talks to the device. Other threads can use the device at the
+ * same time, a status they ask for while the monitor's query is out gets the same reply.
+ * <p>
+ * Listeners are called by the thread that read the status, after it let go of the device, so a slow
+ * listener doesn't hold up a kill. A status read while the device was held, for example while
+ * waiting for the output to settle, is passed on right away by the monitor's own event thread. A
+ * listener that throws is logged through the device and doesn't stop the other listeners.
+ * </p>
+ *
+ * @author arjen
+ *
+ */
+public class StatusMonitor implements AutoCloseable {
+
+  private static final Type[] TYPES = Type.values();
+
+  private final LabPSU3005D device;
+  private final List<StatusListener> listeners = new CopyOnWriteArrayList<>();
+
+  private volatile Status latest;
+  private volatile long latestNanoTime;
+  private volatile long polls;
+  private volatile long failed;
+  private volatile Thread poller;
+
+  // For the ones waiting on an event
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final long[] eventCounts = new long[TYPES.length];
+  // Seen but not passed to the listeners yet, guarded by lock
+  private final ArrayDeque<StatusEvent> pending = new ArrayDeque<>();
+  // One thread at a time calls the listeners, so they get the events in order
+  private final ReentrantLock dispatching = new ReentrantLock();
+  // Passes on the events seen while the device was held, the thread starts on the first one
+  private final ExecutorService events;
+  private final AtomicBoolean dispatchQueued = new AtomicBoolean();
+
+  /**
+   * Starts watching every status the device reads, a monitor that was watching it before stops.
+   */
+  public StatusMonitor(LabPSU3005D device) {
+    this.device = device;
+    this.events = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread =
+          new Thread(runnable, "StatusMonitor-events-" + device.getTransport().getName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    device.setStatusMonitor(this);
+  }
+
+  public void addListener(StatusListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(StatusListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Called by the device for every status byte it reads, while it holds the device. The events are
+   * passed on by {@link #dispatch()}.
+   */
+  void received(byte raw, long nanoTime, boolean expectOutput) {
+    Status previous = latest;
+    Status status = Status.of(1, raw);
+    latest = status;
+    latestNanoTime = nanoTime;
+    if (previous == null || previous == status) {
+      return;
+    }
+    if (previous.getMode() != status.getMode()) {
+      fire((status.getMode() == MODE.CC) ? Type.CONSTANT_CURRENT : Type.CONSTANT_VOLTAGE,
+          previous, status, nanoTime);
+    }
+    if (!previous.getOutput() && status.getOutput()) {
+      fire(Type.OUTPUT_ON, previous, status, nanoTime);
+    } else if (previous.getOutput() && !status.getOutput()) {
+      fire(Type.OUTPUT_OFF, previous, status, nanoTime);
+      boolean ocp = status.getOCP() && (previous.getMode() == MODE.CC || !status.getOVP());
+      if (expectOutput && ocp) {
+        fire(Type.OCP_TRIPPED, previous, status, nanoTime);
+      } else if (expectOutput && status.getOVP()) {
+        fire(Type.OVP_TRIPPED, previous, status, nanoTime);
+      }
+    }
+  }
+
+  private void fire(Type type, Status previous, Status status, long nanoTime) {
+    StatusEvent event = new StatusEvent(type, previous, status, nanoTime);
+    lock.lock();
+    try {
+      eventCounts[type.ordinal()]++;
+      pending.add(event);
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Calls the listeners with the events that are waiting. Called by the device when it has let go.
+   */
+  void dispatch() {
+    dispatching.lock();
+    try {
+      StatusEvent event;
+      while ((event = nextPending()) != null) {
+        for (StatusListener listener : listeners) {
+          try {
+            listener.statusChanged(event);
+          } catch (RuntimeException e) {
+            device.log("ERROR listener " + listener + " failed on " + event + ": " + e);
+          }
+        }
+      }
+    } finally {
+      dispatching.unlock();
+    }
+  }
+
+  /**
+   * Has the events that are waiting passed on by the event thread. Called by the device when it read
+   * a status while it is still held, so the events don't wait for the next status read.
+   */
+  void dispatchLater() {
+    if (!hasPending() || !dispatchQueued.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      events.execute(() -> {
+        // Cleared first, events added while dispatching get another run
+        dispatchQueued.set(false);
+        dispatch();
+      });
+    } catch (RejectedExecutionException e) {
+      // closed, nobody is listening anymore
+      dispatchQueued.set(false);
+    }
+  }
+
+  private boolean hasPending() {
+    lock.lock();
+    try {
+      return !pending.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private StatusEvent nextPending() {
+    lock.lock();
+    try {
+      return pending.poll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for an event, for example for the output to go to CV. Only works while something reads
+   * the status, like the monitor itself after {@link #start(long, TimeUnit)}.
+   * 
+   * @param type The event to wait for
+   * @param timeout The longest time to wait
+   * @return true if the event happened, false on a timeout
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public boolean await(Type type, long timeout, TimeUnit unit) throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      long count = eventCounts[type.ordinal()];
+      while (eventCounts[type.ordinal()] == count) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = changed.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Asks for the status on a background thread. When something else read the status less than a
+   * period ago, that one is used instead.
+   * 
+   * @param period Time between two statuses
+   */
+  public synchronized void start(long period, TimeUnit unit) {
+    if (poller != null) {
+      throw new IllegalStateException("Already polling");
+    }
+    long periodNanos = unit.toNanos(period);
+    Thread thread = new Thread(() -> {
+      long deadline = System.nanoTime();
+      while (poller == Thread.currentThread()) {
+        // Shared with other telemetry, no need to ask again
+        if (latest == null || System.nanoTime() - latestNanoTime >= periodNanos) {
+          try {
+            device.getStatus();
+            polls++;
+          } catch (RuntimeException e) {
+            failed++;
+          }
+        }
+        // What was read while the device was held
+        dispatch();
+        deadline += periodNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0
+            && poller == Thread.currentThread()) {
+          LockSupport.parkNanos(remaining);
+        }
+      }
+    }, "StatusMonitor-" + device.getTransport().getName());
+    thread.setDaemon(true);
+    poller = thread;
+    thread.start();
+  }
+
+  /**
+   * Stops the background polling and waits for the last poll to finish.
+   */
+  public void stop() throws InterruptedException {
+    Thread thread;
+    synchronized (this) {
+      thread = poller;
+      poller = null;
+    }
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      thread.join();
+    }
+  }
+
+  /**
+   * Stops polling and stops watching the device.
+   */
+  @Override
+  public void close() {
+    try {
+      stop();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    device.removeStatusMonitor(this);
+    events.shutdown();
+  }
+
+  /**
+   * @return The last status the device read, null if none yet
+   */
+  public Status getLatest() {
+    return latest;
+  }
+
+  /**
+   * @return When the last status was asked for, in {@link System#nanoTime()}
+   */
+  public long getLatestNanoTime() {
+    return latestNanoTime;
+  }
+
+  /**
+   * @return The number of times the monitor asked for the status itself
+   */
+  public long getPollCount() {
+    return polls;
+  }
+
+  public long getFailedPollCount() {
+    return failed;
+  }
+
+}
@@ -0,0 +1,164 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the steps of an {@link Automation} on fixed deadlines. Step i starts at start + i * period,
+ * so a slow reply from the device makes one step late but doesn't push back all the steps after it.
+ * Waiting parks the thread instead of spinning, and {@link #cancel()} (called by
+ * {@link Automation#cancel()}) wakes it up right away.
+ * <p>
+ * After a run you can see how late every step started and how far the last step drifted from
+ * where it should have been.
+ * </p>
+ *
+ * @author arjen
+ *
+ */
+public class StepScheduler {
+
+  private volatile boolean cancelled;
+  private volatile Thread waiting;
+
+  private long[] lateness = new long[0];
+  private int stepsRun;
+  private long maxLateness;
+  private long totalLateness;
+  private long drift;
+
+  /**
+   * Runs a number of steps, one every period. The first step starts right away.
+   *
+   * @param steps The number of steps
+   * @param period Time between the start of two steps
+   * @param step Gets the number of the step, starting at 0
+   * @return false if cancelled or interrupted before all steps were done
+   */
+  public boolean run(int steps, long period, TimeUnit unit, IntConsumer step) {
+    long periodNanos = unit.toNanos(period);
+    lateness = new long[steps];
+    stepsRun = 0;
+    maxLateness = 0;
+    totalLateness = 0;
+    drift = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < steps; i++) {
+      long deadline = start + i * periodNanos;
+      if (!waitUntil(deadline)) {
+        return false;
+      }
+      long late = System.nanoTime() - deadline;
+      lateness[i] = late;
+      maxLateness = Math.max(maxLateness, late);
+      totalLateness += late;
+      stepsRun++;
+      step.accept(i);
+    }
+    // The run ends one period after the last step started
+    long end = start + steps * periodNanos;
+    if (!waitUntil(end)) {
+      return false;
+    }
+    drift = System.nanoTime() - end;
+    return true;
+  }
+
+  /**
+   * Waits without using the CPU.
+   *
+   * @param duration How long to wait
+   * @return false if cancelled or interrupted
+   */
+  public boolean waitFor(long duration, TimeUnit unit) {
+    return waitUntil(System.nanoTime() + unit.toNanos(duration));
+  }
+
+  /**
+   * Waits without using the CPU.
+   *
+   * @param deadline When to wake up, in {@link System#nanoTime()}
+   * @return false if cancelled or interrupted
+   */
+  public boolean waitUntil(long deadline) {
+    waiting = Thread.currentThread();
+    try {
+      long remaining;
+      while (!cancelled && (remaining = deadline - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.currentThread().isInterrupted()) {
+          return false;
+        }
+      }
+      return !cancelled;
+    } finally {
+      waiting = null;
+    }
+  }
+
+  /**
+   * Stops the run, a waiting thread wakes up right away. The step that is running finishes first.
+   */
+  public void cancel() {
+    cancelled = true;
+    Thread thread = waiting;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Makes the scheduler usable again after a cancel.
+   */
+  public void reset() {
+    cancelled = false;
+  }
+
+  /**
+   * @return The number of steps that ran in the last run
+   */
+  public int getStepsRun() {
+    return stepsRun;
+  }
+
+  /**
+   * @param step The number of the step
+   * @return How late the step started, in ns
+   */
+  public long getLateness(int step) {
+    return lateness[step];
+  }
+
+  /**
+   * @return How late the latest step started, in ns
+   */
+  public long getMaxLateness() {
+    return maxLateness;
+  }
+
+  /**
+   * @return How late steps started on average, in ns
+   */
+  public long getMeanLateness() {
+    return (stepsRun == 0) ? 0 : totalLateness / stepsRun;
+  }
+
+  /**
+   * @return How much later the last run ended than planned, in ns
+   */
+  public long getDrift() {
+    return drift;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d steps, lateness mean %.2fms max %.2fms, drift %.2fms", stepsRun,
+        getMeanLateness() / 1e6, maxLateness / 1e6, drift / 1e6);
+  }
+
+}
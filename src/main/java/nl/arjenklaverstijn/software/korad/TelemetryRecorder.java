@@ -0,0 +1,242 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the most recent samples of a {@link LabPSU3005D} in memory. The samples are stored in
+ * preallocated arrays of primitives used as a ring buffer, so recording doesn't create any garbage
+ * and memory use is fixed: about 17 bytes per sample, so a million samples (more than a day at 10
+ * samples/s) take 17MB. When the buffer is full the oldest samples are overwritten.
+ * <p>
+ * One thread writes, any number of threads can read at the same time without locking. Readers get
+ * a copy of the samples they ask for as a {@link TelemetryWindow}.
+ * </p>
+ *
+ * <pre>
+ * TelemetryRecorder recorder = new TelemetryRecorder(device, 1 &lt;&lt; 20);
+ * recorder.start(100, TimeUnit.MILLISECONDS);
+ * // later, from any thread
+ * TelemetryWindow lastMinute = recorder.getLast(1, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * @author arjen
+ *
+ */
+public class TelemetryRecorder implements SampleSink {
+
+  private final LabPSU3005D device;
+  private final int mask;
+  private final long[] nanoTimes;
+  private final float[] voltages;
+  private final float[] currents;
+  private final byte[] statuses;
+  // To turn nanoTime into a timestamp
+  private final long epochMillis = System.currentTimeMillis();
+  private final long epochNanos = System.nanoTime();
+
+  // The number of samples written and the number of samples being written, only the writer changes
+  // them
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong claimed = new AtomicLong();
+  private volatile long failed;
+
+  private volatile Thread sampler;
+
+  /**
+   * @param device The device to sample
+   * @param capacity The number of samples to keep, rounded up to a power of two
+   */
+  public TelemetryRecorder(LabPSU3005D device, int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity should be between 1 and 2^30: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.device = device;
+    this.mask = size - 1;
+    this.nanoTimes = new long[size];
+    this.voltages = new float[size];
+    this.currents = new float[size];
+    this.statuses = new byte[size];
+  }
+
+  /**
+   * Stores a sample. Only call this from one thread at a time.
+   */
+  @Override
+  public void accept(long nanoTime, float voltage, float current, byte status) {
+    long sequence = published.get();
+    // Tell readers this slot is about to change before changing it
+    claimed.setOpaque(sequence + 1);
+    VarHandle.storeStoreFence();
+    int i = (int) (sequence & mask);
+    nanoTimes[i] = nanoTime;
+    voltages[i] = voltage;
+    currents[i] = current;
+    statuses[i] = status;
+    // Readers see the sample once the count is updated
+    published.setRelease(sequence + 1);
+  }
+
+  /**
+   * Takes one sample from the device on the calling thread.
+   *
+   * @return false if the device didn't give a valid reply
+   */
+  public boolean sample() {
+    if (device.sample(this)) {
+      return true;
+    }
+    failed++;
+    return false;
+  }
+
+  /**
+   * Starts sampling on a background thread.
+   *
+   * @param interval Time between samples, 0 to sample as fast as the device allows
+   */
+  public synchronized void start(long interval, TimeUnit unit) {
+    if (sampler != null) {
+      throw new IllegalStateException("Already sampling");
+    }
+    long intervalNanos = unit.toNanos(interval);
+    Thread thread = new Thread(() -> {
+      long deadline = System.nanoTime();
+      while (sampler == Thread.currentThread()) {
+        try {
+          sample();
+        } catch (RuntimeException e) {
+          failed++;
+        }
+        deadline += intervalNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0
+            && sampler == Thread.currentThread()) {
+          LockSupport.parkNanos(remaining);
+        }
+      }
+    }, "TelemetryRecorder-" + device.getTransport().getName());
+    thread.setDaemon(true);
+    sampler = thread;
+    thread.start();
+  }
+
+  /**
+   * Stops the background sampling and waits for the last sample to finish.
+   */
+  public void stop() throws InterruptedException {
+    Thread thread;
+    synchronized (this) {
+      thread = sampler;
+      sampler = null;
+    }
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      thread.join();
+    }
+  }
+
+  /**
+   * @param samples The number of samples
+   * @return The most recent samples, fewer if there aren't that many
+   */
+  public TelemetryWindow getLatest(int samples) {
+    long end = published.getAcquire();
+    long start = Math.max(Math.max(0, end - capacity()), end - samples);
+    return copy(start, end);
+  }
+
+  /**
+   * @param duration How far to look back
+   * @return The samples taken in the last duration
+   */
+  public TelemetryWindow getLast(long duration, TimeUnit unit) {
+    long now = System.nanoTime();
+    return getWindow(now - unit.toNanos(duration), now);
+  }
+
+  /**
+   * @param from Start of the window in {@link System#nanoTime()}, inclusive
+   * @param to End of the window in {@link System#nanoTime()}, exclusive
+   * @return The samples taken in the window that are still in the buffer
+   */
+  public TelemetryWindow getWindow(long from, long to) {
+    long end = published.getAcquire();
+    long start = Math.max(0, end - capacity());
+    // Samples are in time order, find the window. Slots that get overwritten while searching are
+    // sorted out by copy().
+    long first = search(start, end, from);
+    long last = search(first, end, to);
+    return copy(first, last);
+  }
+
+  /**
+   * @return The first sequence in [start, end) taken at or after time
+   */
+  private long search(long start, long end, long time) {
+    long low = start;
+    long high = end;
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      if (nanoTimes[(int) (middle & mask)] - time < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private TelemetryWindow copy(long start, long end) {
+    int size = (int) Math.max(0, end - start);
+    long[] t = new long[size];
+    float[] v = new float[size];
+    float[] c = new float[size];
+    byte[] s = new byte[size];
+    for (int n = 0; n < size; n++) {
+      int i = (int) ((start + n) & mask);
+      t[n] = nanoTimes[i];
+      v[n] = voltages[i];
+      c[n] = currents[i];
+      s[n] = statuses[i];
+    }
+    // If the writer lapped us while copying, the oldest samples may have been overwritten.
+    VarHandle.acquireFence();
+    long written = claimed.getOpaque();
+    long overwritten = Math.max(0, written - capacity() - start);
+    int skip = (int) Math.min(size, overwritten);
+    return new TelemetryWindow(epochMillis, epochNanos, t, v, c, s, skip, size - skip);
+  }
+
+  private long capacity() {
+    return mask + 1L;
+  }
+
+  /**
+   * @return The number of samples the recorder keeps
+   */
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  /**
+   * @return The number of samples recorded since the start, including overwritten ones
+   */
+  public long getSampleCount() {
+    return published.get();
+  }
+
+  /**
+   * @return The number of samples that failed because the device didn't reply properly
+   */
+  public long getFailedSampleCount() {
+    return failed;
+  }
+
+}
@@ -0,0 +1,86 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A copy of samples from a {@link TelemetryRecorder}, oldest first.
+ * 
+ * @author arjen
+ *
+ */
+public final class TelemetryWindow {
+
+  private final long epochMillis;
+  private final long epochNanos;
+  private final long[] nanoTimes;
+  private final float[] voltages;
+  private final float[] currents;
+  private final byte[] statuses;
+  private final int offset;
+  private final int size;
+
+  TelemetryWindow(long epochMillis, long epochNanos, long[] nanoTimes, float[] voltages,
+      float[] currents, byte[] statuses, int offset, int size) {
+    this.epochMillis = epochMillis;
+    this.epochNanos = epochNanos;
+    this.nanoTimes = nanoTimes;
+    this.voltages = voltages;
+    this.currents = currents;
+    this.statuses = statuses;
+    this.offset = offset;
+    this.size = size;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return When sample i was taken, in {@link System#nanoTime()}
+   */
+  public long getNanoTime(int i) {
+    return nanoTimes[index(i)];
+  }
+
+  /**
+   * @return When sample i was taken, in ms since the epoch
+   */
+  public long getTimestamp(int i) {
+    return epochMillis + TimeUnit.NANOSECONDS.toMillis(nanoTimes[index(i)] - epochNanos);
+  }
+
+  public float getVoltage(int i) {
+    return voltages[index(i)];
+  }
+
+  public float getCurrent(int i) {
+    return currents[index(i)];
+  }
+
+  /**
+   * @return The raw status byte of sample i
+   */
+  public byte getStatus(int i) {
+    return statuses[index(i)];
+  }
+
+  /**
+   * @return The charge delivered in the window in As (Coulomb), integrated over the sample times
+   */
+  public double getCharge() {
+    double charge = 0;
+    for (int i = 1; i < size; i++) {
+      double seconds = (getNanoTime(i) - getNanoTime(i - 1)) / 1e9;
+      charge += (getCurrent(i) + getCurrent(i - 1)) / 2 * seconds;
+    }
+    return charge;
+  }
+
+  private int index(int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Sample " + i + " of " + size);
+    }
+    return offset + i;
+  }
+
+}
@@ -0,0 +1,57 @@
+package nl.arjenklaverstijn.software.korad;
+
+/**
+ * The byte pipe between a {@link LabPSU3005D} and the actual power supply. The default
+ * implementation is {@link SerialPortTransport}, which talks to a real unit over jSerialComm.
+ * {@link SimulatedPSU} implements the same interface in-process so everything above it can be
+ * exercised without hardware.
+ * 
+ * @author arjen
+ *
+ */
+public interface Transport {
+
+  /**
+   * Opens the connection.
+   * 
+   * @return true if the connection could be opened
+   */
+  boolean open();
+
+  /**
+   * Closes the connection.
+   * 
+   * @return true if the connection was closed
+   */
+  boolean close();
+
+  boolean isOpen();
+
+  /**
+   * @return A human readable name, for a serial port this is the system port name.
+   */
+  String getName();
+
+  /**
+   * Writes bytes to the device.
+   * 
+   * @param buffer The bytes to write
+   * @param offset Where to start in the buffer
+   * @param length The number of bytes to write
+   * @return The number of bytes actually written or -1 on error
+   */
+  int write(byte[] buffer, int offset, int length);
+
+  /**
+   * Reads whatever the device has sent. Blocks until at least one byte is available or the timeout
+   * expires, then returns what is available without waiting for the buffer to fill up.
+   * 
+   * @param buffer The buffer to read into
+   * @param offset Where to start in the buffer
+   * @param length The maximum number of bytes to read
+   * @param timeoutMillis How long to wait for the first byte
+   * @return The number of bytes read, 0 on timeout or -1 on error
+   */
+  int read(byte[] buffer, int offset, int length, int timeoutMillis);
+
+}
@@ -3,7 +3,9 @@
  */
 package nl.arjenklaverstijn.software.korad.automationExamples;
 
+import java.nio.file.Paths;
 import nl.arjenklaverstijn.software.korad.AutomationQueue;
+import nl.arjenklaverstijn.software.korad.DeviceDiscovery;
 import nl.arjenklaverstijn.software.korad.LabPSU3005D;
 
 /**
@@ -14,8 +16,18 @@ public class AutomationQueueExample {
 
   public static void main(String[] args) {
 
-    LabPSU3005D labPSU = new LabPSU3005D("COM4");
+    // Find the unit instead of hard coding the port, it is remembered for the next run
+    DeviceDiscovery discovery = new DeviceDiscovery(Paths.get("korad-ports.properties"));
+    DeviceDiscovery.Port port = discovery.find();
+    if (port == null) {
+      System.out.println("No power supply found");
+      return;
+    }
+    System.out.println("Found " + port);
+    LabPSU3005D labPSU = port.createDevice();
     AutomationQueue automationQueue = new AutomationQueue();
+    // Open the port once for all experiments
+    automationQueue.setPersistentSession(true);
 
     automationQueue.add(new TimedOutputAutomation(5.0F, 2F, 2000));
     automationQueue.add(new TimedOutputAutomation(7.0F, 4F, 4000));
@@ -27,6 +39,7 @@ public class AutomationQueueExample {
     long time = automationQueue.run(labPSU);
 
     System.out.println("It took " + time / 1000 + "s to finish all experiments!");
+    System.out.println(automationQueue.getTimingReport());
   }
 
 }
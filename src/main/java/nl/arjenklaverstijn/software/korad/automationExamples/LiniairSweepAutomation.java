@@ -3,6 +3,7 @@
  */
 package nl.arjenklaverstijn.software.korad.automationExamples;
 
+import java.util.concurrent.TimeUnit;
 import nl.arjenklaverstijn.software.korad.Automation;
 import nl.arjenklaverstijn.software.korad.LabPSU3005D;
 
@@ -33,34 +34,24 @@ public class LiniairSweepAutomation extends Automation {
     device.setCurrent(currentLimit);
     device.setEnabled(true);
 
-    float currentV = fromVoltage;
     int minStepDuration = 150;
     int totalSteps = durationMillis / minStepDuration;
-    int stepsTaken = 0;
     long startExp = System.currentTimeMillis();
-    long elapsed = 0;
 
-    while (stepsTaken <= totalSteps) {
-      long start = System.currentTimeMillis();
+    // Every step starts on its own deadline, a slow reply doesn't delay the rest of the sweep
+    getScheduler().run(totalSteps + 1, minStepDuration, TimeUnit.MILLISECONDS, step -> {
+      // Calculated from the step number so rounding errors don't add up. Shorter than one step
+      // is a single step at the start voltage.
+      float currentV = (totalSteps == 0) ? fromVoltage
+          : fromVoltage + (toVoltage - fromVoltage) * step / totalSteps;
       device.setVoltage(currentV);
-      stepsTaken++;
-      System.out.print("T: " + elapsed);
+      System.out.print("T: " + (System.currentTimeMillis() - startExp));
       System.out.print(" V: " + device.getOutputVoltage());
       System.out.println(" A: " + device.getOutputCurrent());
-      elapsed = (System.currentTimeMillis() - startExp);
-      long took = ((System.currentTimeMillis() - start));
-      long timeLeft = minStepDuration - took;
-      if (timeLeft > 0 && timeLeft < minStepDuration && stepsTaken <= totalSteps) {
-        try {
-          Thread.sleep(timeLeft);
-        } catch (InterruptedException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-      }
-      currentV += ((toVoltage - fromVoltage) / totalSteps);
-    }
+    });
+    long elapsed = (System.currentTimeMillis() - startExp);
     System.out.println("Experiment done in: " + elapsed / 1000 + " Seconds");
+    System.out.println("Timing: " + getScheduler());
 
   }
 
@@ -3,8 +3,12 @@
  */
 package nl.arjenklaverstijn.software.korad.automationExamples;
 
+import java.util.concurrent.TimeUnit;
 import nl.arjenklaverstijn.software.korad.Automation;
 import nl.arjenklaverstijn.software.korad.LabPSU3005D;
+import nl.arjenklaverstijn.software.korad.Reconnector;
+import nl.arjenklaverstijn.software.korad.SafetySupervisor;
+import nl.arjenklaverstijn.software.korad.Snapshot;
 
 /**
  * @author arjen
@@ -48,21 +52,39 @@ public class LithiumChargeAutomation extends Automation {
     long start = System.currentTimeMillis();
     long elapsed = 0;
 
-    while (device.getOutputCurrent() > cutOffCurrent) {
+    // One round trip per sample, and the printed values belong to the same moment
+    Snapshot snapshot;
+    while ((snapshot = device.getSnapshot()).getCurrent() > cutOffCurrent) {
+      elapsed = (snapshot.getTimestamp() - start);
       System.out.print("T: " + elapsed);
-      System.out.print(" V: " + device.getOutputVoltage());
-      System.out.println(" A: " + device.getOutputCurrent());
-      elapsed = (System.currentTimeMillis() - start);
+      System.out.print(" V: " + snapshot.getVoltage());
+      System.out.println(" A: " + snapshot.getCurrent());
     }
 
     System.out.print("Cut off voltage reached with a current of: " + chargeA + " in "
         + elapsed / 1000 / 60 + " minutes");
   }
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws InterruptedException {
 
     LabPSU3005D device = new LabPSU3005D("COM4");
-    new LithiumChargeAutomation(4.2F, .5f).run(device);
+    // A charge takes hours, don't let a USB hiccup end it
+    Reconnector reconnector = new Reconnector(device);
+    LithiumChargeAutomation charge = new LithiumChargeAutomation(4.2F, .5f);
+    // A 2500mAh cell, stop if it takes more than it can hold or never leaves CC
+    SafetySupervisor supervisor = new SafetySupervisor(device, charge);
+    supervisor.setMaxPower(2.5F);
+    supervisor.setMaxCharge(2750);
+    supervisor.setMaxCcTime(4, TimeUnit.HOURS);
+    supervisor.setDeadline(8, TimeUnit.HOURS);
+    supervisor.start(500, TimeUnit.MILLISECONDS);
+    try {
+      charge.run(device);
+    } finally {
+      supervisor.close();
+    }
+    System.out.println("Connection: " + reconnector);
+    System.out.println("Charged " + supervisor.getCharge() + "mAh, trip: " + supervisor.getTrip());
 
   }
 
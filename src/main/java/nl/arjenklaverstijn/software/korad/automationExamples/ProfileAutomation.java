@@ -0,0 +1,58 @@
+/**
+ * 
+ */
+package nl.arjenklaverstijn.software.korad.automationExamples;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import nl.arjenklaverstijn.software.korad.Automation;
+import nl.arjenklaverstijn.software.korad.CompiledProfile;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D;
+import nl.arjenklaverstijn.software.korad.Profile;
+import nl.arjenklaverstijn.software.korad.ProfileReport;
+
+/**
+ * Plays a voltage profile, for example one from a CSV file with lines of seconds,volts.
+ * 
+ * @author arjen
+ *
+ */
+public class ProfileAutomation extends Automation {
+
+  private Profile profile;
+  private float currentLimit;
+
+  public ProfileAutomation(Profile profile, float currentLimit) {
+    this.profile = profile;
+    this.currentLimit = currentLimit;
+  }
+
+  @Override
+  public void job(LabPSU3005D device) {
+    device.setVoltage((float) profile.getVoltage(0));
+    device.setCurrent(currentLimit);
+    device.setEnabled(true);
+
+    // As fast as the device takes settings
+    CompiledProfile compiled = profile.compile(device);
+    System.out.println(compiled);
+    ProfileReport report = compiled.stream(device, getScheduler());
+    System.out.println(report);
+  }
+
+  public static void main(String[] args) throws IOException {
+    LabPSU3005D labPSU = new LabPSU3005D("COM4");
+    Profile profile;
+    if (args.length > 0) {
+      try (Reader csv = new FileReader(args[0])) {
+        profile = Profile.fromCsv(csv);
+      }
+    } else {
+      // 5V with a 1V wave every 10 seconds, for a minute
+      profile = Profile.sine(5, 1, 10, 60);
+    }
+    new ProfileAutomation(profile, .5F).run(labPSU);
+  }
+
+}
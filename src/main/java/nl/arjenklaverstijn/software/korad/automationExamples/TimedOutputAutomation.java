@@ -3,6 +3,7 @@
  */
 package nl.arjenklaverstijn.software.korad.automationExamples;
 
+import java.util.concurrent.TimeUnit;
 import nl.arjenklaverstijn.software.korad.Automation;
 import nl.arjenklaverstijn.software.korad.LabPSU3005D;
 
@@ -31,8 +32,7 @@ public class TimedOutputAutomation extends Automation {
     device.setCurrent(currentLimit);
     device.setEnabled(true);
 
-    long start = System.currentTimeMillis();
-    while ((System.currentTimeMillis() - start) < durationMillis);
+    getScheduler().waitFor(durationMillis, TimeUnit.MILLISECONDS);
 
   }
 
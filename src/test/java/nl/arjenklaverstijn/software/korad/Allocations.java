@@ -0,0 +1,52 @@
+package nl.arjenklaverstijn.software.korad;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes the current thread allocates, for the tests of code that shouldn't allocate.
+ * <p>
+ * A class loaded by another test can deoptimize the measured code once, objects that escape
+ * analysis had removed are then allocated for a moment. That is a few hundred bytes at most, while
+ * a single object per call adds up to at least 16 bytes times the number of calls. So a test asserts
+ * less than {@link #TOLERANCE} over at least {@link #MIN_CALLS} calls, that doesn't depend on which
+ * tests ran before.
+ * </p>
+ *
+ * @author arjen
+ *
+ */
+final class Allocations {
+
+  static final long TOLERANCE = 1024;
+  // 16 bytes, the smallest object, for every call is well over the tolerance
+  static final int MIN_CALLS = 200;
+
+  private Allocations() {}
+
+  /**
+   * @return false on a JVM that doesn't count allocated bytes per thread
+   */
+  static boolean isSupported() {
+    return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean;
+  }
+
+  /**
+   * Runs the code twice, to warm up, then counts what the second time allocated.
+   *
+   * @param calls The number of calls the code makes, at least {@link #MIN_CALLS}
+   * @return The bytes allocated by the current thread
+   */
+  static long measure(int calls, Runnable code) {
+    if (calls < MIN_CALLS) {
+      throw new IllegalArgumentException("At least " + MIN_CALLS + " calls are needed");
+    }
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    code.run();
+    long before = threads.getThreadAllocatedBytes(thread);
+    code.run();
+    return threads.getThreadAllocatedBytes(thread) - before;
+  }
+
+}
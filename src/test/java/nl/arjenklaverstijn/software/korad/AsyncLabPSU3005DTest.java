@@ -0,0 +1,85 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class AsyncLabPSU3005DTest {
+
+  private SimulatedPSU psu;
+  private AsyncLabPSU3005D device;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    device = new AsyncLabPSU3005D(new LabPSU3005D(psu));
+    device.openPort().join();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    device.closePort().join();
+    device.close();
+  }
+
+  @Test
+  public void testCommandsRunInOrder() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    CompletableFuture<Float> voltage = device.getOutputVoltage();
+    CompletableFuture<Float> current = device.getOutputCurrent();
+    assertEquals(5F, voltage.join(), 0);
+    assertEquals(.5F, current.join(), 0);
+    assertTrue("Output should be on", device.getStatus().join().getOutput());
+  }
+
+  @Test
+  public void testCallerIsNotBlocked() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    // Keeps the I/O thread busy, a caller that waited for it would never get past this test
+    CompletableFuture<Void> busy = device.execute(device -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    });
+    device.setVoltage(3F);
+    CompletableFuture<Float> voltage = device.getSetVoltage();
+    CompletableFuture<Float> current = device.getSetCurrent();
+    assertFalse("The reply can't be in yet", voltage.isDone() || current.isDone());
+    release.countDown();
+    busy.get(5, TimeUnit.SECONDS);
+    assertEquals(3F, voltage.get(5, TimeUnit.SECONDS), 0);
+    assertEquals(0F, current.get(5, TimeUnit.SECONDS), 0);
+  }
+
+  @Test
+  public void testRepliesCompleteInOrder() throws Exception {
+    List<Integer> completed = new CopyOnWriteArrayList<>();
+    List<CompletableFuture<Float>> replies = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      int index = i;
+      replies.add(device.getOutputVoltage().whenComplete((value, e) -> completed.add(index)));
+    }
+    CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).get(5,
+        TimeUnit.SECONDS);
+    assertEquals(List.of(0, 1, 2, 3, 4), completed);
+  }
+
+}
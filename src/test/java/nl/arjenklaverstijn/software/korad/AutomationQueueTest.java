@@ -0,0 +1,126 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class AutomationQueueTest {
+
+  private static final int AUTOMATIONS = 5;
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    psu.setResponseLatency(10, TimeUnit.MILLISECONDS);
+    device = new LabPSU3005D(psu);
+  }
+
+  private AutomationQueue queue(boolean persistentSession) {
+    AutomationQueue queue = new AutomationQueue();
+    queue.setPersistentSession(persistentSession);
+    for (int i = 0; i < AUTOMATIONS; i++) {
+      queue.add(new Automation() {
+        @Override
+        public void job(LabPSU3005D device) {
+          device.setVoltage(5F);
+          device.setCurrent(1F);
+          device.setEnabled(true, 0);
+          device.getOutputVoltage();
+        }
+      });
+    }
+    return queue;
+  }
+
+  @Test
+  public void testSessionSendsLessCommands() {
+    queue(false).run(device);
+    long perAutomation = psu.getCommandCount();
+
+    long before = psu.getCommandCount();
+    AutomationQueue session = queue(true);
+    session.run(device);
+    long inSession = psu.getCommandCount() - before;
+
+    System.out.println("Commands per automation: " + perAutomation + ", in a session: "
+        + inSession);
+    System.out.println(session.getTimingReport());
+    assertEquals(AUTOMATIONS, session.getCompleted());
+    assertTrue("A session should send less commands", inSession < perAutomation);
+    // left in a safe state
+    assertFalse(psu.isOutputEnabled());
+    assertFalse(device.getTransport().isOpen());
+  }
+
+  @Test
+  public void testSessionStartsEveryAutomationZeroed() {
+    AutomationQueue queue = queue(true);
+    int[] seen = new int[3];
+    queue.add(new Automation() {
+      @Override
+      public void job(LabPSU3005D device) {
+        device.invalidateCache();
+        seen[0] = device.getSetMillivolts();
+        seen[1] = device.getSetMilliamps();
+        seen[2] = device.getStatus().getOutput() ? 1 : 0;
+      }
+    });
+    queue.run(device);
+    assertEquals(AUTOMATIONS + 1, queue.getCompleted());
+    assertEquals("Not the voltage of the automation before", 0, seen[0]);
+    assertEquals(0, seen[1]);
+    assertEquals("The output should be off", 0, seen[2]);
+  }
+
+  @Test
+  public void testShutdownDoesntTrustTheCache() {
+    Automation automation = new Automation() {
+      @Override
+      public void job(LabPSU3005D device) {
+        // The output is off as far as the device knows, then someone presses ON
+        psu.setOutputFromFrontPanel(true);
+      }
+    };
+    automation.run(device);
+    assertFalse("after() should switch the output off", psu.isOutputEnabled());
+
+    device.openPort();
+    device.setEnabled(false, 0);
+    psu.setOutputFromFrontPanel(true);
+    automation.cancel();
+    assertFalse("cancel() should switch the output off", psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testSessionShutsDownOnFailure() {
+    AutomationQueue queue = queue(true);
+    queue.add(2, new Automation() {
+      @Override
+      public void job(LabPSU3005D device) {
+        device.setEnabled(true, 0);
+        throw new IllegalStateException("Experiment failed");
+      }
+    });
+    try {
+      queue.run(device);
+      fail("The failure should be passed on");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(2, queue.getCompleted());
+    assertFalse(psu.isOutputEnabled());
+    assertFalse(device.getTransport().isOpen());
+  }
+
+}
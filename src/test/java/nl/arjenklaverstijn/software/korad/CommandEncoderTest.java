@@ -0,0 +1,45 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class CommandEncoderTest {
+
+  private final CommandEncoder encoder = new CommandEncoder();
+
+  private String encoded(int length) {
+    return new String(encoder.getBuffer(), 0, length, StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void testVoltageHasTwoDecimals() {
+    assertEquals("VSET1:20.50", encoded(encoder.voltage(2050)));
+    assertEquals("VSET1:5.10", encoded(encoder.voltage(510)));
+    assertEquals("VSET1:0.00", encoded(encoder.voltage(0)));
+    assertEquals("VSET1:0.01", encoded(encoder.voltage(1)));
+    assertEquals("VSET1:31.00", encoded(encoder.voltage(3100)));
+  }
+
+  @Test
+  public void testCurrentHasThreeDecimals() {
+    assertEquals("ISET1:2.225", encoded(encoder.current(2225)));
+    assertEquals("ISET1:0.005", encoded(encoder.current(5)));
+    assertEquals("ISET1:0.000", encoded(encoder.current(0)));
+    assertEquals("ISET1:5.100", encoded(encoder.current(5100)));
+  }
+
+  @Test
+  public void testFlagsAndMemories() {
+    assertEquals("OUT1", encoded(encoder.flag(CommandEncoder.OUT, true)));
+    assertEquals("OCP0", encoded(encoder.flag(CommandEncoder.OCP, false)));
+    assertEquals("OVP1", encoded(encoder.flag(CommandEncoder.OVP, true)));
+    assertEquals("RCL3", encoded(encoder.memory(CommandEncoder.RCL, 3)));
+    assertEquals("SAV5", encoded(encoder.memory(CommandEncoder.SAV, 5)));
+  }
+
+}
@@ -0,0 +1,189 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import nl.arjenklaverstijn.software.korad.CommandScheduler.Priority;
+
+/**
+ * @author arjen
+ *
+ */
+public class CommandSchedulerTest {
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+  private CommandScheduler scheduler;
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    psu.setResponseLatency(30, TimeUnit.MILLISECONDS);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    scheduler = new CommandScheduler(device);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    release.countDown();
+    scheduler.close();
+    device.closePort();
+  }
+
+  /**
+   * Keeps the I/O thread busy until released.
+   */
+  private CompletableFuture<Void> block() {
+    return scheduler.execute(Priority.CONTROL, device -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    });
+  }
+
+  private List<CompletableFuture<Integer>> readbacks(int count) {
+    List<CompletableFuture<Integer>> readbacks = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      // Not shared, so they all go to the unit
+      readbacks.add(scheduler.execute(Priority.TELEMETRY, LabPSU3005D::getOutputMillivolts));
+    }
+    return readbacks;
+  }
+
+  @Test
+  public void testKillOvertakesTelemetry() throws Exception {
+    scheduler.setTelemetryLimit(8);
+    List<CompletableFuture<Integer>> readbacks = readbacks(8);
+    scheduler.kill().get(5, TimeUnit.SECONDS);
+    assertFalse("The output should be off", psu.isOutputEnabled());
+    long waiting = readbacks.stream().filter(readback -> !readback.isDone()).count();
+    System.out.println("kill latency " + scheduler.getKillLatency() + ", " + waiting
+        + " readbacks still waiting");
+    assertTrue("The kill shouldn't wait for the readbacks", waiting >= 6);
+    assertTrue("At most the readback on the wire goes first",
+        scheduler.getKillLatency().getMax() < TimeUnit.MILLISECONDS.toNanos(150));
+    assertEquals(1, scheduler.getKillLatency().getCount());
+    // The first one could have been on the wire already
+    for (CompletableFuture<Integer> readback : readbacks.subList(1, readbacks.size())) {
+      assertEquals("The readbacks are answered after the kill", 0,
+          (int) readback.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(0, device.getSetMillivolts());
+  }
+
+  @Test
+  public void testKillCancelsWaitingControl() throws Exception {
+    device.setEnabled(false);
+    block();
+    CompletableFuture<Void> enable = scheduler.setEnabled(true);
+    CompletableFuture<Void> kill = scheduler.kill();
+    release.countDown();
+    kill.get(5, TimeUnit.SECONDS);
+    assertTrue("A control command from before the kill shouldn't switch the output on again",
+        enable.isCancelled());
+    assertFalse(psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testKillWhenDeviceThinksItIsOff() throws Exception {
+    device.setEnabled(false);
+    psu.setOutputFromFrontPanel(true);
+    scheduler.kill().get(5, TimeUnit.SECONDS);
+    assertFalse("The kill shouldn't trust the cache", psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testTelemetryIsDroppedUnderContention() throws Exception {
+    block();
+    List<CompletableFuture<Integer>> readbacks = readbacks(20);
+    release.countDown();
+    int answered = 0;
+    int cancelled = 0;
+    for (CompletableFuture<Integer> readback : readbacks) {
+      if (readback.isCancelled()) {
+        cancelled++;
+      } else {
+        assertEquals(5000, (int) readback.get(5, TimeUnit.SECONDS));
+        answered++;
+      }
+    }
+    assertEquals("Only the newest readbacks are sent", 4, answered);
+    assertEquals(16, cancelled);
+    assertEquals(16, scheduler.getDroppedCount());
+    assertTrue("The newest readback is kept", readbacks.get(19).get() == 5000);
+  }
+
+  @Test
+  public void testSameReadbackIsShared() throws Exception {
+    block();
+    CompletableFuture<Float> first = scheduler.getOutputVoltage();
+    for (int i = 0; i < 4; i++) {
+      assertNotSame("Every caller gets its own future", first, scheduler.getOutputVoltage());
+    }
+    CompletableFuture<Float> current = scheduler.getOutputCurrent();
+    release.countDown();
+    assertEquals(5F, first.get(5, TimeUnit.SECONDS), 0.01F);
+    assertEquals(0.5F, current.get(5, TimeUnit.SECONDS), 0.01F);
+    assertEquals(4, scheduler.getSharedCount());
+  }
+
+  @Test
+  public void testCancellingASharedReadbackLeavesTheOthers() throws Exception {
+    block();
+    CompletableFuture<Float> first = scheduler.getOutputVoltage();
+    CompletableFuture<Float> second = scheduler.getOutputVoltage();
+    CompletableFuture<Float> third = scheduler.getOutputVoltage();
+    first.cancel(false);
+    second.cancel(false);
+    release.countDown();
+    assertEquals(5F, third.get(5, TimeUnit.SECONDS), 0.01F);
+    assertEquals(2, scheduler.getSharedCount());
+  }
+
+  @Test
+  public void testFailingJobDoesntStopTheScheduler() throws Exception {
+    CompletableFuture<Void> failing = scheduler.execute(Priority.CONTROL, device -> {
+      throw new AssertionError("Broken job");
+    });
+    try {
+      failing.get(5, TimeUnit.SECONDS);
+      fail("The error should be passed on");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AssertionError);
+    }
+    assertEquals("The next command should still be sent", 5F,
+        scheduler.getOutputVoltage().get(5, TimeUnit.SECONDS), 0.01F);
+  }
+
+  @Test
+  public void testCloseCancelsWaiting() throws Exception {
+    block();
+    CompletableFuture<Void> voltage = scheduler.setVoltage(3F);
+    CompletableFuture.runAsync(release::countDown,
+        CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS));
+    scheduler.close();
+    assertTrue("The waiting setting should be cancelled", voltage.isCancelled());
+    assertEquals(5000, device.getSetMillivolts());
+    assertTrue("Nothing is taken after closing", scheduler.getStatus().isCancelled());
+  }
+
+}
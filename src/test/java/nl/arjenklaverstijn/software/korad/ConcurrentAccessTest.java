@@ -0,0 +1,165 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A logger, a watchdog and a control loop on one device.
+ *
+ * @author arjen
+ *
+ */
+public class ConcurrentAccessTest {
+
+  private static final int THREADS = 3;
+  private static final int QUERIES = 20;
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    psu.setResponseLatency(10, TimeUnit.MILLISECONDS);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    device.closePort();
+  }
+
+  private static void runAll(List<Runnable> jobs) throws InterruptedException {
+    List<Thread> threads = new ArrayList<>();
+    for (Runnable job : jobs) {
+      Thread thread = new Thread(job);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join(TimeUnit.SECONDS.toMillis(20));
+      assertTrue("Should not hang", !thread.isAlive());
+    }
+  }
+
+  @Test
+  public void testRepliesGoToTheRightThread() throws Exception {
+    AtomicInteger wrong = new AtomicInteger();
+    List<Runnable> jobs = new ArrayList<>();
+    jobs.add(() -> {
+      for (int i = 0; i < QUERIES; i++) {
+        if (device.getOutputMillivolts() != 5000)
+          wrong.incrementAndGet();
+      }
+    });
+    jobs.add(() -> {
+      for (int i = 0; i < QUERIES; i++) {
+        if (device.getOutputMilliamps() != 500)
+          wrong.incrementAndGet();
+      }
+    });
+    jobs.add(() -> {
+      for (int i = 0; i < QUERIES; i++) {
+        if (!device.getStatus().getOutput())
+          wrong.incrementAndGet();
+      }
+    });
+    jobs.add(() -> {
+      for (int i = 0; i < QUERIES; i++) {
+        // Settings that don't change anything, but do go over the wire
+        device.invalidateCache();
+        device.setVoltage(5F);
+        if (device.getSetMillivolts() != 5000)
+          wrong.incrementAndGet();
+      }
+    });
+    runAll(jobs);
+    assertEquals("Every thread should get the reply to its own query", 0, wrong.get());
+    assertEquals("Nothing should be garbled", 0, device.getMetrics().getInvalidReplies());
+  }
+
+  @Test
+  public void testIdenticalQueriesAreShared() throws Exception {
+    AtomicInteger wrong = new AtomicInteger();
+    long before = psu.getCommandCount();
+    List<Runnable> jobs = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      jobs.add(() -> {
+        for (int i = 0; i < QUERIES; i++) {
+          if (device.getOutputMillivolts() != 5000)
+            wrong.incrementAndGet();
+        }
+      });
+    }
+    runAll(jobs);
+    long sent = psu.getCommandCount() - before;
+    System.out.println(THREADS * QUERIES + " queries from " + THREADS + " threads, " + sent
+        + " sent to the unit");
+    assertEquals(0, wrong.get());
+    assertTrue("Queries should be shared", device.getMetrics().getSharedReplies() > 0);
+    assertEquals(THREADS * QUERIES, sent + device.getMetrics().getSharedReplies());
+    assertTrue("The unit should see about one query per round", sent < THREADS * QUERIES * 2 / 3);
+  }
+
+  @Test
+  public void testSharedSnapshotsHaveTheSameTime() throws Exception {
+    CyclicBarrier start = new CyclicBarrier(THREADS);
+    Set<Long> times = new HashSet<>();
+    List<Runnable> jobs = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      jobs.add(() -> {
+        for (int i = 0; i < QUERIES / 2; i++) {
+          try {
+            start.await();
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+          Snapshot snapshot = device.getSnapshot();
+          synchronized (times) {
+            times.add(snapshot.getNanoTime());
+          }
+        }
+      });
+    }
+    runAll(jobs);
+    assertTrue("Threads that shared a query should get the same time, " + times.size()
+        + " different times", times.size() < THREADS * QUERIES / 2);
+  }
+
+  @Test
+  public void testSettlingWhileOthersPoll() throws Exception {
+    psu.setSlewRate(20F);
+    AtomicInteger polls = new AtomicInteger();
+    List<Runnable> jobs = new ArrayList<>();
+    jobs.add(() -> {
+      for (int i = 0; i < 3; i++) {
+        device.setEnabled(false, 500);
+        device.setEnabled(true, 500);
+      }
+    });
+    jobs.add(() -> {
+      for (int i = 0; i < QUERIES; i++) {
+        if (device.sample((nanoTime, voltage, current, status) -> {}))
+          polls.incrementAndGet();
+      }
+    });
+    runAll(jobs);
+    assertEquals(QUERIES, polls.get());
+    assertTrue("The output should have settled", device.isLastSettled());
+  }
+
+}
@@ -0,0 +1,207 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author arjen
+ *
+ */
+public class DeviceDiscoveryTest {
+
+  private static final int PORTS = 16;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * A port with nothing on it, reads time out.
+   */
+  private static class SilentTransport implements Transport {
+
+    private volatile boolean open;
+
+    @Override
+    public boolean open() {
+      open = true;
+      return true;
+    }
+
+    @Override
+    public boolean close() {
+      open = false;
+      return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public String getName() {
+      return "silent";
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset, int length) {
+      return length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+      return 0;
+    }
+
+  }
+
+  /**
+   * A port that takes a long time to open or to read from, like a Bluetooth serial port that is
+   * out of range.
+   */
+  private static class HangingTransport extends SilentTransport {
+
+    private final long openMillis;
+    private final long readMillis;
+    final CountDownLatch opened = new CountDownLatch(1);
+
+    HangingTransport(long openMillis, long readMillis) {
+      this.openMillis = openMillis;
+      this.readMillis = readMillis;
+    }
+
+    @Override
+    public boolean open() {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(openMillis));
+      super.open();
+      opened.countDown();
+      return true;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(readMillis));
+      return 0;
+    }
+
+  }
+
+  private final List<DeviceDiscovery.Candidate> ports = new ArrayList<>();
+
+  /**
+   * 16 ports, with a power supply plugged in to the given one
+   */
+  private void plugIn(int socket, String id) {
+    ports.clear();
+    for (int i = 0; i < PORTS; i++) {
+      String key = "1-" + i + " USB Serial";
+      String name = "ttyUSB" + i;
+      if (i == socket) {
+        ports.add(new DeviceDiscovery.Candidate(key, name, () -> {
+          SimulatedPSU psu = new SimulatedPSU();
+          psu.setId(id);
+          return psu;
+        }));
+      } else {
+        ports.add(new DeviceDiscovery.Candidate(key, name, SilentTransport::new));
+      }
+    }
+  }
+
+  private DeviceDiscovery discovery(Path cacheFile) {
+    return new DeviceDiscovery(() -> new ArrayList<>(ports), cacheFile);
+  }
+
+  @Test
+  public void testProbesInParallel() {
+    plugIn(0, SimulatedPSU.DEFAULT_ID);
+    DeviceDiscovery single = new DeviceDiscovery(() -> ports.subList(1, 2), null);
+    single.discover();
+    long one = single.getLastDuration();
+
+    DeviceDiscovery discovery = discovery(null);
+    List<DeviceDiscovery.Port> found = discovery.discover();
+    System.out.println("One silent port: " + one / 1000000 + "ms, " + PORTS + " ports: "
+        + discovery.getLastDuration() / 1000000 + "ms");
+    assertEquals(1, found.size());
+    assertEquals("ttyUSB0", found.get(0).getName());
+    assertEquals(SimulatedPSU.DEFAULT_ID, found.get(0).getIdentity());
+    assertEquals(PORTS, discovery.getLastProbeCount());
+    assertTrue("Should take about one probe, not " + PORTS,
+        discovery.getLastDuration() < one * 3);
+  }
+
+  @Test
+  public void testCacheOnlyVerifiesCachedPort() throws Exception {
+    Path cacheFile = folder.getRoot().toPath().resolve("ports.properties");
+    plugIn(5, "TENMA 72-2535 V2.0");
+    assertEquals("ttyUSB5", discovery(cacheFile).find().getName());
+
+    // next start
+    DeviceDiscovery discovery = discovery(cacheFile);
+    DeviceDiscovery.Port port = discovery.find();
+    assertEquals("ttyUSB5", port.getName());
+    assertTrue(discovery.isLastFromCache());
+    assertEquals("Only the cached port should be probed", 1, discovery.getLastProbeCount());
+
+    LabPSU3005D device = port.createDevice();
+    assertTrue(device.openPort());
+    device.closePort();
+  }
+
+  @Test
+  public void testMovedUnitIsFoundAgain() {
+    Path cacheFile = folder.getRoot().toPath().resolve("ports.properties");
+    plugIn(3, SimulatedPSU.DEFAULT_ID);
+    discovery(cacheFile).discover();
+
+    // replugged in another socket
+    plugIn(9, SimulatedPSU.DEFAULT_ID);
+    DeviceDiscovery discovery = discovery(cacheFile);
+    assertEquals("ttyUSB9", discovery.find().getName());
+    assertFalse(discovery.isLastFromCache());
+    assertEquals("Verifying the cache and a full scan", 1 + PORTS, discovery.getLastProbeCount());
+
+    discovery = discovery(cacheFile);
+    discovery.discover();
+    assertTrue("The cache should have been updated", discovery.isLastFromCache());
+  }
+
+  @Test
+  public void testHangingPortsAreClosed() throws Exception {
+    HangingTransport slowOpen = new HangingTransport(500, 0);
+    HangingTransport slowRead = new HangingTransport(0, 2000);
+    ports.clear();
+    ports.add(new DeviceDiscovery.Candidate("1-0 BT", "rfcomm0", () -> slowOpen));
+    ports.add(new DeviceDiscovery.Candidate("1-1 BT", "rfcomm1", () -> slowRead));
+    DeviceDiscovery discovery = discovery(null);
+    discovery.setProbeTimeout(200, TimeUnit.MILLISECONDS);
+    assertNull(discovery.find());
+    assertFalse("The port the probe is reading from should be closed", slowRead.isOpen());
+    assertTrue(slowOpen.opened.await(1, TimeUnit.SECONDS));
+    // The probe checks right after open()
+    Thread.sleep(50);
+    assertFalse("A port opened after the timeout should be closed", slowOpen.isOpen());
+  }
+
+  @Test
+  public void testOtherDevicesAreIgnored() {
+    plugIn(2, "ARDUINO");
+    DeviceDiscovery discovery = discovery(null);
+    assertNull(discovery.find());
+    assertEquals(PORTS, discovery.getLastProbeCount());
+  }
+
+}
@@ -0,0 +1,142 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class DeviceFleetTest {
+
+  private static final int DEVICES = 4;
+  private static final int QUERIES = 20;
+
+  private DeviceFleet fleet;
+  private SimulatedPSU[] psus = new SimulatedPSU[DEVICES];
+
+  @Before
+  public void setUp() throws Exception {
+    fleet = new DeviceFleet();
+    for (int i = 0; i < DEVICES; i++) {
+      psus[i] = new SimulatedPSU(10F);
+      // A realistic reply time, so the test measures waiting on the devices
+      psus[i].setResponseLatency(10, TimeUnit.MILLISECONDS);
+      fleet.add("psu" + i, new LabPSU3005D(psus[i]));
+    }
+    fleet.openAll().join();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fleet.closeAll().join();
+    fleet.close();
+  }
+
+  private AutomationQueue pollingQueue() {
+    AutomationQueue queue = new AutomationQueue();
+    queue.add(new Automation() {
+      @Override
+      public void job(LabPSU3005D device) {
+        for (int i = 0; i < QUERIES; i++) {
+          device.getOutputVoltage();
+        }
+      }
+    });
+    return queue;
+  }
+
+  @Test
+  public void testQueuesRunInParallel() {
+    // let the pacers learn first
+    for (String name : fleet.getNames()) {
+      fleet.run(name, pollingQueue());
+    }
+    fleet.awaitAll().join();
+
+    long start = System.nanoTime();
+    fleet.run("psu0", pollingQueue()).join();
+    long one = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (String name : fleet.getNames()) {
+      fleet.run(name, pollingQueue());
+    }
+    Map<String, Long> times = fleet.awaitAll().join();
+    long all = System.nanoTime() - start;
+    System.out.println("One device: " + one / 1000000 + "ms, " + DEVICES + " devices: "
+        + all / 1000000 + "ms");
+    assertEquals(DEVICES, times.size());
+    assertEquals(1.0, fleet.getProgress(), 0);
+    assertTrue("Devices should run in parallel", all < one * 1.5);
+  }
+
+  @Test
+  public void testSynchronizedOutput() {
+    long skew = fleet.setEnabledAll(true).join();
+    System.out.println("Output skew: " + skew / 1000 + "us");
+    for (SimulatedPSU psu : psus) {
+      assertTrue("All outputs should be on", psu.isOutputEnabled());
+    }
+    assertTrue("Outputs should switch within 5ms", skew < TimeUnit.MILLISECONDS.toNanos(5));
+  }
+
+  @Test
+  public void testSkewWhenOutputIsAlreadyOn() throws Exception {
+    fleet.get("psu0").setEnabled(true).join();
+    Thread.sleep(100);
+    long skew = fleet.setEnabledAll(true).join();
+    assertTrue("The skew should come from this switch, not an older one: " + skew / 1000 + "us",
+        skew < TimeUnit.MILLISECONDS.toNanos(5));
+  }
+
+  @Test
+  public void testLockedDeviceIsSkipped() throws Exception {
+    LabPSU3005D busy = fleet.get("psu0").getDevice();
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      synchronized (busy) {
+        locked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    holder.start();
+    locked.await();
+    try {
+      fleet.setEnabledAll(true).get(2, TimeUnit.SECONDS);
+      fail("A device that can't be locked should fail the switch");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      assertTrue(e.getCause().getMessage().contains("psu0"));
+    } finally {
+      release.countDown();
+      holder.join();
+    }
+    for (int i = 1; i < DEVICES; i++) {
+      assertTrue("The other outputs should be on", psus[i].isOutputEnabled());
+    }
+    // the switch thread got the lock now, it mustn't switch late
+    Thread.sleep(200);
+    assertFalse("The locked device should not switch late", psus[0].isOutputEnabled());
+  }
+
+  @Test
+  public void testSnapshots() {
+    assertEquals(DEVICES, fleet.getSnapshots().join().size());
+  }
+
+}
@@ -0,0 +1,250 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Clients over loopback against a simulated unit.
+ *
+ * @author arjen
+ *
+ */
+public class DeviceGatewayTest {
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+  private DeviceGateway gateway;
+  private final List<Socket> sockets = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    psu.setResponseLatency(5, TimeUnit.MILLISECONDS);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    gateway = new DeviceGateway(device, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    gateway.setRateLimit(1000, 1000);
+    gateway.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    gateway.close();
+    device.closePort();
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), gateway.getPort());
+    socket.setSoTimeout(5000);
+    sockets.add(socket);
+    return socket;
+  }
+
+  private static void send(Socket socket, String... lines) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    for (String line : lines) {
+      out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+    out.flush();
+  }
+
+  private static BufferedReader reader(Socket socket) throws IOException {
+    return new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void testCommands() throws Exception {
+    Socket socket = connect();
+    BufferedReader in = reader(socket);
+    send(socket, "VSET1:5.00", "ISET1:1.000", "OUT1", "VOUT1?", "IOUT1?", "vset1?", "STATUS?",
+        "SNAPSHOT?", "*IDN?", "FOO", "VSET1:x");
+    assertEquals("OK", in.readLine());
+    assertEquals("OK", in.readLine());
+    assertEquals("OK", in.readLine());
+    assertEquals("5.00", in.readLine());
+    assertEquals("0.500", in.readLine());
+    assertEquals("5.00", in.readLine());
+    int status = Integer.parseInt(in.readLine());
+    assertTrue("Output should be on", (status & 0x40) != 0);
+    assertEquals("5.00 0.500 " + status, in.readLine());
+    assertEquals(SimulatedPSU.DEFAULT_ID, in.readLine());
+    assertEquals("ERR unknown command", in.readLine());
+    assertEquals("ERR bad value", in.readLine());
+    assertTrue(psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testRepliesDontDependOnTheLocale() throws Exception {
+    Locale locale = Locale.getDefault();
+    Locale.setDefault(new Locale("nl", "NL"));
+    try {
+      Socket socket = connect();
+      BufferedReader in = reader(socket);
+      send(socket, "VSET1:5.00", "ISET1:1.000", "OUT1", "SNAPSHOT?", "VOUT1?");
+      for (int i = 0; i < 3; i++) {
+        assertEquals("OK", in.readLine());
+      }
+      assertTrue(in.readLine().startsWith("5.00 0.500 "));
+      assertEquals("5.00", in.readLine());
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+  @Test
+  public void testConcurrentQueriesAreCoalesced() throws Exception {
+    int clients = 8;
+    int queries = 10;
+    CountDownLatch done = new CountDownLatch(clients);
+    AtomicInteger answers = new AtomicInteger();
+    long before = psu.getCommandCount();
+    for (int c = 0; c < clients; c++) {
+      Socket socket = connect();
+      new Thread(() -> {
+        try {
+          BufferedReader in = reader(socket);
+          for (int i = 0; i < queries; i++) {
+            send(socket, "VOUT1?");
+            if (in.readLine().equals("0.00")) {
+              answers.incrementAndGet();
+            }
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    assertTrue(done.await(20, TimeUnit.SECONDS));
+    long sent = psu.getCommandCount() - before;
+    System.out.println(clients * queries + " queries, " + gateway.getTransactionCount()
+        + " transactions, " + sent + " commands to the unit");
+    assertEquals(clients * queries, answers.get());
+    assertTrue("Queries should be shared", gateway.getCoalescedCount() > 0);
+    assertTrue("The unit should see fewer queries than the clients sent",
+        sent < clients * queries / 2);
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    gateway.setRateLimit(10, 5);
+    Socket greedy = connect();
+    Socket polite = connect();
+    BufferedReader in = reader(greedy);
+    for (int i = 0; i < 20; i++) {
+      send(greedy, "VOUT1?");
+    }
+    int limited = 0;
+    for (int i = 0; i < 20; i++) {
+      if (in.readLine().equals("ERR rate limit")) {
+        limited++;
+      }
+    }
+    assertTrue("Most of the burst should be refused, not " + limited, limited >= 10);
+    assertEquals(limited, gateway.getRateLimitedCount());
+    send(polite, "VOUT1?");
+    assertEquals("Other clients have their own limit", "0.00", reader(polite).readLine());
+  }
+
+  @Test
+  public void testErrorInTheDeviceIsAnswered() throws Exception {
+    AtomicBoolean broken = new AtomicBoolean();
+    gateway.close();
+    device.closePort();
+    psu = new SimulatedPSU(10F) {
+      @Override
+      public int write(byte[] buffer, int offset, int length) {
+        if (broken.get()) {
+          throw new AssertionError("wire on fire");
+        }
+        return super.write(buffer, offset, length);
+      }
+    };
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    gateway = new DeviceGateway(device, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    gateway.start();
+    Socket socket = connect();
+    BufferedReader in = reader(socket);
+    broken.set(true);
+    send(socket, "VOUT1?");
+    assertEquals("ERR wire on fire", in.readLine());
+    broken.set(false);
+    send(socket, "VOUT1?");
+    assertEquals("The gateway should keep serving", "0.00", in.readLine());
+  }
+
+  @Test
+  public void testClientThatDoesntReadIsDisconnected() throws Exception {
+    // The first query keeps all the others waiting, within the read timeout
+    psu.setResponseLatency(50, TimeUnit.MILLISECONDS);
+    Socket flood = connect();
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      lines.append("VOUT1?\n");
+    }
+    OutputStream out = flood.getOutputStream();
+    out.write(lines.toString().getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    BufferedReader in = reader(flood);
+    int replies = 0;
+    try {
+      while (in.readLine() != null) {
+        replies++;
+      }
+    } catch (IOException e) {
+      // reset, also disconnected
+    }
+    assertTrue("Only the replies up to the limit, not " + replies, replies < 1000);
+    assertEquals(1, gateway.getOverflowCount());
+    Socket polite = connect();
+    send(polite, "*IDN?");
+    assertEquals(SimulatedPSU.DEFAULT_ID, reader(polite).readLine());
+  }
+
+  @Test
+  public void testSettingsGoBeforeTelemetry() throws Exception {
+    psu.setResponseLatency(30, TimeUnit.MILLISECONDS);
+    Socket telemetry = connect();
+    Socket control = connect();
+    BufferedReader in = reader(telemetry);
+    // Different queries, so they can't be shared
+    String[] queries = {"VOUT1?", "IOUT1?", "STATUS?", "SNAPSHOT?", "*IDN?"};
+    send(telemetry, queries);
+    send(control, "VSET1:3.00");
+    assertEquals("OK", reader(control).readLine());
+    long setting = System.nanoTime();
+    for (int i = 0; i < queries.length; i++) {
+      in.readLine();
+    }
+    long telemetryDone = System.nanoTime();
+    System.out.println("Setting answered " + (telemetryDone - setting) / 1000000
+        + "ms before the telemetry");
+    assertTrue("The setting shouldn't wait for the telemetry",
+        telemetryDone - setting > TimeUnit.MILLISECONDS.toNanos(60));
+  }
+
+}
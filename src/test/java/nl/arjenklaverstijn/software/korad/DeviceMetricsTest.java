@@ -0,0 +1,92 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class DeviceMetricsTest {
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    psu.setResponseLatency(1, TimeUnit.MILLISECONDS);
+    // Its own pacing, what other tests learned could make the gaps shorter than a reply
+    psu.setId("METRICS TEST");
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    device.getMetrics().reset();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    device.closePort();
+    device.getMetrics().unregister();
+  }
+
+  @Test
+  public void testCountsTraffic() {
+    for (int i = 0; i < 10; i++) {
+      device.getOutputVoltage();
+    }
+    MetricsSnapshot snapshot = device.getMetrics().snapshot();
+    System.out.println(snapshot);
+    assertEquals(10, snapshot.getCommandCount());
+    assertEquals(10 * "VOUT1?".length(), snapshot.getBytesWritten());
+    assertEquals(10 * 5, snapshot.getBytesRead());
+    assertEquals(0, snapshot.getInvalidReplies());
+    LatencyHistogram roundTrip = snapshot.getRoundTrips().get("VOUT");
+    assertEquals(10, roundTrip.getCount());
+    assertTrue("The reply takes at least the latency",
+        roundTrip.getPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(1));
+    assertTrue(roundTrip.getMax() >= roundTrip.getPercentile(99));
+    // The pacer made the queries wait for each other
+    assertTrue(snapshot.getPacingWait().getTotal() > 0);
+  }
+
+  @Test
+  public void testCountsIgnoredQueries() {
+    // Send too fast for a device that ignores commands right after the previous one
+    psu.setDeadTime(20, TimeUnit.MILLISECONDS);
+    LabPSU3005D hasty = new LabPSU3005D(psu, new Pacer() {
+      @Override
+      public void await(CommandType next) {}
+    });
+    hasty.getOutputVoltage();
+    hasty.getOutputVoltage();
+    DeviceMetrics metrics = hasty.getMetrics();
+    System.out.println(metrics);
+    assertEquals(1, metrics.getTimeouts());
+    assertEquals(1, metrics.getInvalidReplies());
+    // Nothing came back at all, that is a timeout and not an incomplete reply
+    assertEquals(0, metrics.getIncompleteReplies());
+    // The second query needed a retry
+    assertEquals(3L, (long) metrics.getRoundTripCounts().get("VOUT"));
+  }
+
+  @Test
+  public void testRegistersWithJmx() throws Exception {
+    device.getOutputVoltage();
+    device.getMetrics().register(psu.getName());
+    ObjectName name = device.getMetrics().getObjectName();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertTrue(server.isRegistered(name));
+    assertEquals(1L, server.getAttribute(name, "CommandCount"));
+    assertEquals(5L, server.getAttribute(name, "BytesRead"));
+    device.getMetrics().unregister();
+    assertTrue(!server.isRegistered(name));
+  }
+
+}
@@ -0,0 +1,184 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import nl.arjenklaverstijn.software.korad.IVSweep.Spacing;
+import nl.arjenklaverstijn.software.korad.IVSweep.Target;
+
+/**
+ * @author arjen
+ *
+ */
+public class IVSweepTest {
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+  private IVSweep sweep;
+
+  @Before
+  public void setUp() throws Exception {
+    // 10 ohm with a 500mA limit, the knee is at 5V
+    psu = new SimulatedPSU(10F);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    device.setVoltage(0);
+    device.setCurrent(0.5F);
+    device.setEnabled(true, 0);
+    sweep = new IVSweep(device);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    device.setEnabled(false, 0);
+    device.closePort();
+  }
+
+  @Test
+  public void testWaitsForTheOutputToSettle() {
+    // 1V takes 20ms
+    psu.setSlewRate(50);
+    IVCurve curve = sweep.sweep(Target.VOLTAGE, 1, 4, 4, Spacing.LINEAR);
+    System.out.println(curve);
+    for (int i = 0; i < curve.size(); i++) {
+      assertTrue(curve.isSettled(i));
+      // Within the default tolerance of 10mV
+      assertEquals(curve.getSetpoint(i) * 1000, curve.getMillivolts(i), 10);
+      assertEquals(curve.getMillivolts(i) / 10, curve.getMilliamps(i), 1);
+    }
+    assertTrue("Should have waited for the slew", curve.getReadingCount() > 2 * curve.size());
+  }
+
+  @Test
+  public void testLogarithmicSpacing() {
+    IVCurve curve = sweep.sweep(Target.VOLTAGE, 0.1, 10, 3, Spacing.LOGARITHMIC);
+    assertEquals(0.1, curve.getSetpoint(0), 1e-9);
+    assertEquals(1, curve.getSetpoint(1), 1e-9);
+    assertEquals(10, curve.getSetpoint(2), 1e-9);
+    // The last one is past the knee
+    assertEquals(500, curve.getMilliamps(2));
+    assertTrue(curve.isConstantCurrent(2));
+  }
+
+  @Test
+  public void testAdaptiveFindsTheKneeWithFewerPoints() {
+    IVCurve dense = sweep.sweep(Target.VOLTAGE, 0, 10, 201, Spacing.LINEAR);
+    device.setVoltage(0);
+    IVCurve adaptive = sweep.sweepAdaptive(Target.VOLTAGE, 0, 10, 11, 0.05);
+    System.out.println("Dense: " + dense);
+    System.out.println("Adaptive: " + adaptive);
+    double denseKnee = dense.getSetpoint(dense.getKnee());
+    double adaptiveKnee = adaptive.getSetpoint(adaptive.getKnee());
+    assertEquals(denseKnee, adaptiveKnee, 0.05);
+    assertTrue(adaptive.getSetpoint(adaptive.getKnee() - 1) <= 5.0);
+    assertTrue("Adaptive should need far fewer points", adaptive.size() * 5 < dense.size());
+    assertTrue(adaptive.getReadingCount() * 5 < dense.getReadingCount());
+    // sorted
+    for (int i = 1; i < adaptive.size(); i++) {
+      assertTrue(adaptive.getSetpoint(i) > adaptive.getSetpoint(i - 1));
+    }
+  }
+
+  @Test
+  public void testSweepCurrentLimit() {
+    device.setVoltage(5F);
+    IVCurve curve = sweep.sweep(Target.CURRENT, 0.1, 0.6, 6, Spacing.LINEAR);
+    // Below 500mA the limit holds, then the resistor decides
+    assertEquals(100, curve.getMilliamps(0));
+    assertTrue(curve.isConstantCurrent(0));
+    assertEquals(500, curve.getMilliamps(5));
+    assertTrue(!curve.isConstantCurrent(5));
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    IVCurve curve = sweep.sweep(Target.VOLTAGE, 4, 6, 3, Spacing.LINEAR);
+    StringWriter csv = new StringWriter();
+    curve.writeCsv(csv);
+    String[] lines = csv.toString().split("\\R");
+    assertEquals("setpoint,millivolts,milliamps,mode,settled,settle_ms", lines[0]);
+    assertTrue(lines[3], lines[3].startsWith("6.0000,5000,500,CC,true,"));
+
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    curve.writeBinary(binary);
+    IVCurve read = IVCurve.readBinary(new ByteArrayInputStream(binary.toByteArray()));
+    assertEquals(curve.size(), read.size());
+    assertEquals(curve.getKnee(), read.getKnee());
+    for (int i = 0; i < curve.size(); i++) {
+      assertEquals(curve.getSetpoint(i), read.getSetpoint(i), 0);
+      assertEquals(curve.getMillivolts(i), read.getMillivolts(i));
+      assertEquals(curve.getSettleTime(i), read.getSettleTime(i));
+    }
+  }
+
+  @Test
+  public void testPointWithoutReplyIsInvalid() {
+    // The pacer backs off when replies don't come, keep that away from the other tests
+    device.closePort();
+    psu.setId("IV NO REPLY TEST");
+    device.openPort();
+    device.setEnabled(true, 0);
+    IVCurve curve = sweep.sweep(Target.VOLTAGE, 1, 3, 3, Spacing.LINEAR);
+    assertTrue(curve.isValid(0));
+    device.setVoltage(0);
+    // Too late for the read timeout
+    psu.setResponseLatency(1, TimeUnit.SECONDS);
+    sweep.setSettleTimeout(300, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    curve = sweep.sweep(Target.VOLTAGE, 1, 3, 3, Spacing.LINEAR);
+    System.out.println(curve);
+    assertEquals("The sweep should stop", 1, curve.size());
+    assertFalse(curve.isValid(0));
+    assertFalse(curve.isSettled(0));
+    assertEquals("Not the readings of the sweep before", LabPSU3005D.NO_REPLY,
+        curve.getMillivolts(0));
+    assertEquals(-1, curve.getKnee());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    psu.setResponseLatency(0, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testClosedPortDoesntSpin() {
+    device.closePort();
+    sweep.setSettleTimeout(200, TimeUnit.MILLISECONDS);
+    IVCurve curve = sweep.sweep(Target.VOLTAGE, 1, 3, 3, Spacing.LINEAR);
+    assertEquals(1, curve.size());
+    assertFalse(curve.isValid(0));
+    assertEquals("No readings without replies", 0, curve.getReadingCount());
+  }
+
+  private static byte[] header(int ordinal, int size) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0x49564331);
+    out.writeInt(ordinal);
+    out.writeInt(size);
+    out.writeInt(0);
+    out.writeLong(0);
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testReadBrokenBinary() throws Exception {
+    int[][] headers = {{7, 1}, {-1, 1}, {0, -1}, {0, Integer.MAX_VALUE}};
+    for (int[] header : headers) {
+      try {
+        IVCurve.readBinary(new ByteArrayInputStream(header(header[0], header[1])));
+        fail("Should not read target " + header[0] + " with " + header[1] + " points");
+      } catch (IOException e) {
+        System.out.println(e.getMessage());
+      }
+    }
+  }
+
+}
@@ -33,7 +33,10 @@ public class LabPSU3005DTest {
   @Before
   public void setUp() throws Exception {
 
-    device = new LabPSU3005D("COM4");
+    // Runs against a simulated unit, use -Dkorad.port=COM4 to test a real one.
+    String port = System.getProperty("korad.port");
+    device = port == null ? new LabPSU3005D(new SimulatedPSU(TEST_RESISTOR))
+        : new LabPSU3005D(port);
     device.setDebug(true);
     device.openPort();
   }
@@ -71,20 +74,48 @@ public class LabPSU3005DTest {
   @Test
   public void testSettingVoltage() {
     device.setVoltage(12.34f);
+    device.invalidateCache(); // read back from the device itself
     assertEquals("The output should be the same as the setting", 12.34f, device.getSetVoltage(), 0);
   }
 
   @Test
   public void testSettingCurrent() {
     device.setCurrent(1.234f);
+    device.invalidateCache(); // read back from the device itself
     assertEquals("The output should be the same as the setting", 1.234F, device.getSetCurrent(), 0);
   }
 
+  @Test
+  public void testSettingInMillivoltsAndMilliamps() {
+    device.setVoltageMillivolts(12340);
+    device.setCurrentMilliamps(1234);
+    device.invalidateCache(); // read back from the device itself
+    assertEquals(12340, device.getSetMillivolts());
+    assertEquals(1234, device.getSetMilliamps());
+  }
+
+  @Test
+  public void testParseFixed() {
+    assertEquals(5000, LabPSU3005D.parseFixed(ascii("05.00"), 0, 5, 3));
+    assertEquals(200, LabPSU3005D.parseFixed(ascii("0.200"), 0, 5, 3));
+    assertEquals(31000, LabPSU3005D.parseFixed(ascii("31.00"), 0, 5, 3));
+    assertEquals(1235, LabPSU3005D.parseFixed(ascii("1.2345"), 0, 6, 3));
+    assertEquals(12, LabPSU3005D.parseFixed(ascii("12"), 0, 2, 0));
+    assertEquals(LabPSU3005D.MALFORMED_REPLY, LabPSU3005D.parseFixed(ascii("0.2?0"), 0, 5, 3));
+    assertEquals(LabPSU3005D.MALFORMED_REPLY, LabPSU3005D.parseFixed(ascii("1.2.3"), 0, 5, 3));
+    assertEquals(LabPSU3005D.MALFORMED_REPLY, LabPSU3005D.parseFixed(ascii("....."), 0, 5, 3));
+  }
+
+  private static byte[] ascii(String reply) {
+    return reply.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+  }
+
   @Test
   public void testReadingTargetOutput() {
     device.setVoltage(10.00F);
     device.setCurrent(6F);
     device.setEnabled(false);
+    device.invalidateCache(); // read back from the device itself
     assertEquals(
         "The output should return a voltage that corresponds to resistor used and limit set", 10F,
         device.getSetVoltage(), 0);
@@ -116,6 +147,7 @@ public class LabPSU3005DTest {
   @Test
   public void testSettingVoltageLowerThanMaxVoltage() {
     device.setVoltage(50f);
+    device.invalidateCache(); // read back from the device itself
     assertEquals("The output should be 31 because that is the max!", 31.00F, device.getSetVoltage(),
         0);
   }
@@ -123,6 +155,7 @@ public class LabPSU3005DTest {
   @Test
   public void testSettingVoltageHigherThanMinVoltage() {
     device.setVoltage(-1f);
+    device.invalidateCache(); // read back from the device itself
     assertEquals("The output should be 0 because that is the min!", 0F, device.getSetVoltage(), 0);
   }
 
@@ -130,12 +163,14 @@ public class LabPSU3005DTest {
   @Test
   public void testSettingCurrentLowerThanMinCurrent() {
     device.setCurrent(-1f);
+    device.invalidateCache(); // read back from the device itself
     assertEquals("The output should be 0 because that is the min!", 0F, device.getSetCurrent(), 0);
   }
 
   @Test
   public void testSettingCurrentHigherThanMaxCurrent() {
     device.setCurrent(10f);
+    device.invalidateCache(); // read back from the device itself
     assertEquals("The output should be 5.1A because that is the max!", 5.100F,
         device.getSetCurrent(), 0);
   }
@@ -0,0 +1,156 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class ProfileTest {
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    device.closePort();
+  }
+
+  @Test
+  public void testRampHitsBothEnds() {
+    CompiledProfile compiled = Profile.piecewiseLinear(new double[] {0, 1}, new double[] {0, 1})
+        .compile(10, TimeUnit.MILLISECONDS);
+    assertEquals(101, compiled.getSampleCount());
+    assertEquals(101, compiled.size());
+    assertEquals("VSET1:0.00", compiled.getCommand(0));
+    assertEquals("VSET1:0.50", compiled.getCommand(50));
+    assertEquals("VSET1:1.00", compiled.getCommand(100));
+    assertEquals(TimeUnit.SECONDS.toNanos(1), compiled.getOffset(100));
+  }
+
+  @Test
+  public void testDropsValuesThatDontChange() {
+    // Flat, then a step
+    CompiledProfile compiled = Profile.steps(new double[] {0, 0.5}, new double[] {5, 6}, 1)
+        .compile(10, TimeUnit.MILLISECONDS);
+    assertEquals(2, compiled.size());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), compiled.getOffset(1));
+    // Smaller than the 10mV resolution
+    compiled = Profile.sine(5, 0.004, 0.1, 1).compile(1, TimeUnit.MILLISECONDS);
+    assertEquals(1001, compiled.getSampleCount());
+    assertEquals(1, compiled.size());
+  }
+
+  @Test
+  public void testCsvWithCurrent() throws Exception {
+    String csv = "seconds,volts,amps\n# warm up\n0,1,0.1\n0.1,1,0.1\n0.1,2,0.2\n";
+    Profile profile = Profile.fromCsv(new StringReader(csv));
+    assertTrue(profile.hasCurrent());
+    assertEquals(0.1, profile.getDuration(), 0);
+    CompiledProfile compiled = profile.compile(50, TimeUnit.MILLISECONDS);
+    assertEquals("VSET1:1.00", compiled.getCommand(0));
+    assertEquals("ISET1:0.100", compiled.getCommand(1));
+    assertEquals("VSET1:2.00", compiled.getCommand(2));
+    assertEquals("ISET1:0.200", compiled.getCommand(3));
+    assertEquals(4, compiled.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCsvRejectsBadLines() throws Exception {
+    Profile.fromCsv(new StringReader("0,1\n1,two\n"));
+  }
+
+  @Test
+  public void testCsvHeaders() throws Exception {
+    // A negative time is a point, not a header
+    Profile profile = Profile.fromCsv(new StringReader("-1,2\n1,4\n"));
+    assertEquals(3, profile.getVoltage(0), 1e-9);
+    // A header with an empty first name
+    profile = Profile.fromCsv(new StringReader(",volts\n0,1\n1,2\n"));
+    assertEquals(1.5, profile.getVoltage(0.5), 1e-9);
+    profile = Profile.fromCsv(new StringReader("seconds,volts\n0,1\n1,2\n"));
+    assertEquals(1, profile.getDuration(), 0);
+    // The header is the first line that isn't blank or a comment
+    profile = Profile.fromCsv(new StringReader("\n# exported\nseconds,volts\n0,1\n1,2\n"));
+    assertEquals(1, profile.getDuration(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCsvHeaderOnlyAtTheStart() throws Exception {
+    Profile.fromCsv(new StringReader("0,1\nseconds,volts\n1,2\n"));
+  }
+
+  @Test
+  public void testCompileRejectsBadSteps() {
+    Profile profile = Profile.piecewiseLinear(new double[] {0, 10}, new double[] {0, 5});
+    for (long step : new long[] {0, -1}) {
+      try {
+        profile.compile(step, TimeUnit.MILLISECONDS);
+        fail("A step of " + step + " should be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      // 10s in 1ns steps is more than an int can count
+      profile.compile(1, TimeUnit.NANOSECONDS);
+      fail("Too many samples should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testStreamKeepsTime() {
+    device.setCurrent(1F);
+    device.setEnabled(true, 0);
+    CompiledProfile compiled = Profile.piecewiseLinear(new double[] {0, 0.4}, new double[] {1, 3})
+        .compile(100, TimeUnit.MILLISECONDS);
+    ProfileReport report = compiled.stream(device);
+    System.out.println(report);
+    assertTrue(report.isCompleted());
+    assertEquals(compiled.size(), report.getSentCount());
+    assertTrue(report.getAchievedDuration() >= report.getRequestedDuration());
+    assertTrue("Commands should go out close to their deadline",
+        report.getMaxLateness() < TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(3F, device.getOutputVoltage(), 0);
+    device.invalidateCache(); // read back from the device itself
+    assertEquals(3F, device.getSetVoltage(), 0);
+  }
+
+  @Test
+  public void testStreamCanBeCancelled() throws Exception {
+    StepScheduler scheduler = new StepScheduler();
+    CompiledProfile compiled =
+        Profile.sine(5, 1, 1, 10).compile(100, TimeUnit.MILLISECONDS);
+    Thread canceller = new Thread(() -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        return;
+      }
+      scheduler.cancel();
+    });
+    canceller.start();
+    ProfileReport report = compiled.stream(device, scheduler);
+    canceller.join();
+    assertFalse(report.isCompleted());
+    assertTrue(report.getAchievedDuration() < TimeUnit.SECONDS.toNanos(1));
+  }
+
+}
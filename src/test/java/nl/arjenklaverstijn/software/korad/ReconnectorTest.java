@@ -0,0 +1,184 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class ReconnectorTest {
+
+  /**
+   * A USB serial adapter in front of the simulator that can be unplugged for a while, or go quiet
+   * until it is opened again.
+   */
+  static class FlakyTransport implements Transport {
+
+    private final SimulatedPSU psu;
+    private volatile long unpluggedUntil;
+    private volatile boolean mute;
+
+    FlakyTransport(SimulatedPSU psu) {
+      this.psu = psu;
+    }
+
+    void unplug(long millis) {
+      unpluggedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private boolean unplugged() {
+      return System.nanoTime() - unpluggedUntil < 0;
+    }
+
+    @Override
+    public boolean open() {
+      if (unplugged()) {
+        return false;
+      }
+      mute = false;
+      return psu.open();
+    }
+
+    @Override
+    public boolean close() {
+      return psu.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return !unplugged() && psu.isOpen();
+    }
+
+    @Override
+    public String getName() {
+      return "flaky";
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset, int length) {
+      return unplugged() ? -1 : psu.write(buffer, offset, length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+      if (unplugged()) {
+        return -1;
+      }
+      if (mute) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        return 0;
+      }
+      return psu.read(buffer, offset, length, timeoutMillis);
+    }
+
+  }
+
+  private SimulatedPSU psu;
+  private FlakyTransport transport;
+  private LabPSU3005D device;
+  private Reconnector reconnector;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    transport = new FlakyTransport(psu);
+    // No pacing, the simulator is always ready and the timing is about the dropouts
+    device = new LabPSU3005D(transport, new Pacer() {
+      @Override
+      public void await(CommandType next) {}
+    });
+    device.openPort();
+    reconnector = new Reconnector(device);
+    reconnector.setBackoff(20, 200, TimeUnit.MILLISECONDS);
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    reconnector.close();
+    device.closePort();
+  }
+
+  @Test
+  public void testQueryIsRepeatedAfterDropout() {
+    transport.unplug(300);
+    assertEquals("The query should just be slow", 5000, device.getOutputMillivolts());
+    System.out.println(reconnector);
+    assertEquals(1, reconnector.getRecoveryCount());
+    assertTrue("The adapter was gone for 300ms",
+        reconnector.getLastRecoveryTime() >= TimeUnit.MILLISECONDS.toNanos(250));
+    assertTrue("Backoff should be bounded",
+        reconnector.getLastRecoveryTime() < TimeUnit.MILLISECONDS.toNanos(800));
+    assertTrue(reconnector.getLastAttempts() > 1);
+  }
+
+  @Test
+  public void testSettingsAreRestored() {
+    // The unit lost power too
+    transport.unplug(100);
+    psu.setOutputFromFrontPanel(false);
+    psu.setVoltageFromFrontPanel(0F);
+    assertEquals(5000, device.getOutputMillivolts());
+    assertTrue("The output should be on again", psu.isOutputEnabled());
+    assertEquals(1, reconnector.getRecoveryCount());
+  }
+
+  @Test
+  public void testOutputCanStayOff() {
+    reconnector.setRestoreOutput(false);
+    transport.unplug(100);
+    device.getOutputMillivolts();
+    assertFalse("The output should be switched off", psu.isOutputEnabled());
+    assertEquals(0, device.getOutputMillivolts());
+  }
+
+  @Test
+  public void testSettingDuringDropout() {
+    transport.unplug(100);
+    device.setVoltage(6F);
+    assertEquals(1, reconnector.getRecoveryCount());
+    assertEquals("The new setting should be sent after the reconnect", 6000,
+        device.getOutputMillivolts());
+  }
+
+  @Test
+  public void testQuietAdapterIsReopened() {
+    transport.mute = true;
+    assertEquals(5000, device.getOutputMillivolts());
+    assertEquals(1, reconnector.getRecoveryCount());
+  }
+
+  @Test
+  public void testOtherDeviceIsNotAccepted() {
+    reconnector.setGiveUpAfter(300, TimeUnit.MILLISECONDS);
+    transport.unplug(50);
+    psu.setId("SOMETHING ELSE");
+    long start = System.nanoTime();
+    assertEquals(LabPSU3005D.NO_REPLY, device.getOutputMillivolts());
+    assertTrue("Should give up", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    assertEquals(1, reconnector.getFailedRecoveryCount());
+    assertEquals(0, reconnector.getRecoveryCount());
+
+    psu.setId(SimulatedPSU.DEFAULT_ID);
+    assertEquals("The next command tries again", 5000, device.getOutputMillivolts());
+    assertEquals(1, reconnector.getRecoveryCount());
+  }
+
+  @Test
+  public void testClosedPortIsLeftAlone() {
+    device.closePort();
+    assertEquals(LabPSU3005D.NO_REPLY, device.getOutputMillivolts());
+    assertEquals(0, reconnector.getRecoveryCount());
+    assertEquals(0, reconnector.getFailedRecoveryCount());
+  }
+
+}
@@ -0,0 +1,256 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import nl.arjenklaverstijn.software.korad.SafetySupervisor.Limit;
+import nl.arjenklaverstijn.software.korad.SafetySupervisor.Trip;
+import nl.arjenklaverstijn.software.korad.automationExamples.LithiumChargeAutomation;
+
+/**
+ * @author arjen
+ *
+ */
+public class SafetySupervisorTest {
+
+  private static final long PERIOD = 100; // ms
+  // From the sample to OUT0: a fresh pacer waits its initial gap after the sample, and maybe after
+  // a command of the job that went first
+  private static final long SEND_BUDGET = 2 * Pacer.INITIAL_GAP; // ns
+
+  /**
+   * Sets a voltage and current and waits, without knowing about any supervisor.
+   */
+  private static class HoldAutomation extends Automation {
+
+    private final float voltage;
+    private final float current;
+    private final long millis;
+    boolean finished;
+
+    HoldAutomation(float voltage, float current, long millis) {
+      this.voltage = voltage;
+      this.current = current;
+      this.millis = millis;
+    }
+
+    @Override
+    public void job(LabPSU3005D device) {
+      device.setVoltage(voltage);
+      device.setCurrent(current);
+      device.setEnabled(true);
+      finished = getScheduler().run(2, millis, TimeUnit.MILLISECONDS, step -> {});
+    }
+
+  }
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+  private SafetySupervisor supervisor;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    psu.setResponseLatency(10, TimeUnit.MILLISECONDS);
+    device = new LabPSU3005D(psu);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    supervisor.close();
+    device.closePort();
+  }
+
+  private Trip run(HoldAutomation automation) throws InterruptedException {
+    supervisor.start(PERIOD, TimeUnit.MILLISECONDS);
+    automation.run(device);
+    supervisor.close();
+    Trip trip = supervisor.getTrip();
+    System.out.println(trip);
+    return trip;
+  }
+
+  @Test
+  public void testPowerLimitCancelsTheAutomation() throws Exception {
+    // What other tests taught the pacer shouldn't make this one faster
+    psu.setId("POWER TEST");
+    HoldAutomation automation = new HoldAutomation(12F, 2F, 5000);
+    supervisor = new SafetySupervisor(device, automation);
+    supervisor.setMaxPower(10F);
+    long start = System.nanoTime();
+    Trip trip = run(automation);
+    assertEquals(Limit.POWER, trip.getLimit());
+    assertTrue("The automation should be cancelled", automation.isCancelled());
+    assertFalse(automation.finished);
+    assertFalse("The output should be off", psu.isOutputEnabled());
+    assertTrue("Shouldn't wait for the job",
+        System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    assertTrue("Should react within a period and the time to send OUT0",
+        trip.getReactionTime() < TimeUnit.MILLISECONDS.toNanos(PERIOD) + SEND_BUDGET);
+  }
+
+  @Test
+  public void testTripDuringTheChargeExample() throws Exception {
+    // 0.5A into 2 ohm is 0.5W
+    psu.setLoadResistance(2F);
+    LithiumChargeAutomation charge = new LithiumChargeAutomation(4.2F, 0.5F);
+    supervisor = new SafetySupervisor(device, charge);
+    supervisor.setMaxPower(0.2F);
+    supervisor.start(PERIOD, TimeUnit.MILLISECONDS);
+    try {
+      charge.run(device);
+    } finally {
+      supervisor.close();
+    }
+    assertEquals(Limit.POWER, supervisor.getTrip().getLimit());
+    assertTrue("The charge should be cancelled", charge.isCancelled());
+    assertFalse("The output should be off", psu.isOutputEnabled());
+    assertTrue("after() should still close the port", device.isClosedByUser());
+  }
+
+  @Test
+  public void testChargeLimit() throws Exception {
+    // 1A, 0.1mAh takes 360ms
+    HoldAutomation automation = new HoldAutomation(10F, 2F, 5000);
+    supervisor = new SafetySupervisor(device, automation);
+    supervisor.setMaxCharge(0.1);
+    Trip trip = run(automation);
+    assertEquals(Limit.CHARGE, trip.getLimit());
+    assertEquals(0.1, supervisor.getCharge(), 0.05);
+    assertFalse(psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testEnergyLimit() throws Exception {
+    // 10W, 1mWh takes 360ms
+    HoldAutomation automation = new HoldAutomation(10F, 2F, 5000);
+    supervisor = new SafetySupervisor(device, automation);
+    supervisor.setMaxEnergy(0.001);
+    assertEquals(Limit.ENERGY, run(automation).getLimit());
+    assertEquals(0.001, supervisor.getEnergy(), 0.0005);
+  }
+
+  @Test
+  public void testCcTimeLimit() throws Exception {
+    // 10 ohm at 5V wants 0.5A, so it is in CC
+    HoldAutomation automation = new HoldAutomation(5F, 0.1F, 5000);
+    supervisor = new SafetySupervisor(device, automation);
+    supervisor.setMaxCcTime(300, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    assertEquals(Limit.CC_TIME, run(automation).getLimit());
+    assertTrue("Not before the limit",
+        System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(300));
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    HoldAutomation automation = new HoldAutomation(5F, 1F, 5000);
+    supervisor = new SafetySupervisor(device, automation);
+    supervisor.setDeadline(500, TimeUnit.MILLISECONDS);
+    assertEquals(Limit.DEADLINE, run(automation).getLimit());
+    assertTrue(automation.isCancelled());
+  }
+
+  @Test
+  public void testStall() throws Exception {
+    // The pacer backs off when replies don't come, keep that away from the other tests
+    psu.setId("STALL TEST");
+    device.openPort();
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    supervisor = new SafetySupervisor(device, null);
+    supervisor.setMaxStall(400, TimeUnit.MILLISECONDS);
+    supervisor.start(PERIOD, TimeUnit.MILLISECONDS);
+    Thread.sleep(300);
+    assertNull("Replies still come", supervisor.getTrip());
+    // Too late for the read timeout
+    psu.setResponseLatency(1, TimeUnit.SECONDS);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!supervisor.isTripped() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    System.out.println(supervisor.getTrip());
+    assertEquals(Limit.STALL, supervisor.getTrip().getLimit());
+    assertFalse("Settings still get through", psu.isOutputEnabled());
+  }
+
+  /**
+   * A device behind an adapter that can be unplugged, with a reconnector.
+   */
+  private ReconnectorTest.FlakyTransport flaky() {
+    ReconnectorTest.FlakyTransport transport = new ReconnectorTest.FlakyTransport(psu);
+    // No pacing, the timing is about the dropout
+    device = new LabPSU3005D(transport, new Pacer() {
+      @Override
+      public void await(CommandType next) {}
+    });
+    device.openPort();
+    new Reconnector(device).setBackoff(20, 200, TimeUnit.MILLISECONDS);
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    return transport;
+  }
+
+  @Test
+  public void testStallWhileReconnecting() throws Exception {
+    ReconnectorTest.FlakyTransport transport = flaky();
+    supervisor = new SafetySupervisor(device, null);
+    supervisor.setMaxStall(400, TimeUnit.MILLISECONDS);
+    supervisor.start(PERIOD, TimeUnit.MILLISECONDS);
+    Thread.sleep(300);
+    long unplugged = System.nanoTime();
+    // The reconnect holds the device until it is back
+    transport.unplug(1500);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!supervisor.isTripped() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    Trip trip = supervisor.getTrip();
+    System.out.println(trip);
+    assertEquals("A reconnect that works in the end is a stall too", Limit.STALL,
+        trip.getLimit());
+    assertTrue("Should be seen before the port is back",
+        trip.getNanoTime() - unplugged < TimeUnit.MILLISECONDS.toNanos(1000));
+    assertFalse("The output should stay off", psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testReconnectLeavesOutputOff() throws Exception {
+    ReconnectorTest.FlakyTransport transport = flaky();
+    supervisor = new SafetySupervisor(device, null);
+    supervisor.setMaxStall(0, TimeUnit.MILLISECONDS);
+    supervisor.start(PERIOD, TimeUnit.MILLISECONDS);
+    transport.unplug(300);
+    assertEquals(0, device.getOutputMillivolts());
+    assertFalse("Only the job may switch it on again", psu.isOutputEnabled());
+    device.setEnabled(true, 0);
+    assertEquals("The voltage is restored", 5000, device.getOutputMillivolts());
+    supervisor.close();
+    assertNull(supervisor.getTrip());
+  }
+
+  @Test
+  public void testWithinLimits() throws Exception {
+    HoldAutomation automation = new HoldAutomation(5F, 1F, 300);
+    supervisor = new SafetySupervisor(device, automation);
+    supervisor.setMaxPower(10F);
+    supervisor.setMaxStall(300, TimeUnit.MILLISECONDS);
+    supervisor.start(PERIOD, TimeUnit.MILLISECONDS);
+    automation.run(device);
+    // The port is closed by the automation, that isn't a stall
+    Thread.sleep(600);
+    supervisor.close();
+    assertNull(supervisor.getTrip());
+    assertTrue(automation.finished);
+    // 2.5W for two periods of 300ms
+    assertEquals(0.00042, supervisor.getEnergy(), 0.0001);
+  }
+
+}
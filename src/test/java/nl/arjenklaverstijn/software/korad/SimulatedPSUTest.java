@@ -0,0 +1,467 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Timing tests against the {@link SimulatedPSU}, these don't need any hardware.
+ * 
+ * @author arjen
+ *
+ */
+public class SimulatedPSUTest {
+
+  private static final int SAMPLES = 20;
+  // Enough queries to tell allocation from noise
+  private static final int POLLS = Allocations.MIN_CALLS / 2;
+  private static final int STEPS = Allocations.MIN_CALLS / 3 + 1;
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    device.closePort();
+  }
+
+  @Test
+  public void testQueryThroughput() {
+    long start = System.nanoTime();
+    for (int i = 0; i < SAMPLES; i++) {
+      device.getOutputVoltage();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    double rate = SAMPLES / seconds;
+    System.out.println("VOUT1? throughput: " + Math.round(rate) + " commands/s");
+    assertTrue("Throughput should not drop below 15 commands/s", rate >= 15);
+  }
+
+  @Test
+  public void testPollingDoesNotAllocate() {
+    assumeTrue("Needs a JVM that counts allocated bytes", Allocations.isSupported());
+    device.setVoltage(5F);
+    device.setEnabled(true);
+    long allocated = Allocations.measure(2 * POLLS, () -> {
+      for (int i = 0; i < POLLS; i++) {
+        device.getOutputVoltage();
+        device.getOutputCurrent();
+      }
+    });
+    assertTrue("Polling should not allocate, allocated " + allocated + " bytes",
+        allocated < Allocations.TOLERANCE);
+  }
+
+  @Test
+  public void testFixedPointReadback() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    // 5V over 10 ohm
+    assertEquals(5000, device.getOutputMillivolts());
+    assertEquals(500, device.getOutputMilliamps());
+    device.closePort();
+    assertEquals(LabPSU3005D.NO_REPLY, device.getOutputMillivolts());
+    assertFalse(LabPSU3005D.isValidReadback(device.getOutputMilliamps()));
+  }
+
+  @Test
+  public void testFixedPointPollingDoesNotAllocate() {
+    assumeTrue("Needs a JVM that counts allocated bytes", Allocations.isSupported());
+    device.setVoltage(5F);
+    device.setEnabled(true);
+    long allocated = Allocations.measure(2 * POLLS, () -> {
+      for (int i = 0; i < POLLS; i++) {
+        device.getOutputMillivolts();
+        device.getOutputMilliamps();
+      }
+    });
+    assertTrue("Polling should not allocate, allocated " + allocated + " bytes",
+        allocated < Allocations.TOLERANCE);
+  }
+
+  @Test
+  public void testSettingsDoNotAllocate() {
+    assumeTrue("Needs a JVM that counts allocated bytes", Allocations.isSupported());
+    // No pacing, this is about the encoding
+    LabPSU3005D device = new LabPSU3005D(psu, new Pacer() {
+      @Override
+      public void await(CommandType next) {}
+    });
+    // Three settings per step
+    long allocated = Allocations.measure(3 * STEPS, () -> {
+      for (int i = 0; i < STEPS; i++) {
+        controlStep(device, i);
+      }
+    });
+    assertTrue("Settings should not allocate, allocated " + allocated + " bytes",
+        allocated < Allocations.TOLERANCE);
+    device.invalidateCache(); // read back from the device itself
+    assertEquals(5F + ((STEPS - 1) % 100) / 100F, device.getSetVoltage(), 0.001);
+    assertEquals(1F + ((STEPS - 1) % 100) / 1000F, device.getSetCurrent(), 0.0001);
+  }
+
+  private void controlStep(LabPSU3005D device, int i) {
+    device.setVoltageMillivolts(5000 + (i % 100) * 10);
+    device.setCurrentMilliamps(1000 + i % 100);
+    device.setEnabled(i % 2 == 0, 0);
+  }
+
+  @Test
+  public void testResponseLatency() {
+    psu.setResponseLatency(20, TimeUnit.MILLISECONDS);
+    device.getOutputVoltage(); // pay the pacing delay up front
+    long start = System.nanoTime();
+    device.getOutputVoltage();
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("A query can't be faster than the response latency", took >= 20);
+  }
+
+  @Test
+  public void testIdentificationDoesNotWaitForReadTimeout() throws Exception {
+    device.setIdleGap(5, TimeUnit.MILLISECONDS);
+    Thread.sleep(60); // don't measure the pacing delay
+    long start = System.nanoTime();
+    assertEquals(SimulatedPSU.DEFAULT_ID, device.getId());
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("*IDN? took " + took + "ms, it should not wait for the 80ms timeout", took < 80);
+  }
+
+  @Test
+  public void testPacingLearnsDeadTime() {
+    SimulatedPSU psu = new SimulatedPSU(10F);
+    psu.setId("PACINGTEST");
+    psu.setDeadTime(10, TimeUnit.MILLISECONDS);
+    LabPSU3005D device = new LabPSU3005D(psu);
+    device.openPort();
+    try {
+      device.setVoltage(5F);
+      device.setCurrent(1F);
+      device.setEnabled(true);
+      for (int i = 0; i < 200; i++) {
+        assertEquals(5F, device.getOutputVoltage(), 0);
+      }
+      Pacer pacer = device.getPacer();
+      System.out.println(pacer);
+      assertTrue("Queries should not be sent within the dead time",
+          pacer.getGap(Pacer.CommandType.QUERY) >= TimeUnit.MILLISECONDS.toNanos(10));
+      assertTrue("Should be faster than the old fixed 50ms gap",
+          pacer.getCommandsPerSecond() > 40);
+    } finally {
+      device.closePort();
+    }
+  }
+
+  /**
+   * The simulator, but it can stop answering while the port stays open.
+   */
+  private static class MutableTransport implements Transport {
+
+    private final SimulatedPSU psu;
+    volatile boolean silent;
+
+    MutableTransport(SimulatedPSU psu) {
+      this.psu = psu;
+    }
+
+    @Override
+    public boolean open() {
+      return psu.open();
+    }
+
+    @Override
+    public boolean close() {
+      return psu.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return psu.isOpen();
+    }
+
+    @Override
+    public String getName() {
+      return "mutable";
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset, int length) {
+      return psu.write(buffer, offset, length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+      if (silent) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        return 0;
+      }
+      return psu.read(buffer, offset, length, timeoutMillis);
+    }
+
+  }
+
+  @Test
+  public void testSilentUnitDoesntSlowDownTheOthers() {
+    SimulatedPSU first = new SimulatedPSU(10F);
+    SimulatedPSU second = new SimulatedPSU(10F);
+    first.setId("SHARED PACING TEST");
+    second.setId("SHARED PACING TEST");
+    first.setDeadTime(10, TimeUnit.MILLISECONDS);
+    MutableTransport transport = new MutableTransport(second);
+    LabPSU3005D learning = new LabPSU3005D(first);
+    LabPSU3005D silent = new LabPSU3005D(transport);
+    learning.openPort();
+    silent.openPort();
+    try {
+      for (int i = 0; i < 100; i++) {
+        learning.getOutputVoltage();
+      }
+      Pacer pacer = learning.getPacer();
+      long floor = pacer.getFloor(Pacer.CommandType.QUERY);
+      transport.silent = true;
+      for (int i = 0; i < 3; i++) {
+        assertEquals(LabPSU3005D.NO_REPLY, silent.getOutputMillivolts());
+      }
+      assertTrue("A unit that doesn't answer shouldn't raise the floor of the others",
+          pacer.getFloor(Pacer.CommandType.QUERY) <= floor);
+      assertTrue(pacer.getGap(Pacer.CommandType.QUERY) < Pacer.INITIAL_GAP);
+    } finally {
+      learning.closePort();
+      silent.closePort();
+    }
+  }
+
+  @Test
+  public void testFloorIsCappedAndComesDown() {
+    Pacer pacer = new Pacer();
+    pacer.sent(Pacer.CommandType.QUERY);
+    LockSupport.parkNanos(Pacer.MAX_GAP - TimeUnit.MILLISECONDS.toNanos(10));
+    pacer.sent(Pacer.CommandType.QUERY);
+    pacer.replied(false);
+    assertTrue(pacer.getFloor(Pacer.CommandType.QUERY) <= Pacer.MAX_GAP);
+    assertTrue(pacer.getSafeGap(Pacer.CommandType.QUERY) <= Pacer.MAX_GAP);
+    assertTrue(pacer.getGap(Pacer.CommandType.QUERY) <= Pacer.MAX_GAP);
+    long floor = pacer.getFloor(Pacer.CommandType.QUERY);
+    for (int i = 0; i < Pacer.DECAY_AFTER; i++) {
+      pacer.sent(Pacer.CommandType.QUERY);
+      pacer.replied(true);
+    }
+    assertTrue("The floor should come down after valid replies",
+        pacer.getFloor(Pacer.CommandType.QUERY) < floor);
+  }
+
+  @Test
+  public void testSnapshot() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    Snapshot snapshot = device.getSnapshot();
+    assertEquals(5F, snapshot.getVoltage(), 0);
+    assertEquals(.5F, snapshot.getCurrent(), 0);
+    assertTrue("Output should be on", snapshot.getStatus().getOutput());
+  }
+
+  @Test
+  public void testSnapshotIsFasterThanSeparateQueries() {
+    SimulatedPSU psu = new SimulatedPSU(10F);
+    psu.setId("SNAPSHOTTEST");
+    psu.setDeadTime(10, TimeUnit.MILLISECONDS);
+    LabPSU3005D device = new LabPSU3005D(psu);
+    device.openPort();
+    try {
+      // let the pacer learn the dead time first
+      for (int i = 0; i < 100; i++) {
+        device.getOutputVoltage();
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < SAMPLES; i++) {
+        device.getOutputVoltage();
+        device.getOutputCurrent();
+        device.getStatus();
+      }
+      long separate = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < SAMPLES; i++) {
+        device.getSnapshot();
+      }
+      long batched = System.nanoTime() - start;
+      System.out.println("Separate: " + separate / SAMPLES / 1000 + "us per sample, snapshot: "
+          + batched / SAMPLES / 1000 + "us per sample");
+      assertTrue("A snapshot should be at least twice as fast", batched * 2 <= separate);
+    } finally {
+      device.closePort();
+    }
+  }
+
+  @Test
+  public void testRedundantSettingsAreSkipped() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    long commands = psu.getCommandCount();
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    assertEquals(5F, device.getSetVoltage(), 0);
+    assertEquals(1F, device.getSetCurrent(), 0);
+    assertEquals("Nothing should have been sent", commands, psu.getCommandCount());
+    assertEquals(3, device.getSkippedCommandCount());
+    device.setVoltage(6F);
+    assertEquals("A new voltage should be sent", commands + 1, psu.getCommandCount());
+  }
+
+  @Test
+  public void testRecallInvalidatesCache() {
+    device.savePreset(1, 12.34F, 1.1F);
+    device.setVoltage(5F);
+    device.recalPreset(1);
+    assertEquals("The voltage should come from the preset", 12.34F, device.getSetVoltage(), 0);
+  }
+
+  @Test
+  public void testFrontPanelChangeInvalidatesCache() {
+    device.setVoltage(5F);
+    device.setEnabled(true);
+    psu.setOutputFromFrontPanel(false);
+    psu.setVoltageFromFrontPanel(3F);
+    assertFalse("Output was switched off", device.getStatus().getOutput());
+    assertEquals("The status change should invalidate the cache", 3F, device.getSetVoltage(), 0);
+    device.setEnabled(true);
+    assertTrue("Output should be on again", psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testDeadTimeDropsCommands() {
+    SimulatedPSU psu = new SimulatedPSU();
+    psu.setDeadTime(1, TimeUnit.SECONDS);
+    psu.open();
+    byte[] command = "OUT1".getBytes(StandardCharsets.US_ASCII);
+    psu.write(command, 0, command.length);
+    psu.write(command, 0, command.length);
+    assertEquals("The second command should be ignored", 1, psu.getDroppedCommandCount());
+  }
+
+  @Test
+  public void testResistiveLoad() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    assertEquals("5V over 10 ohm is 0.5A", 0.5F, device.getOutputCurrent(), 0);
+    assertEquals(5F, device.getOutputVoltage(), 0);
+    psu.setLoadResistance(2F);
+    assertEquals("The current limit should kick in", 1F, device.getOutputCurrent(), 0);
+    assertEquals(2F, device.getOutputVoltage(), 0);
+  }
+
+  @Test
+  public void testEnableSettlesEarly() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+    assertTrue("Output should have settled", device.isLastSettled());
+    System.out.println("Settled on in " + device.getLastSettleTime() / 1000 + "us");
+    assertTrue("A resistive load settles well within 100ms",
+        device.getLastSettleTime() < TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(5000, device.getOutputMillivolts());
+    device.setEnabled(false);
+    assertTrue("Output should be confirmed off", device.isLastSettled());
+    assertFalse(psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testEnableWaitsForSlew() {
+    // 5V at 20V/s takes 250ms
+    psu.setSlewRate(20F);
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true, 1000);
+    assertTrue("Output should have settled", device.isLastSettled());
+    System.out.println("Settled on in " + device.getLastSettleTime() / 1000000 + "ms");
+    assertTrue("Should wait for the output to ramp up",
+        device.getLastSettleTime() >= TimeUnit.MILLISECONDS.toNanos(200));
+    assertEquals(5000, device.getOutputMillivolts(), 20);
+  }
+
+  @Test
+  public void testOthersCanQueryWhileSettling() throws Exception {
+    // 5V at 20V/s takes 250ms
+    psu.setSlewRate(20F);
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    Thread settler = new Thread(() -> device.setEnabled(true, 1000));
+    settler.start();
+    Thread.sleep(50);
+    long start = System.nanoTime();
+    device.getOutputVoltage();
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("The settle thread should be still waiting", settler.isAlive());
+    settler.join();
+    assertTrue("A query shouldn't wait for the output to settle, it took " + took + "ms",
+        took < 150);
+    assertTrue(device.isLastSettled());
+  }
+
+  @Test
+  public void testInterruptStopsSettling() throws Exception {
+    psu.setSlewRate(20F);
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    boolean[] interrupted = new boolean[1];
+    Thread settler = new Thread(() -> {
+      device.setEnabled(true, 1000);
+      interrupted[0] = Thread.currentThread().isInterrupted();
+    });
+    long start = System.nanoTime();
+    settler.start();
+    Thread.sleep(50);
+    settler.interrupt();
+    settler.join();
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("The wait should stop early, it took " + took + "ms", took < 200);
+    assertTrue("The interrupt should stay set", interrupted[0]);
+    assertFalse(device.isLastSettled());
+    assertTrue("The output was switched on", psu.isOutputEnabled());
+  }
+
+  @Test
+  public void testEnableGivesUpAtUpperBound() {
+    psu.setSlewRate(1F);
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true, 100);
+    assertFalse("5s ramp can't settle in 100ms", device.isLastSettled());
+    assertTrue(device.getLastSettleTime() >= TimeUnit.MILLISECONDS.toNanos(100));
+    assertTrue(device.getLastSettleTime() < TimeUnit.MILLISECONDS.toNanos(300));
+  }
+
+  @Test
+  public void testEnableKeepsInterrupt() {
+    psu.setSlewRate(1F);
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    Thread.currentThread().interrupt();
+    long start = System.nanoTime();
+    device.setEnabled(true, 5000);
+    // clears the flag again for the next tests
+    assertTrue("The interrupt should be left for the caller", Thread.interrupted());
+    assertFalse(device.isLastSettled());
+    assertTrue("An interrupt should stop waiting",
+        System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    assertTrue("The output was still switched", psu.isOutputEnabled());
+  }
+
+}
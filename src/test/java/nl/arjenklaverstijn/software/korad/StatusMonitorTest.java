@@ -0,0 +1,180 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.MODE;
+import nl.arjenklaverstijn.software.korad.LabPSU3005D.Status;
+import nl.arjenklaverstijn.software.korad.StatusEvent.Type;
+
+/**
+ * @author arjen
+ *
+ */
+public class StatusMonitorTest {
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+  private StatusMonitor monitor;
+  private final List<Type> events = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    monitor = new StatusMonitor(device);
+    monitor.addListener(event -> events.add(event.getType()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    monitor.close();
+    device.closePort();
+  }
+
+  @Test
+  public void testDecodesAllBits() {
+    Status status = Status.of(1, (byte) 0b11110010);
+    assertEquals(MODE.CC, status.getMode());
+    assertEquals(MODE.CV, Status.of(2, (byte) 0b11110010).getMode());
+    assertTrue(status.beep());
+    assertTrue(status.getOCP());
+    assertTrue(status.getOutput());
+    assertTrue(status.getOVP());
+    assertFalse(Status.of(1, (byte) 0).getOVP());
+    // Shared, not decoded again
+    assertSame(status, Status.of(1, (byte) 0b11110010));
+    assertEquals(2, Status.of(2, (byte) 0).getChannel());
+  }
+
+  @Test
+  public void testModeAndOutputEvents() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.getStatus();
+    device.setEnabled(true, 0);
+    device.getStatus();
+    // 5V over 10 ohm wants 500mA
+    device.setCurrent(0.2F);
+    device.getStatus();
+    device.setCurrent(1F);
+    device.getSnapshot(); // every status counts
+    device.setEnabled(false, 0);
+    device.getStatus();
+    assertEquals(List.of(Type.OUTPUT_ON, Type.CONSTANT_CURRENT, Type.CONSTANT_VOLTAGE,
+        Type.OUTPUT_OFF), events);
+    assertEquals(0, monitor.getPollCount());
+  }
+
+  @Test
+  public void testOcpTrip() {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setOCP(true);
+    device.getStatus();
+    device.setEnabled(true, 0);
+    device.getStatus();
+    device.setCurrent(0.2F);
+    device.getStatus();
+    assertEquals(List.of(Type.OUTPUT_ON, Type.OUTPUT_OFF, Type.OCP_TRIPPED), events);
+  }
+
+  @Test
+  public void testSlowListenerDoesntHoldTheDevice() throws Exception {
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    monitor.addListener(event -> {
+      if (event.getType() == Type.OUTPUT_ON) {
+        entered.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.getStatus();
+    device.setEnabled(true, 0);
+    Thread reader = new Thread(device::getStatus);
+    reader.start();
+    try {
+      assertTrue(entered.await(1, TimeUnit.SECONDS));
+      Thread kill = new Thread(() -> device.switchOff(0));
+      kill.start();
+      kill.join(TimeUnit.SECONDS.toMillis(1));
+      assertFalse("The output should go off while the listener runs", kill.isAlive());
+      assertFalse(psu.isOutputEnabled());
+    } finally {
+      release.countDown();
+      reader.join();
+    }
+    device.getStatus();
+    assertEquals(List.of(Type.OUTPUT_ON, Type.OUTPUT_OFF), events);
+  }
+
+  @Test
+  public void testThrowingListenerDoesntStopTheOthers() {
+    List<Type> later = new CopyOnWriteArrayList<>();
+    monitor.addListener(event -> {
+      throw new IllegalStateException("broken listener");
+    });
+    monitor.addListener(event -> later.add(event.getType()));
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.getStatus();
+    device.setEnabled(true, 0);
+    device.getStatus();
+    device.setEnabled(false, 0);
+    device.getStatus();
+    assertEquals(List.of(Type.OUTPUT_ON, Type.OUTPUT_OFF), events);
+    assertEquals(events, later);
+  }
+
+  @Test
+  public void testEventsSeenWhileSettlingAreDelivered() throws Exception {
+    CountDownLatch on = new CountDownLatch(1);
+    monitor.addListener(event -> {
+      if (event.getType() == Type.OUTPUT_ON) {
+        on.countDown();
+      }
+    });
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.getStatus();
+    // The status that shows the output on is read while the device is held
+    device.setEnabled(true, 500);
+    assertTrue(device.isLastSettled());
+    assertTrue("The event should come without another status read", on.await(1, TimeUnit.SECONDS));
+    assertEquals(List.of(Type.OUTPUT_ON), events);
+  }
+
+  @Test
+  public void testBackgroundPollingSeesFrontPanel() throws Exception {
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true, 0);
+    device.getStatus();
+    monitor.start(20, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    psu.setOutputFromFrontPanel(false);
+    assertTrue(monitor.await(Type.OUTPUT_OFF, 1, TimeUnit.SECONDS));
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    monitor.stop();
+    System.out.println("Output off seen after " + took + "ms");
+    assertTrue("Should be seen within about one poll period", took < 200);
+    assertTrue(monitor.getPollCount() > 0);
+    assertFalse(monitor.getLatest().getOutput());
+  }
+
+}
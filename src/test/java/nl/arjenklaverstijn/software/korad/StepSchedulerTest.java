@@ -0,0 +1,60 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class StepSchedulerTest {
+
+  @Test
+  public void testSlowStepsDontDrift() {
+    StepScheduler scheduler = new StepScheduler();
+    long start = System.nanoTime();
+    // every other step takes longer than it should, the next one catches up
+    assertTrue(scheduler.run(10, 20, TimeUnit.MILLISECONDS,
+        step -> scheduler.waitFor(step % 2 == 0 ? 25 : 5, TimeUnit.MILLISECONDS)));
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    System.out.println(scheduler);
+    assertEquals(10, scheduler.getStepsRun());
+    assertTrue("10 steps of 20ms took " + took + "ms", took >= 200 && took < 230);
+    assertTrue("Drift should stay small",
+        scheduler.getDrift() < TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    StepScheduler scheduler = new StepScheduler();
+    Thread canceller = new Thread(() -> {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        return;
+      }
+      scheduler.cancel();
+    });
+    canceller.start();
+    long start = System.nanoTime();
+    assertFalse("Should be cancelled", scheduler.waitFor(10, TimeUnit.SECONDS));
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("Cancel should wake up the waiting thread, took " + took + "ms", took < 1000);
+    canceller.join();
+  }
+
+  @Test
+  public void testWaitingDoesNotSpin() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long cpu = threads.getCurrentThreadCpuTime();
+    new StepScheduler().waitFor(200, TimeUnit.MILLISECONDS);
+    long used = TimeUnit.NANOSECONDS.toMillis(threads.getCurrentThreadCpuTime() - cpu);
+    assertTrue("Waiting 200ms used " + used + "ms of CPU", used < 50);
+  }
+
+}
@@ -0,0 +1,103 @@
+package nl.arjenklaverstijn.software.korad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author arjen
+ *
+ */
+public class TelemetryRecorderTest {
+
+  private SimulatedPSU psu;
+  private LabPSU3005D device;
+
+  @Before
+  public void setUp() throws Exception {
+    psu = new SimulatedPSU(10F);
+    device = new LabPSU3005D(psu);
+    device.openPort();
+    device.setVoltage(5F);
+    device.setCurrent(1F);
+    device.setEnabled(true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    device.closePort();
+  }
+
+  @Test
+  public void testOldestSamplesAreOverwritten() {
+    TelemetryRecorder recorder = new TelemetryRecorder(device, 8);
+    for (int i = 0; i < 20; i++) {
+      recorder.accept(i, i, i / 10F, (byte) 0);
+    }
+    TelemetryWindow window = recorder.getLatest(100);
+    assertEquals("Only the capacity is kept", 8, window.size());
+    assertEquals("Oldest first", 12F, window.getVoltage(0), 0);
+    assertEquals(19F, window.getVoltage(7), 0);
+    assertEquals(20, recorder.getSampleCount());
+  }
+
+  @Test
+  public void testWindow() {
+    TelemetryRecorder recorder = new TelemetryRecorder(device, 64);
+    for (int i = 0; i < 20; i++) {
+      recorder.accept(i * 10, i, 0, (byte) 0);
+    }
+    TelemetryWindow window = recorder.getWindow(50, 100);
+    assertEquals(5, window.size());
+    assertEquals(5F, window.getVoltage(0), 0);
+    assertEquals(9F, window.getVoltage(4), 0);
+  }
+
+  @Test
+  public void testSampling() {
+    TelemetryRecorder recorder = new TelemetryRecorder(device, 64);
+    assertTrue(recorder.sample());
+    TelemetryWindow window = recorder.getLatest(1);
+    assertEquals(5F, window.getVoltage(0), 0);
+    assertEquals(.5F, window.getCurrent(0), 0);
+    assertEquals("Output bit should be set", 1 << 6, window.getStatus(0) & (1 << 6));
+  }
+
+  @Test
+  public void testSamplingDoesNotAllocate() {
+    assumeTrue("Needs a JVM that counts allocated bytes", Allocations.isSupported());
+    TelemetryRecorder recorder = new TelemetryRecorder(device, 1024);
+    int samples = 1000;
+    long allocated = Allocations.measure(samples, () -> {
+      for (int i = 0; i < samples; i++) {
+        recorder.sample();
+      }
+    });
+    assertTrue("Sampling should not allocate, allocated " + allocated + " bytes",
+        allocated < Allocations.TOLERANCE);
+  }
+
+  @Test
+  public void testReadWhileSampling() throws Exception {
+    TelemetryRecorder recorder = new TelemetryRecorder(device, 4);
+    recorder.start(0, TimeUnit.MILLISECONDS);
+    try {
+      long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+      while (System.nanoTime() < end) {
+        TelemetryWindow window = recorder.getLatest(4);
+        for (int i = 1; i < window.size(); i++) {
+          assertTrue("Samples should be in order",
+              window.getNanoTime(i) > window.getNanoTime(i - 1));
+        }
+      }
+    } finally {
+      recorder.stop();
+    }
+    assertTrue("Should have wrapped around", recorder.getSampleCount() > 4);
+  }
+
+}